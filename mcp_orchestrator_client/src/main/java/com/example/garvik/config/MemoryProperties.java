@@ -0,0 +1,199 @@
+package com.example.garvik.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/** Tunables for the memory search served by the Firestore memory service. */
+@ConfigurationProperties(prefix = "adk.memory")
+public class MemoryProperties {
+
+  /** Maximum number of users whose memory index is kept in memory. */
+  private long indexMaxUsers = 10_000;
+
+  /** A user's index is rebuilt from Firestore this long after it was built. */
+  private long indexRebuildAfterMinutes = 30;
+
+  /** Most memories returned by a search, best first. */
+  private int searchTopK = 5;
+
+  /** Age in days at which a memory has lost half of the recency share of its score. */
+  private long recencyHalfLifeDays = 30;
+
+  /** Most users whose recent search responses are cached. */
+  private long searchCacheMaxUsers = 10_000;
+
+  /** Most search responses cached per user. */
+  private long searchCacheMaxQueriesPerUser = 32;
+
+  /** How long a cached response is served; bounds staleness from appends on other nodes. */
+  private long searchCacheTtlSeconds = 300;
+
+  /** Most appended events waiting for the background indexer; further ones are dropped. */
+  private int indexerQueueCapacity = 10_000;
+
+  /** Most appended events indexed and written together. */
+  private int indexerBatchSize = 200;
+
+  private final Semantic semantic = new Semantic();
+
+  /** Optional semantic search, merged with the keyword search. */
+  public static class Semantic {
+    private boolean enabled = false;
+
+    /** Where each user's vectors are saved between restarts. */
+    private String directory = "memory-vectors";
+
+    /** Dimensions of the local hashing embedding. */
+    private int dimensions = 256;
+
+    /** Most users whose vectors are held in memory. */
+    private long maxUsers = 1_000;
+
+    // HNSW graph parameters: neighbours per node and candidates considered on insert and search.
+    private int hnswM = 16;
+    private int efConstruction = 100;
+    private int efSearch = 50;
+
+    /** Cosine similarity below which a semantic match is dropped. */
+    private double minSimilarity = 0.3;
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public String getDirectory() {
+      return directory;
+    }
+
+    public void setDirectory(String directory) {
+      this.directory = directory;
+    }
+
+    public int getDimensions() {
+      return dimensions;
+    }
+
+    public void setDimensions(int dimensions) {
+      this.dimensions = dimensions;
+    }
+
+    public long getMaxUsers() {
+      return maxUsers;
+    }
+
+    public void setMaxUsers(long maxUsers) {
+      this.maxUsers = maxUsers;
+    }
+
+    public int getHnswM() {
+      return hnswM;
+    }
+
+    public void setHnswM(int hnswM) {
+      this.hnswM = hnswM;
+    }
+
+    public int getEfConstruction() {
+      return efConstruction;
+    }
+
+    public void setEfConstruction(int efConstruction) {
+      this.efConstruction = efConstruction;
+    }
+
+    public int getEfSearch() {
+      return efSearch;
+    }
+
+    public void setEfSearch(int efSearch) {
+      this.efSearch = efSearch;
+    }
+
+    public double getMinSimilarity() {
+      return minSimilarity;
+    }
+
+    public void setMinSimilarity(double minSimilarity) {
+      this.minSimilarity = minSimilarity;
+    }
+  }
+
+  public long getIndexMaxUsers() {
+    return indexMaxUsers;
+  }
+
+  public void setIndexMaxUsers(long indexMaxUsers) {
+    this.indexMaxUsers = indexMaxUsers;
+  }
+
+  public long getIndexRebuildAfterMinutes() {
+    return indexRebuildAfterMinutes;
+  }
+
+  public void setIndexRebuildAfterMinutes(long indexRebuildAfterMinutes) {
+    this.indexRebuildAfterMinutes = indexRebuildAfterMinutes;
+  }
+
+  public int getSearchTopK() {
+    return searchTopK;
+  }
+
+  public void setSearchTopK(int searchTopK) {
+    this.searchTopK = searchTopK;
+  }
+
+  public long getRecencyHalfLifeDays() {
+    return recencyHalfLifeDays;
+  }
+
+  public void setRecencyHalfLifeDays(long recencyHalfLifeDays) {
+    this.recencyHalfLifeDays = recencyHalfLifeDays;
+  }
+
+  public long getSearchCacheMaxUsers() {
+    return searchCacheMaxUsers;
+  }
+
+  public void setSearchCacheMaxUsers(long searchCacheMaxUsers) {
+    this.searchCacheMaxUsers = searchCacheMaxUsers;
+  }
+
+  public long getSearchCacheMaxQueriesPerUser() {
+    return searchCacheMaxQueriesPerUser;
+  }
+
+  public void setSearchCacheMaxQueriesPerUser(long searchCacheMaxQueriesPerUser) {
+    this.searchCacheMaxQueriesPerUser = searchCacheMaxQueriesPerUser;
+  }
+
+  public long getSearchCacheTtlSeconds() {
+    return searchCacheTtlSeconds;
+  }
+
+  public void setSearchCacheTtlSeconds(long searchCacheTtlSeconds) {
+    this.searchCacheTtlSeconds = searchCacheTtlSeconds;
+  }
+
+  public int getIndexerQueueCapacity() {
+    return indexerQueueCapacity;
+  }
+
+  public void setIndexerQueueCapacity(int indexerQueueCapacity) {
+    this.indexerQueueCapacity = indexerQueueCapacity;
+  }
+
+  public int getIndexerBatchSize() {
+    return indexerBatchSize;
+  }
+
+  public void setIndexerBatchSize(int indexerBatchSize) {
+    this.indexerBatchSize = indexerBatchSize;
+  }
+
+  public Semantic getSemantic() {
+    return semantic;
+  }
+}
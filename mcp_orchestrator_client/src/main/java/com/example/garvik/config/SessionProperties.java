@@ -0,0 +1,300 @@
+package com.example.garvik.config;
+
+import com.example.garvik.runner.EventCodec;
+import com.example.garvik.runner.EventWriteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/** Tunables for the Firestore backed session and memory services. */
+@ConfigurationProperties(prefix = "adk.session")
+public class SessionProperties {
+
+  /**
+   * When an appended event is acknowledged: {@code COMMIT} waits for the Firestore batch, {@code
+   * ENQUEUE} returns as soon as the writes are staged and commits them per invocation.
+   */
+  private EventWriteBuffer.AckMode writeAck = EventWriteBuffer.AckMode.COMMIT;
+
+  /** Upper bound on how long staged writes wait for the end of their invocation. */
+  private long writeFlushDelayMs = 250;
+
+  /**
+   * Upper bound on how long the session document update of an invocation waits for its end; it is
+   * written once per invocation rather than with every event.
+   */
+  private long sessionWriteMaxDelayMs = 2000;
+
+  /** Maximum number of sessions kept in the in-process session cache. */
+  private long cacheMaxSessions = 1000;
+
+  /** Cached sessions not used for this long are evicted. */
+  private long cacheExpireAfterAccessMinutes = 30;
+
+  /** Events after the checkpoint that trigger a compaction of the session; 0 disables it. */
+  private int compactionThreshold = 100;
+
+  /** Most events kept in a session checkpoint; older ones are only read by listEvents. */
+  private int checkpointMaxEvents = 200;
+
+  /** Storage format of new event documents; both formats are always readable. */
+  private EventCodec.Encoding eventEncoding = EventCodec.Encoding.BINARY;
+
+  /** Documents read and deleted per page when deleting sessions. */
+  private int deletePageSize = 500;
+
+  /** Upper bound on the write rate of session deletes. */
+  private int deleteMaxOpsPerSecond = 500;
+
+  /** How long app and user state read with a session is reused before it is read again. */
+  private long stateCacheTtlSeconds = 60;
+
+  /** Maximum number of users whose state is cached. */
+  private long stateCacheMaxUsers = 10_000;
+
+  /** Strip English plural endings from memory keywords; applies to events indexed from then on. */
+  private boolean keywordStemming = false;
+
+  /** Turns that may wait behind the running turn of a session before new ones are rejected. */
+  private int turnQueueMaxWaiting = 8;
+
+  /** Longest a turn may hold its session before the next turn starts; 0 for no limit. */
+  private long turnTimeoutSeconds = 300;
+
+  /** Threads running the blocking calls that prepare turns, e.g. token checks and OCR. */
+  private int turnSetupThreads = 32;
+
+  /** Cache invalidations exchanged with other replicas through a Firestore change feed. */
+  private final InvalidationFeed invalidationFeed = new InvalidationFeed();
+
+  /** Settings of the cache invalidation feed. */
+  public static class InvalidationFeed {
+    /** Publish this replica's writes and listen to the other replicas'. */
+    private boolean enabled = false;
+
+    /** How long invalidations are collected before they are written as one feed document. */
+    private long flushIntervalMs = 200;
+
+    /** How often the feed listener is replaced, to keep its result set small. */
+    private long resubscribeMinutes = 10;
+
+    /** Age at which feed documents expire, given a TTL policy on their expireAt field. */
+    private long retentionHours = 1;
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public long getFlushIntervalMs() {
+      return flushIntervalMs;
+    }
+
+    public void setFlushIntervalMs(long flushIntervalMs) {
+      this.flushIntervalMs = flushIntervalMs;
+    }
+
+    public long getResubscribeMinutes() {
+      return resubscribeMinutes;
+    }
+
+    public void setResubscribeMinutes(long resubscribeMinutes) {
+      this.resubscribeMinutes = resubscribeMinutes;
+    }
+
+    public long getRetentionHours() {
+      return retentionHours;
+    }
+
+    public void setRetentionHours(long retentionHours) {
+      this.retentionHours = retentionHours;
+    }
+  }
+
+  /** History handed to the agent per turn, with per app and per user overrides. */
+  private final ContextWindow context = new ContextWindow();
+
+  /** Limits on the history loaded for a turn; unset limits are inherited or unlimited. */
+  public static class Limits {
+    private Integer maxEvents;
+    private Integer maxTurns;
+    private Integer maxTokens;
+
+    public Integer getMaxEvents() {
+      return maxEvents;
+    }
+
+    public void setMaxEvents(Integer maxEvents) {
+      this.maxEvents = maxEvents;
+    }
+
+    public Integer getMaxTurns() {
+      return maxTurns;
+    }
+
+    public void setMaxTurns(Integer maxTurns) {
+      this.maxTurns = maxTurns;
+    }
+
+    public Integer getMaxTokens() {
+      return maxTokens;
+    }
+
+    public void setMaxTokens(Integer maxTokens) {
+      this.maxTokens = maxTokens;
+    }
+  }
+
+  /** Default limits plus overrides keyed by app name and by user id. */
+  public static class ContextWindow extends Limits {
+    private final Map<String, Limits> apps = new HashMap<>();
+    private final Map<String, Limits> users = new HashMap<>();
+
+    public Map<String, Limits> getApps() {
+      return apps;
+    }
+
+    public Map<String, Limits> getUsers() {
+      return users;
+    }
+  }
+
+  public ContextWindow getContext() {
+    return context;
+  }
+
+  public EventWriteBuffer.AckMode getWriteAck() {
+    return writeAck;
+  }
+
+  public void setWriteAck(EventWriteBuffer.AckMode writeAck) {
+    this.writeAck = writeAck;
+  }
+
+  public long getWriteFlushDelayMs() {
+    return writeFlushDelayMs;
+  }
+
+  public void setWriteFlushDelayMs(long writeFlushDelayMs) {
+    this.writeFlushDelayMs = writeFlushDelayMs;
+  }
+
+  public long getSessionWriteMaxDelayMs() {
+    return sessionWriteMaxDelayMs;
+  }
+
+  public void setSessionWriteMaxDelayMs(long sessionWriteMaxDelayMs) {
+    this.sessionWriteMaxDelayMs = sessionWriteMaxDelayMs;
+  }
+
+  public long getCacheMaxSessions() {
+    return cacheMaxSessions;
+  }
+
+  public void setCacheMaxSessions(long cacheMaxSessions) {
+    this.cacheMaxSessions = cacheMaxSessions;
+  }
+
+  public long getCacheExpireAfterAccessMinutes() {
+    return cacheExpireAfterAccessMinutes;
+  }
+
+  public void setCacheExpireAfterAccessMinutes(long cacheExpireAfterAccessMinutes) {
+    this.cacheExpireAfterAccessMinutes = cacheExpireAfterAccessMinutes;
+  }
+
+  public int getCompactionThreshold() {
+    return compactionThreshold;
+  }
+
+  public void setCompactionThreshold(int compactionThreshold) {
+    this.compactionThreshold = compactionThreshold;
+  }
+
+  public int getCheckpointMaxEvents() {
+    return checkpointMaxEvents;
+  }
+
+  public void setCheckpointMaxEvents(int checkpointMaxEvents) {
+    this.checkpointMaxEvents = checkpointMaxEvents;
+  }
+
+  public EventCodec.Encoding getEventEncoding() {
+    return eventEncoding;
+  }
+
+  public void setEventEncoding(EventCodec.Encoding eventEncoding) {
+    this.eventEncoding = eventEncoding;
+  }
+
+  public int getDeletePageSize() {
+    return deletePageSize;
+  }
+
+  public void setDeletePageSize(int deletePageSize) {
+    this.deletePageSize = deletePageSize;
+  }
+
+  public int getDeleteMaxOpsPerSecond() {
+    return deleteMaxOpsPerSecond;
+  }
+
+  public void setDeleteMaxOpsPerSecond(int deleteMaxOpsPerSecond) {
+    this.deleteMaxOpsPerSecond = deleteMaxOpsPerSecond;
+  }
+
+  public long getStateCacheTtlSeconds() {
+    return stateCacheTtlSeconds;
+  }
+
+  public void setStateCacheTtlSeconds(long stateCacheTtlSeconds) {
+    this.stateCacheTtlSeconds = stateCacheTtlSeconds;
+  }
+
+  public long getStateCacheMaxUsers() {
+    return stateCacheMaxUsers;
+  }
+
+  public void setStateCacheMaxUsers(long stateCacheMaxUsers) {
+    this.stateCacheMaxUsers = stateCacheMaxUsers;
+  }
+
+  public boolean isKeywordStemming() {
+    return keywordStemming;
+  }
+
+  public void setKeywordStemming(boolean keywordStemming) {
+    this.keywordStemming = keywordStemming;
+  }
+
+  public InvalidationFeed getInvalidationFeed() {
+    return invalidationFeed;
+  }
+
+  public int getTurnQueueMaxWaiting() {
+    return turnQueueMaxWaiting;
+  }
+
+  public void setTurnQueueMaxWaiting(int turnQueueMaxWaiting) {
+    this.turnQueueMaxWaiting = turnQueueMaxWaiting;
+  }
+
+  public long getTurnTimeoutSeconds() {
+    return turnTimeoutSeconds;
+  }
+
+  public void setTurnTimeoutSeconds(long turnTimeoutSeconds) {
+    this.turnTimeoutSeconds = turnTimeoutSeconds;
+  }
+
+  public int getTurnSetupThreads() {
+    return turnSetupThreads;
+  }
+
+  public void setTurnSetupThreads(int turnSetupThreads) {
+    this.turnSetupThreads = turnSetupThreads;
+  }
+}
@@ -0,0 +1,177 @@
+package com.example.garvik.config;
+
+import com.example.garvik.runner.BulkDeleter;
+import com.example.garvik.runner.CacheInvalidationFeed;
+import com.example.garvik.runner.ContextWindowPolicy;
+import com.example.garvik.runner.EventCodec;
+import com.example.garvik.runner.EventSequencer;
+import com.example.garvik.runner.EventWriteBuffer;
+import com.example.garvik.runner.FirestoreMemoryService;
+import com.example.garvik.runner.FirestoreSessionService;
+import com.example.garvik.runner.HashingEmbedder;
+import com.example.garvik.runner.KeywordExtractor;
+import com.example.garvik.runner.MemorySearchCache;
+import com.example.garvik.runner.SessionCache;
+import com.example.garvik.runner.SessionCompactor;
+import com.example.garvik.runner.SessionTurnQueue;
+import com.example.garvik.runner.StateTierCache;
+import com.example.garvik.runner.TurnSetup;
+import com.example.garvik.runner.VectorMemory;
+import com.example.garvik.service.UserPreferences;
+import com.google.cloud.firestore.Firestore;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/** Creates the Firestore session and memory services shared by every runner. */
+@Configuration
+@EnableConfigurationProperties({SessionProperties.class, MemoryProperties.class})
+public class SessionServiceConfig {
+
+  private static final Logger logger = LoggerFactory.getLogger(SessionServiceConfig.class);
+
+  private final SessionProperties properties;
+  private final MemoryProperties memoryProperties;
+
+  public SessionServiceConfig(SessionProperties properties, MemoryProperties memoryProperties) {
+    this.properties = properties;
+    this.memoryProperties = memoryProperties;
+  }
+
+  @Bean
+  public KeywordExtractor keywordExtractor() {
+    return new KeywordExtractor(properties.isKeywordStemming());
+  }
+
+  @Bean
+  public FirestoreSessionService firestoreSessionService(Firestore firestore) {
+    logger.info(
+        "Session writes ack on {} (flush delay {} ms)",
+        properties.getWriteAck(),
+        properties.getWriteFlushDelayMs());
+    return new FirestoreSessionService(
+        firestore,
+        new EventWriteBuffer(
+            firestore,
+            properties.getWriteAck(),
+            properties.getWriteFlushDelayMs(),
+            properties.getSessionWriteMaxDelayMs()),
+        new SessionCache(
+            properties.getCacheMaxSessions(),
+            Duration.ofMinutes(properties.getCacheExpireAfterAccessMinutes())),
+        new SessionCompactor(
+            properties.getCompactionThreshold(),
+            properties.getCheckpointMaxEvents(),
+            properties.getCacheMaxSessions(),
+            Duration.ofMinutes(properties.getCacheExpireAfterAccessMinutes())),
+        new EventCodec(properties.getEventEncoding()),
+        new BulkDeleter(
+            firestore, properties.getDeletePageSize(), properties.getDeleteMaxOpsPerSecond()),
+        new StateTierCache(
+            properties.getStateCacheMaxUsers(),
+            Duration.ofSeconds(properties.getStateCacheTtlSeconds())),
+        // Holds each session's number as long as the session cache holds the session.
+        new EventSequencer(
+            properties.getCacheMaxSessions(),
+            Duration.ofMinutes(properties.getCacheExpireAfterAccessMinutes())));
+  }
+
+  @Bean
+  @ConditionalOnProperty(
+      prefix = "adk.session.invalidation-feed",
+      name = "enabled",
+      havingValue = "true")
+  public CacheInvalidationFeed cacheInvalidationFeed(
+      Firestore firestore,
+      FirestoreSessionService sessionService,
+      UserPreferences userPreferences) {
+    SessionProperties.InvalidationFeed settings = properties.getInvalidationFeed();
+    CacheInvalidationFeed feed =
+        new CacheInvalidationFeed(
+            firestore,
+            Duration.ofMillis(settings.getFlushIntervalMs()),
+            Duration.ofMinutes(settings.getResubscribeMinutes()),
+            Duration.ofHours(settings.getRetentionHours()));
+    sessionService.useInvalidationFeed(feed);
+    userPreferences.useInvalidationFeed(feed);
+    feed.start();
+    return feed;
+  }
+
+  @Bean
+  public SessionTurnQueue sessionTurnQueue() {
+    return new SessionTurnQueue(
+        properties.getTurnQueueMaxWaiting(),
+        Duration.ofSeconds(properties.getTurnTimeoutSeconds()));
+  }
+
+  @Bean
+  public TurnSetup turnSetup() {
+    return new TurnSetup(properties.getTurnSetupThreads());
+  }
+
+  @Bean
+  public ContextWindowPolicy contextWindowPolicy() {
+    SessionProperties.ContextWindow context = properties.getContext();
+    Map<String, ContextWindowPolicy.Limits> apps = new HashMap<>();
+    context.getApps().forEach((app, limits) -> apps.put(app, toLimits(limits)));
+    Map<String, ContextWindowPolicy.Limits> users = new HashMap<>();
+    context.getUsers().forEach((user, limits) -> users.put(user, toLimits(limits)));
+    return new ContextWindowPolicy(toLimits(context), apps, users);
+  }
+
+  private static ContextWindowPolicy.Limits toLimits(SessionProperties.Limits limits) {
+    return new ContextWindowPolicy.Limits(
+        limits.getMaxEvents(), limits.getMaxTurns(), limits.getMaxTokens());
+  }
+
+  @Bean
+  @ConditionalOnProperty(prefix = "adk.memory.semantic", name = "enabled", havingValue = "true")
+  public VectorMemory vectorMemory(KeywordExtractor keywordExtractor) throws IOException {
+    MemoryProperties.Semantic semantic = memoryProperties.getSemantic();
+    logger.info("Semantic memory search enabled, vectors saved in {}", semantic.getDirectory());
+    return new VectorMemory(
+        new HashingEmbedder(keywordExtractor, semantic.getDimensions()),
+        Path.of(semantic.getDirectory()),
+        semantic.getMaxUsers(),
+        semantic.getHnswM(),
+        semantic.getEfConstruction(),
+        semantic.getEfSearch(),
+        semantic.getMinSimilarity());
+  }
+
+  @Bean
+  public FirestoreMemoryService firestoreMemoryService(
+      Firestore firestore,
+      KeywordExtractor keywordExtractor,
+      FirestoreSessionService sessionService,
+      ObjectProvider<VectorMemory> vectorMemory) {
+    FirestoreMemoryService memoryService =
+        new FirestoreMemoryService(
+            firestore,
+            keywordExtractor,
+            memoryProperties.getIndexMaxUsers(),
+            Duration.ofMinutes(memoryProperties.getIndexRebuildAfterMinutes()),
+            memoryProperties.getSearchTopK(),
+            Duration.ofDays(memoryProperties.getRecencyHalfLifeDays()),
+            vectorMemory.getIfAvailable(),
+            new MemorySearchCache(
+                memoryProperties.getSearchCacheMaxUsers(),
+                memoryProperties.getSearchCacheMaxQueriesPerUser(),
+                Duration.ofSeconds(memoryProperties.getSearchCacheTtlSeconds())),
+            memoryProperties.getIndexerQueueCapacity(),
+            memoryProperties.getIndexerBatchSize());
+    // Indexes the events this node appends in the background.
+    sessionService.addAppendListener(memoryService);
+    return memoryService;
+  }
+}
@@ -0,0 +1,63 @@
+package com.example.garvik.controller;
+
+import com.example.garvik.config.Constants;
+import com.example.garvik.runner.ApiFutureUtils;
+import com.example.garvik.runner.CacheInvalidationFeed;
+import com.example.garvik.runner.FirestoreMemoryService;
+import com.example.garvik.runner.FirestoreSessionService;
+import com.example.garvik.runner.SessionTurnQueue;
+import com.example.garvik.runner.TurnSetup;
+import com.example.garvik.service.TokenIntrospectionCache;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+
+/** Exposes in-process counters of the persistence layer to callers with a valid token. */
+@RestController
+public class MetricsController extends PublicAbstractSecureController {
+
+  private final FirestoreSessionService sessionService;
+  private final FirestoreMemoryService memoryService;
+  private final SessionTurnQueue turnQueue;
+  private final TurnSetup turnSetup;
+  private final TokenIntrospectionCache tokenCache;
+  private final ObjectProvider<CacheInvalidationFeed> invalidationFeed;
+
+  public MetricsController(
+      FirestoreSessionService sessionService,
+      FirestoreMemoryService memoryService,
+      SessionTurnQueue turnQueue,
+      TurnSetup turnSetup,
+      TokenIntrospectionCache tokenCache,
+      ObjectProvider<CacheInvalidationFeed> invalidationFeed) {
+    this.sessionService = sessionService;
+    this.memoryService = memoryService;
+    this.turnQueue = turnQueue;
+    this.turnSetup = turnSetup;
+    this.tokenCache = tokenCache;
+    this.invalidationFeed = invalidationFeed;
+  }
+
+  @GetMapping("/metrics/runtime")
+  public Map<String, Object> runtimeMetrics(
+      @RequestHeader(value = Constants.AUTHORIZATION_KEY, required = true) String authorization) {
+    verifyAndGetTokenDetails(authorization);
+    Map<String, Object> metrics = new LinkedHashMap<>();
+    metrics.put("firestoreCallbacks", ApiFutureUtils.stats());
+    metrics.put("eventWriteBuffer", sessionService.writeBuffer().stats());
+    metrics.put("sessionCache", sessionService.sessionCache().stats());
+    metrics.put("stateCache", sessionService.stateTiers().stats());
+    metrics.put("memoryIndex", memoryService.memoryIndex().stats());
+    metrics.put("memorySearchCache", memoryService.searchCache().stats());
+    metrics.put("memoryIndexer", memoryService.indexer().stats());
+    metrics.put("turnQueue", turnQueue.stats());
+    metrics.put("turnSetup", turnSetup.stats());
+    metrics.put("tokenCache", tokenCache.stats());
+    invalidationFeed.ifAvailable(feed -> metrics.put("invalidationFeed", feed.stats()));
+    metrics.put("liveThreads", Thread.activeCount());
+    return metrics;
+  }
+}
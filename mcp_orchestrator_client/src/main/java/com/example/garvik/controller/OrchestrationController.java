@@ -4,19 +4,31 @@ import com.example.garvik.agent.OrchestratorAgent;
 import com.example.garvik.config.Constants;
 import com.example.garvik.pojo.voice.AudioMessage;
 import com.example.garvik.pojo.voice.ConversationTurn;
+import com.example.garvik.runner.ContextWindowPolicy;
 import com.example.garvik.runner.FirestoreDatabaseRunner;
+import com.example.garvik.runner.FirestoreMemoryService;
+import com.example.garvik.runner.FirestoreSessionService;
+import com.example.garvik.runner.SessionTurnQueue;
+import com.example.garvik.runner.TurnSetup;
 import com.example.garvik.service.GoogleSttService;
 import com.example.garvik.service.GoogleTtsService;
 import com.example.garvik.service.UserPreferences;
 import com.example.garvik.util.OcrCall;
 import com.google.adk.agents.RunConfig;
 import com.google.adk.artifacts.GcsArtifactService;
+import com.google.adk.events.Event;
 import com.google.adk.sessions.GetSessionConfig;
+import com.google.adk.sessions.Session;
 import com.google.adk.sessions.SessionNotFoundException;
-import com.google.cloud.firestore.Firestore;
 import com.google.genai.types.Content;
+import com.google.genai.types.FunctionCall;
+import com.google.genai.types.FunctionResponse;
 import com.google.genai.types.Part;
 import io.reactivex.rxjava3.core.Maybe;
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
@@ -26,6 +38,7 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
 import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.messaging.handler.annotation.MessageMapping;
 import org.springframework.messaging.handler.annotation.SendTo;
@@ -36,6 +49,7 @@ import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 /** OrchestrationController handles HTTP requests related to orchestration tasks, */
 @RestController
@@ -53,12 +67,24 @@ public class OrchestrationController extends PublicAbstractSecureController {
 
   @Autowired private UserPreferences userPreferences;
 
+  @Autowired private ContextWindowPolicy contextWindowPolicy;
+
+  @Autowired private SessionTurnQueue turnQueue;
+
+  @Autowired private TurnSetup turnSetup;
+
   private static final String APP_NAME = "orchestrator-app";
 
+  /** Agent events buffered between the run and a slow stream client before the run is paused. */
+  private static final int STREAM_BUFFER_EVENTS = 16;
+
+  private static final long STREAM_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
   // Use constructor injection for dependencies
   @Autowired
   public OrchestrationController(
-      Firestore firestore,
+      FirestoreSessionService sessionService,
+      FirestoreMemoryService memoryService,
       OrchestratorAgent multiToolAgent,
       GoogleSttService sttService,
       GoogleTtsService ttsService) {
@@ -69,7 +95,8 @@ public class OrchestrationController extends PublicAbstractSecureController {
             multiToolAgent.ROOT_AGENT,
             APP_NAME,
             new ArrayList<>(), // No plugins needed for this agent
-            firestore);
+            sessionService,
+            memoryService);
     this.gcsArtifactService =
         new GcsArtifactService(
             FirestoreDatabaseRunner.BUCKET_NAME, FirestoreDatabaseRunner.storage);
@@ -86,9 +113,7 @@ public class OrchestrationController extends PublicAbstractSecureController {
       @RequestParam(required = true) String sessionId,
       @RequestHeader(value = Constants.AUTHORIZATION_KEY, required = true) String authorization) {
     logger.info("chat() - received message: " + message + " for sessionId: " + sessionId);
-    Map<String, Object> userMap = getUserMapFromToken(authorization);
-    String userId = userMap.get(Constants.UID_KEY).toString();
-    return doChat(userId, message, sessionId, null, userMap);
+    return startChat(message, sessionId, null, authorization);
   }
 
   /*
@@ -119,9 +144,7 @@ public class OrchestrationController extends PublicAbstractSecureController {
       @RequestHeader(value = Constants.AUTHORIZATION_KEY, required = true) String authorization) {
     logger.info(
         "chatWithDataUrl() - received message: " + message + " for sessionId: " + sessionId);
-    Map<String, Object> userMap = getUserMapFromToken(authorization);
-    String userId = userMap.get(Constants.UID_KEY).toString();
-    return doChatForFormPost(userId, message, sessionId, documents, userMap);
+    return startChat(message, sessionId, formPostDocuments(documents), authorization);
   }
 
   @PostMapping(
@@ -134,9 +157,41 @@ public class OrchestrationController extends PublicAbstractSecureController {
       @RequestHeader(value = Constants.AUTHORIZATION_KEY, required = true) String authorization) {
     logger.info(
         "chatWithDataUrl() - received message: " + message + " for sessionId: " + sessionId);
-    Map<String, Object> userMap = getUserMapFromToken(authorization);
+    return startChat(message, sessionId, localDocuments(documents), authorization);
+  }
+
+  /**
+   * Like {@code /v1/firestore/chat}, but sends each agent text part and tool call as a
+   * Server-Sent Event as soon as the agent produces it, followed by a {@code done} or {@code
+   * error} event.
+   */
+  @PostMapping(value = "/v1/firestore/chat/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+  public SseEmitter chatStream(
+      @RequestParam String message,
+      @RequestParam(required = true) String sessionId,
+      @RequestHeader(value = Constants.AUTHORIZATION_KEY, required = true) String authorization) {
+    logger.info("chatStream() - received message: " + message + " for sessionId: " + sessionId);
+    TurnSetup.Turn setup = turnSetup.begin("stream");
+    Map<String, Object> userMap = setup.time("auth", () -> getUserMapFromToken(authorization));
     String userId = userMap.get(Constants.UID_KEY).toString();
-    return doChatTestLocal(userId, message, sessionId, documents, userMap);
+    SseEmitter emitter = new SseEmitter(STREAM_TIMEOUT_MILLIS);
+    long queued = System.nanoTime();
+    turnQueue
+        .submit(
+            turnKey(userId, sessionId),
+            () -> {
+              setup.record("queue", queued);
+              return runStreamTurn(userId, message, sessionId, userMap, setup, emitter);
+            })
+        .whenComplete(
+            (result, error) -> {
+              if (error != null) {
+                // Rejected by the turn queue before the run started, or timed out; the error
+                // ends the emitter, which stops the run.
+                sendError(emitter, sessionId, error);
+              }
+            });
+    return emitter;
   }
 
   @MessageMapping("/conversation/process")
@@ -149,7 +204,8 @@ public class OrchestrationController extends PublicAbstractSecureController {
     try {
       // You can now use the authorization header for validation
       logger.info("Authorization Header received: {}", authorization);
-      Map<String, Object> userMap = getUserMapFromToken(authorization);
+      TurnSetup.Turn setup = turnSetup.begin("voice");
+      Map<String, Object> userMap = setup.time("auth", () -> getUserMapFromToken(authorization));
       int dataLength =
           audioMessage.getAudioData() != null ? audioMessage.getAudioData().length() : 0;
       logger.info("Received audio message of size: {}", dataLength);
@@ -157,19 +213,24 @@ public class OrchestrationController extends PublicAbstractSecureController {
       // 1. Decode and Transcribe User's Audio
       byte[] audioBytes = Base64.getDecoder().decode(audioMessage.getAudioData());
       logger.info("Decoded audio data. Size: {} bytes.", audioBytes.length);
-      Optional<Map<String, Object>> userVoice =
-          userPreferences.getUserPreferences(userMap.get(Constants.UID_KEY).toString());
-      String userTranscript = sttService.transcribe(audioBytes, userVoice);
-      logger.info("User transcript: '{}'", userTranscript);
-
-      // 2. Pass the transcript to the agent via doVoiceOver
       String userId = userMap.get(Constants.UID_KEY).toString();
       String sessionId = audioMessage.getSessionId(); // Use the sessionId from the client
+      // The preferences pick the speech model; the turn loads the session while this runs.
+      CompletableFuture<Optional<Map<String, Object>>> userVoiceFuture =
+          setup.async("preferences", () -> userPreferences.getUserPreferences(userId));
+      CompletableFuture<String> userTranscriptFuture =
+          userVoiceFuture.thenCompose(
+              voice -> setup.async("stt", () -> sttService.transcribe(audioBytes, voice)));
+
+      // 2. Pass the transcript to the agent via doVoiceOver
       CompletableFuture<List<Map<String, String>>> agentResponseFuture =
-          doVoiceOver(userId, userTranscript, sessionId, null, userMap);
+          doVoiceOver(userId, userTranscriptFuture, sessionId, userMap, setup);
 
       // Block and wait for the agent's response.
       List<Map<String, String>> agentResponses = agentResponseFuture.get();
+      String userTranscript = userTranscriptFuture.get();
+      logger.info("User transcript: '{}'", userTranscript);
+      Optional<Map<String, Object>> userVoice = userVoiceFuture.get();
 
       // Concatenate all text parts from the agent's response.
       String geminiResponseText =
@@ -205,18 +266,22 @@ public class OrchestrationController extends PublicAbstractSecureController {
     logger.info("handleTextMessage --- Received request for text message processing.");
 
     try {
-      Map<String, Object> userMap = getUserMapFromToken(authorization);
+      TurnSetup.Turn setup = turnSetup.begin("text");
+      Map<String, Object> userMap = setup.time("auth", () -> getUserMapFromToken(authorization));
       String userTranscript = textMessage.getTextData();
       logger.info("User transcript from text: '{}'", userTranscript);
 
       String userId = userMap.get(Constants.UID_KEY).toString();
       String sessionId = textMessage.getSessionId();
+      // Only needed to speak the reply, so fetched while the agent runs.
+      CompletableFuture<Optional<Map<String, Object>>> userVoiceFuture =
+          setup.async("preferences", () -> userPreferences.getUserPreferences(userId));
       CompletableFuture<List<Map<String, String>>> agentResponseFuture =
-          doVoiceOver(userId, userTranscript, sessionId, null, userMap);
+          doVoiceOver(
+              userId, CompletableFuture.completedFuture(userTranscript), sessionId, userMap, setup);
 
       List<Map<String, String>> agentResponses = agentResponseFuture.get();
-      Optional<Map<String, Object>> userVoice =
-          userPreferences.getUserPreferences(userMap.get(Constants.UID_KEY).toString());
+      Optional<Map<String, Object>> userVoice = userVoiceFuture.get();
       String geminiResponseText =
           agentResponses.stream()
               .filter(response -> "text".equals(response.get("type")))
@@ -235,20 +300,34 @@ public class OrchestrationController extends PublicAbstractSecureController {
     }
   }
 
-  private CompletableFuture<Map<String, Object>> doChatTestLocal(
-      String userId,
-      String message,
-      String sessionId,
-      byte[] documents,
-      Map<String, Object> userMap) {
+  private MultipartFile[] localDocuments(byte[] documents) {
     if (documents != null && documents.length > 0) {
-
-      MultipartFile multipartFile =
-          new MockMultipartFile("file", "uploaded-file", "application/octet-stream", documents);
-      return doChat(userId, message, sessionId, new MultipartFile[] {multipartFile}, userMap);
-    } else {
-      return doChat(userId, message, sessionId, (MultipartFile[]) null, userMap);
+      return new MultipartFile[] {
+        new MockMultipartFile("file", "uploaded-file", "application/octet-stream", documents)
+      };
     }
+    return null;
+  }
+
+  /** Turns of one session are queued, so they never load and change the session at once. */
+  private static String turnKey(String userId, String sessionId) {
+    return userId + "/" + sessionId;
+  }
+
+  /**
+   * Verifies the token, then queues the turn with the documents being read by OCR, so the OCR
+   * overlaps the wait in the queue and the session load. No OCR is started for a rejected token.
+   */
+  private CompletableFuture<Map<String, Object>> startChat(
+      String message, String sessionId, MultipartFile[] documents, String authorization) {
+    TurnSetup.Turn setup = turnSetup.begin("chat");
+    Map<String, Object> userMap = setup.time("auth", () -> getUserMapFromToken(authorization));
+    CompletableFuture<List<Map<String, String>>> documentDetails =
+        documents == null || documents.length == 0
+            ? CompletableFuture.completedFuture(List.of())
+            : setup.async("ocr", () -> readDocuments(documents));
+    String userId = userMap.get(Constants.UID_KEY).toString();
+    return doChat(userId, message, sessionId, documentDetails, userMap, setup);
   }
 
   /*
@@ -258,50 +337,42 @@ public class OrchestrationController extends PublicAbstractSecureController {
       String userId,
       String message,
       String sessionId,
-      MultipartFile[] documents,
-      Map<String, Object> userMap) {
+      CompletableFuture<List<Map<String, String>>> documentDetails,
+      Map<String, Object> userMap,
+      TurnSetup.Turn setup) {
+    long queued = System.nanoTime();
+    return turnQueue.submit(
+        turnKey(userId, sessionId),
+        () -> {
+          setup.record("queue", queued);
+          return runChatTurn(userId, message, sessionId, documentDetails, userMap, setup);
+        });
+  }
+
+  private CompletableFuture<Map<String, Object>> runChatTurn(
+      String userId,
+      String message,
+      String sessionId,
+      CompletableFuture<List<Map<String, String>>> documentDetails,
+      Map<String, Object> userMap,
+      TurnSetup.Turn setup) {
 
     logger.info("doChat() - processing message: " + message + " for sessionId: " + sessionId);
 
     CompletableFuture<Map<String, Object>> future = new CompletableFuture<>();
     List<Map<String, String>> responses = new ArrayList<>();
 
-    // Get session or create a new one if it doesn't exist.
-    // We create a config to ensure all previous events are loaded with the session.
-    GetSessionConfig config = GetSessionConfig.builder().build();
-
-    firestoreDatabaseRunner
-        .sessionService()
-        .getSession(APP_NAME, userId, sessionId, Optional.of(config))
-        .onErrorResumeNext(
-            throwable -> {
-              if (throwable instanceof SessionNotFoundException) {
-                logger.warn("Session not found for {}, creating a new one.", sessionId);
-                ConcurrentMap<String, Object> sessionData = new ConcurrentHashMap<>();
-                sessionData.put(Constants.USER_ID_KEY, userId);
-                sessionData.put(
-                    Constants.GIVEN_NAME_KEY,
-                    userMap.getOrDefault(Constants.GIVEN_NAME_KEY, "unknown-first-name"));
-                sessionData.put(
-                    Constants.SIR_NAME_KEY,
-                    userMap.getOrDefault(Constants.SIR_NAME_KEY, "unknown-last-name"));
-                // add a condition check first to make sure email exist and then add to the
-                // session
-                if (userMap.containsKey(Constants.EMAIL_KEY)) {
-                  logger.debug("email " + userMap.get(Constants.EMAIL_KEY));
-                  sessionData.put(Constants.EMAIL_KEY, userMap.get(Constants.EMAIL_KEY));
-                }
-                return firestoreDatabaseRunner
-                    .sessionService()
-                    .createSession(APP_NAME, userId, sessionData, sessionId)
-                    .toMaybe();
-              } else {
-                return Maybe.error(throwable);
-              }
+    // The session is loaded while OCR may still be running.
+    Single.zip(
+            setup.time("session", sessionForTurn(userId, sessionId, userMap)),
+            Single.fromCompletionStage(documentDetails),
+            (session, details) -> {
+              setup.end();
+              return Map.entry(session, constructUserMessage(message, details, session.id()));
             })
-        .toSingle()
         .subscribe(
-            session -> {
+            prepared -> {
+              Session session = prepared.getKey();
               logger.info("Using session with ID: " + session.id());
 
               // Log the conversation history being sent to the agent
@@ -318,10 +389,8 @@ public class OrchestrationController extends PublicAbstractSecureController {
                       });
               logger.info("------------------------------------------");
 
-              // Construct the message with file parts if they exist.
-              // This now returns both the enriched message and the content for the agent.
-              Map<String, Object> constructedMessage =
-                  constructUserMessage(message, documents, session.id());
+              // Both the enriched message and the content for the agent.
+              Map<String, Object> constructedMessage = prepared.getValue();
               Content finalUserMessage = (Content) constructedMessage.get("content");
               String ocrMessage = (String) constructedMessage.get("ocrResponse");
 
@@ -404,56 +473,46 @@ public class OrchestrationController extends PublicAbstractSecureController {
   }
 
   /*
-   * Common method to handle chat logic with or without file uploads
+   * Common method to handle chat logic for transcribed and typed messages
    */
   private CompletableFuture<List<Map<String, String>>> doVoiceOver(
       String userId,
-      String message,
+      CompletableFuture<String> message,
       String sessionId,
-      MultipartFile[] documents,
-      Map<String, Object> userMap) {
+      Map<String, Object> userMap,
+      TurnSetup.Turn setup) {
+    long queued = System.nanoTime();
+    return turnQueue.submit(
+        turnKey(userId, sessionId),
+        () -> {
+          setup.record("queue", queued);
+          return runVoiceOverTurn(userId, message, sessionId, userMap, setup);
+        });
+  }
 
-    logger.info("doVoiceOver() - processing message: " + message + " for sessionId: " + sessionId);
+  private CompletableFuture<List<Map<String, String>>> runVoiceOverTurn(
+      String userId,
+      CompletableFuture<String> message,
+      String sessionId,
+      Map<String, Object> userMap,
+      TurnSetup.Turn setup) {
+
+    logger.info("doVoiceOver() - processing a message for sessionId: " + sessionId);
 
     CompletableFuture<List<Map<String, String>>> future = new CompletableFuture<>();
     List<Map<String, String>> responses = new ArrayList<>();
 
-    // Get session or create a new one if it doesn't exist.
-    // We create a config to ensure all previous events are loaded with the session.
-    GetSessionConfig config = GetSessionConfig.builder().build();
-
-    firestoreDatabaseRunner
-        .sessionService()
-        .getSession(APP_NAME, userId, sessionId, Optional.of(config))
-        .onErrorResumeNext(
-            throwable -> {
-              if (throwable instanceof SessionNotFoundException) {
-                logger.warn("Session not found for {}, creating a new one.", sessionId);
-                ConcurrentMap<String, Object> sessionData = new ConcurrentHashMap<>();
-                sessionData.put(Constants.USER_ID_KEY, userId);
-                sessionData.put(
-                    Constants.GIVEN_NAME_KEY,
-                    userMap.getOrDefault(Constants.GIVEN_NAME_KEY, "unknown-first-name"));
-                sessionData.put(
-                    Constants.SIR_NAME_KEY,
-                    userMap.getOrDefault(Constants.SIR_NAME_KEY, "unknown-last-name"));
-                // add a condition check first to make sure email exist and then add to the
-                // session
-                if (userMap.containsKey(Constants.EMAIL_KEY)) {
-                  logger.debug("email " + userMap.get(Constants.EMAIL_KEY));
-                  sessionData.put(Constants.EMAIL_KEY, userMap.get(Constants.EMAIL_KEY));
-                }
-                return firestoreDatabaseRunner
-                    .sessionService()
-                    .createSession(APP_NAME, userId, sessionData, sessionId)
-                    .toMaybe();
-              } else {
-                return Maybe.error(throwable);
-              }
+    // The session is loaded while the message may still be transcribed.
+    Single.zip(
+            setup.time("session", sessionForTurn(userId, sessionId, userMap)),
+            Single.fromCompletionStage(message),
+            (session, text) -> {
+              setup.end();
+              return Map.entry(session, constructUserMessage(text, List.of(), session.id()));
             })
-        .toSingle()
         .subscribe(
-            session -> {
+            prepared -> {
+              Session session = prepared.getKey();
               logger.info("Using session with ID: " + session.id());
 
               // Log the conversation history being sent to the agent
@@ -470,10 +529,8 @@ public class OrchestrationController extends PublicAbstractSecureController {
                       });
               logger.info("------------------------------------------");
 
-              // Construct the message with file parts if they exist.
-              // This now returns both the enriched message and the content for the agent.
-              Map<String, Object> constructedMessage =
-                  constructUserMessage(message, documents, session.id());
+              // Both the enriched message and the content for the agent.
+              Map<String, Object> constructedMessage = prepared.getValue();
               Content finalUserMessage = (Content) constructedMessage.get("content");
               String ocrMessage = (String) constructedMessage.get("ocrResponse");
 
@@ -550,36 +607,179 @@ public class OrchestrationController extends PublicAbstractSecureController {
     return future;
   }
 
+  /** Gets the session, or creates it if it doesn't exist, trimmed to the context window. */
+  private Single<Session> sessionForTurn(
+      String userId, String sessionId, Map<String, Object> userMap) {
+    // The context window policy decides how much of the history is loaded for the agent.
+    GetSessionConfig config = contextWindowPolicy.sessionConfig(APP_NAME, userId);
+
+    return firestoreDatabaseRunner
+        .sessionService()
+        .getSession(APP_NAME, userId, sessionId, Optional.of(config))
+        .onErrorResumeNext(
+            throwable -> {
+              if (throwable instanceof SessionNotFoundException) {
+                logger.warn("Session not found for {}, creating a new one.", sessionId);
+                ConcurrentMap<String, Object> sessionData = new ConcurrentHashMap<>();
+                sessionData.put(Constants.USER_ID_KEY, userId);
+                sessionData.put(
+                    Constants.GIVEN_NAME_KEY,
+                    userMap.getOrDefault(Constants.GIVEN_NAME_KEY, "unknown-first-name"));
+                sessionData.put(
+                    Constants.SIR_NAME_KEY,
+                    userMap.getOrDefault(Constants.SIR_NAME_KEY, "unknown-last-name"));
+                // add a condition check first to make sure email exist and then add to the
+                // session
+                if (userMap.containsKey(Constants.EMAIL_KEY)) {
+                  logger.debug("email " + userMap.get(Constants.EMAIL_KEY));
+                  sessionData.put(Constants.EMAIL_KEY, userMap.get(Constants.EMAIL_KEY));
+                }
+                return firestoreDatabaseRunner
+                    .sessionService()
+                    .createSession(APP_NAME, userId, sessionData, sessionId)
+                    .toMaybe();
+              } else {
+                return Maybe.error(throwable);
+              }
+            })
+        .toSingle()
+        .map(contextWindowPolicy::apply);
+  }
+
+  /**
+   * Runs the agent and forwards its events to the emitter. Events are sent from an I/O thread
+   * that requests the next one only once the previous one is written, so a slow client pauses
+   * the run instead of buffering it. Completes when the stream ends, or when the client goes away.
+   */
+  private CompletableFuture<Void> runStreamTurn(
+      String userId,
+      String message,
+      String sessionId,
+      Map<String, Object> userMap,
+      TurnSetup.Turn setup,
+      SseEmitter emitter) {
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    Disposable run =
+        setup
+            .time("session", sessionForTurn(userId, sessionId, userMap))
+            .flatMapPublisher(
+                session -> {
+                  setup.end();
+                  Content userMessage =
+                      (Content)
+                          constructUserMessage(message, List.of(), session.id()).get("content");
+                  return firestoreDatabaseRunner.runAsync(
+                      session, userMessage, RunConfig.builder().build());
+                })
+            .observeOn(Schedulers.io(), false, STREAM_BUFFER_EVENTS)
+            .doFinally(() -> done.complete(null))
+            .subscribe(
+                event -> {
+                  for (SseEmitter.SseEventBuilder streamEvent : streamEvents(event)) {
+                    emitter.send(streamEvent);
+                  }
+                },
+                error -> {
+                  logger.error("Error during agent stream for session {}", sessionId, error);
+                  sendError(emitter, sessionId, error);
+                },
+                () -> {
+                  logger.info(
+                      "chatStream() - end - for session id is {} , and user id is {}.",
+                      sessionId,
+                      userId);
+                  emitter.send(
+                      SseEmitter.event()
+                          .name("done")
+                          .data(Map.of("sessionId", sessionId, "userId", userId)));
+                  emitter.complete();
+                });
+    // The client went away: stop the run, which also frees the session's turn.
+    emitter.onTimeout(run::dispose);
+    emitter.onError(error -> run.dispose());
+    emitter.onCompletion(run::dispose);
+    return done;
+  }
+
+  /** The text parts and tool calls of an agent event, one stream event each. */
+  private static List<SseEmitter.SseEventBuilder> streamEvents(Event event) {
+    List<SseEmitter.SseEventBuilder> streamEvents = new ArrayList<>();
+    for (Part part : event.content().flatMap(Content::parts).orElse(List.of())) {
+      String text = part.text().orElse("");
+      if (text.contains("The model did not return a response")) {
+        // Not shown to the user, as in the non-streaming responses.
+        return List.of();
+      }
+      if (!text.isEmpty()) {
+        streamEvents.add(streamEvent("text", event, "content", text));
+      }
+      part.functionCall()
+          .flatMap(FunctionCall::name)
+          .ifPresent(name -> streamEvents.add(streamEvent("tool_call", event, "name", name)));
+      part.functionResponse()
+          .flatMap(FunctionResponse::name)
+          .ifPresent(name -> streamEvents.add(streamEvent("tool_result", event, "name", name)));
+    }
+    return streamEvents;
+  }
+
+  private static SseEmitter.SseEventBuilder streamEvent(
+      String type, Event event, String field, String value) {
+    return SseEmitter.event()
+        .name(type)
+        .data(Map.of("type", type, "author", event.author(), field, value));
+  }
+
+  private static void sendError(SseEmitter emitter, String sessionId, Throwable error) {
+    try {
+      emitter.send(
+          SseEmitter.event()
+              .name("error")
+              .data(Map.of("sessionId", sessionId, "message", String.valueOf(error.getMessage()))));
+      emitter.complete();
+    } catch (IOException | IllegalStateException e) {
+      // The client is gone or the stream already ended.
+      emitter.completeWithError(error);
+    }
+  }
+
+  /** Reads each document by OCR; documents that cannot be read are logged and left out. */
+  private List<Map<String, String>> readDocuments(MultipartFile[] documents) {
+    logger.info("doChat() - processing " + documents.length + " uploaded documents.");
+    List<Map<String, String>> documentDetails = new ArrayList<>();
+    for (MultipartFile file : documents) {
+      try {
+        byte[] fileBytes = file.getBytes();
+        // Call the OCR service directly from the controller
+        Map<String, String> ocrDetails = OcrCall.callOcrService(fileBytes);
+        if ("success".equals(ocrDetails.get("status"))) {
+          documentDetails.add(ocrDetails);
+        }
+      } catch (Exception e) {
+        logger.error("Error processing uploaded file: " + file.getOriginalFilename(), e);
+      }
+    }
+    return documentDetails;
+  }
+
   private Map<String, Object> constructUserMessage(
-      String message, MultipartFile[] documents, String sessionId) {
+      String message, List<Map<String, String>> documentDetails, String sessionId) {
     List<Part> messageParts = new ArrayList<>();
     StringBuilder enrichedMessage = new StringBuilder(message);
     StringBuilder ocrResponse = new StringBuilder();
     boolean wasEnriched = false;
 
-    if (documents != null && documents.length > 0) {
-      logger.info("doChat() - processing " + documents.length + " uploaded documents.");
-      for (MultipartFile file : documents) {
-        try {
-          byte[] fileBytes = file.getBytes();
-          // Call the OCR service directly from the controller
-          Map<String, String> ocrDetails = OcrCall.callOcrService(fileBytes);
-          if ("success".equals(ocrDetails.get("status"))) {
-            // Enrich the user's message with the extracted text
-            enrichedMessage.append("\n--- user provided information ---");
-            ocrDetails.forEach(
-                (key, value) -> {
-                  if (!"status".equals(key) && value != null && !value.isEmpty()) {
-                    enrichedMessage.append(String.format("\n%s: %s", key, value));
-                    ocrResponse.append(String.format("\n%s: %s", key, value));
-                  }
-                });
-            wasEnriched = true;
-          }
-        } catch (Exception e) {
-          logger.error("Error processing uploaded file: " + file.getOriginalFilename(), e);
-        }
-      }
+    for (Map<String, String> ocrDetails : documentDetails) {
+      // Enrich the user's message with the extracted text
+      enrichedMessage.append("\n--- user provided information ---");
+      ocrDetails.forEach(
+          (key, value) -> {
+            if (!"status".equals(key) && value != null && !value.isEmpty()) {
+              enrichedMessage.append(String.format("\n%s: %s", key, value));
+              ocrResponse.append(String.format("\n%s: %s", key, value));
+            }
+          });
+      wasEnriched = true;
     }
     messageParts.add(Part.fromText(enrichedMessage.toString()));
     logger.info("doChat() - constructed message with " + messageParts.size() + " parts.");
@@ -591,32 +791,21 @@ public class OrchestrationController extends PublicAbstractSecureController {
   }
 
   /**
-   * @param userId
-   * @param message
-   * @param sessionId
    * @param documents
    * @return
    */
-  private CompletableFuture<Map<String, Object>> doChatForFormPost(
-      String userId,
-      String message,
-      String sessionId,
-      byte[] documents,
-      Map<String, Object> userMap) {
+  private MultipartFile[] formPostDocuments(byte[] documents) {
     if (documents != null) {
       // Assuming the 'documents' string is a base64 data URL
       try {
-
         // Create a mock MultipartFile to pass to the existing doChat logic
-        MultipartFile multipartFile =
-            new MockMultipartFile("file", "payment-card.jpg", "image/jpeg", documents);
-        return doChat(userId, message, sessionId, new MultipartFile[] {multipartFile}, userMap);
+        return new MultipartFile[] {
+          new MockMultipartFile("file", "payment-card.jpg", "image/jpeg", documents)
+        };
       } catch (Exception e) {
         logger.error("Error decoding base64 document string", e);
-        return doChat(userId, message, sessionId, (MultipartFile[]) null, userMap);
       }
-    } else {
-      return doChat(userId, message, sessionId, (MultipartFile[]) null, userMap);
     }
+    return null;
   }
 }
@@ -3,6 +3,7 @@ package com.example.garvik.controller;
 import java.util.Map;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
@@ -13,6 +14,7 @@ import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestTemplate;
 
 import com.example.garvik.exception.InvalidTokenException;
+import com.example.garvik.service.TokenIntrospectionCache;
 
 public abstract class PublicAbstractSecureController {
 
@@ -26,16 +28,22 @@ public abstract class PublicAbstractSecureController {
   @Value("${auth.token.identity.domain}")
   private String authTokenIdentityDomain;
 
+  @Autowired private TokenIntrospectionCache tokenCache;
+
   /**
    * @param token
    * @return
    */
   protected Map<String, Object> verifyAndGetTokenDetails(String token) {
-    logger.info("verifyAndGetTokenDetails(token) - Verifying token...");
     if (token == null || token.isEmpty()) {
       throw new InvalidTokenException("Authorization token is missing or empty.");
     }
+    // Recently verified tokens are not sent to the introspection endpoint again.
+    return tokenCache.get(token, this::introspectToken);
+  }
 
+  private Map<String, Object> introspectToken(String token) {
+    logger.info("verifyAndGetTokenDetails(token) - Verifying token...");
     HttpHeaders headers = new HttpHeaders();
     headers.set("Authorization", token);
     HttpEntity<String> entity = new HttpEntity<>(headers);
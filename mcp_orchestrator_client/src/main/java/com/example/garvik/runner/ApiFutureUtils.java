@@ -3,19 +3,107 @@ package com.example.garvik.runner;
 import com.google.api.core.ApiFuture;
 import com.google.api.core.ApiFutureCallback;
 import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Flowable;
 import io.reactivex.rxjava3.core.Maybe;
 import io.reactivex.rxjava3.core.Single;
-import java.util.concurrent.Executors;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Bridges Google {@link ApiFuture}s into RxJava types.
+ *
+ * <p>Completions are delivered on one shared, bounded callback pool rather than on the gRPC
+ * transport threads, so a slow downstream operator cannot stall Firestore I/O. Disposing a
+ * subscriber cancels the underlying future.
+ */
 public class ApiFutureUtils {
 
   private static final Logger logger = LoggerFactory.getLogger(ApiFutureUtils.class);
 
+  private static final int CALLBACK_THREADS =
+      Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+  private static final int CALLBACK_QUEUE_CAPACITY = 10_000;
+
+  private static final LongAdder submitted = new LongAdder();
+  private static final LongAdder completed = new LongAdder();
+  private static final LongAdder callerRuns = new LongAdder();
+
+  private static final ThreadPoolExecutor callbackPool = newCallbackPool();
+
+  /** Counts every task handed to the callback pool. */
+  private static final Executor CALLBACK_EXECUTOR =
+      task -> {
+        submitted.increment();
+        callbackPool.execute(
+            () -> {
+              try {
+                task.run();
+              } finally {
+                completed.increment();
+              }
+            });
+      };
+
+  private ApiFutureUtils() {}
+
+  private static ThreadPoolExecutor newCallbackPool() {
+    AtomicInteger threadCount = new AtomicInteger();
+    ThreadPoolExecutor pool =
+        new ThreadPoolExecutor(
+            CALLBACK_THREADS,
+            CALLBACK_THREADS,
+            60,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(CALLBACK_QUEUE_CAPACITY),
+            runnable -> {
+              Thread thread =
+                  new Thread(runnable, "firestore-callback-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            },
+            (task, executor) -> {
+              // Saturated: run on the completing thread instead of dropping the callback.
+              callerRuns.increment();
+              if (!executor.isShutdown()) {
+                task.run();
+              }
+            });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /** The shared executor for continuations that must not run on a gRPC thread. */
+  public static Executor callbackExecutor() {
+    return CALLBACK_EXECUTOR;
+  }
+
+  /**
+   * Executor for cheap, non-blocking transforms such as {@code QuerySnapshot::getDocuments}; runs
+   * them on whichever thread completes the future.
+   */
+  public static Executor directExecutor() {
+    return MoreExecutors.directExecutor();
+  }
+
   public static <T> Single<T> toSingle(ApiFuture<T> future) {
     return Single.create(
         emitter -> {
+          emitter.setCancellable(() -> future.cancel(false));
           ApiFutures.addCallback(
               future,
               new ApiFutureCallback<T>() {
@@ -27,16 +115,79 @@ public class ApiFutureUtils {
 
                 @Override
                 public void onFailure(Throwable t) {
+                  if (emitter.isDisposed()) {
+                    return; // Cancelled by the subscriber; nothing to report.
+                  }
                   // Log the failure of the future before passing it down the reactive chain.
                   logger.error("ApiFuture failed with an exception.", t);
                   emitter.onError(t);
                 }
               },
-              Executors.newSingleThreadExecutor());
+              CALLBACK_EXECUTOR);
         });
   }
 
   public static <T> Maybe<T> toMaybe(ApiFuture<T> future) {
     return toSingle(future).toMaybe();
   }
+
+  public static Completable toCompletable(ApiFuture<?> future) {
+    return toSingle(future).ignoreElement();
+  }
+
+  /** Emits the elements of a future list, e.g. the documents of a query. */
+  public static <T> Flowable<T> toFlowable(ApiFuture<List<T>> future) {
+    return toSingle(future).flattenAsFlowable(items -> items);
+  }
+
+  /** Runs the query when subscribed and emits its documents. */
+  public static Flowable<QueryDocumentSnapshot> documents(Query query) {
+    return Flowable.defer(
+        () ->
+            toFlowable(
+                ApiFutures.transform(
+                    query.get(), QuerySnapshot::getDocuments, directExecutor())));
+  }
+
+  /**
+   * Pages through an ordered query with {@code startAfter} cursors. A page is read when the
+   * previous one has been emitted, so a slow consumer holds back the reads.
+   */
+  public static Flowable<List<QueryDocumentSnapshot>> pages(Query orderedQuery, int pageSize) {
+    Query limited = orderedQuery.limit(pageSize);
+    return Flowable.defer(
+        () -> {
+          AtomicReference<QueryDocumentSnapshot> cursor = new AtomicReference<>();
+          return Single.defer(
+                  () -> {
+                    QueryDocumentSnapshot last = cursor.get();
+                    Query page = last == null ? limited : limited.startAfter(last);
+                    return toSingle(
+                        ApiFutures.transform(
+                            page.get(), QuerySnapshot::getDocuments, directExecutor()));
+                  })
+              .doOnSuccess(
+                  documents -> {
+                    if (!documents.isEmpty()) {
+                      cursor.set(documents.get(documents.size() - 1));
+                    }
+                  })
+              .repeat()
+              .takeUntil(documents -> documents.size() < pageSize)
+              .filter(documents -> !documents.isEmpty());
+        });
+  }
+
+  /** Point-in-time counters of the shared callback pool. */
+  public static Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("poolSize", callbackPool.getPoolSize());
+    stats.put("maxPoolSize", callbackPool.getMaximumPoolSize());
+    stats.put("activeThreads", callbackPool.getActiveCount());
+    stats.put("queueDepth", callbackPool.getQueue().size());
+    stats.put("submitted", submitted.sum());
+    stats.put("completed", completed.sum());
+    stats.put("callerRuns", callerRuns.sum());
+    return stats;
+  }
 }
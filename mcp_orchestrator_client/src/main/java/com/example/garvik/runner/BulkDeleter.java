@@ -0,0 +1,106 @@
+package com.example.garvik.runner;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.BulkWriter;
+import com.google.cloud.firestore.BulkWriterOptions;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.WriteResult;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.core.Single;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes large sets of Firestore documents in constant memory.
+ *
+ * <p>Documents are read one page at a time, keys only, ordered by document id. Each page is handed
+ * to a rate-limited {@link BulkWriter}, which sends it in parallel batches, and must be
+ * acknowledged before the next page is deleted, so at most two pages are held in memory. Progress
+ * and throughput are logged after every page.
+ */
+public class BulkDeleter {
+
+  private static final org.slf4j.Logger logger =
+      org.slf4j.LoggerFactory.getLogger(BulkDeleter.class);
+
+  private final Firestore db;
+  private final int pageSize;
+  private final int maxOpsPerSecond;
+
+  /**
+   * @param pageSize documents read and deleted per round trip.
+   * @param maxOpsPerSecond cap on the BulkWriter's write rate, which ramps up to it.
+   */
+  public BulkDeleter(Firestore db, int pageSize, int maxOpsPerSecond) {
+    this.db = db;
+    this.pageSize = pageSize;
+    this.maxOpsPerSecond = maxOpsPerSecond;
+  }
+
+  /** Pages through the documents matched by the query, keys only, in document id order. */
+  public Flowable<List<QueryDocumentSnapshot>> pages(Query query) {
+    return ApiFutureUtils.pages(
+        query.select(new FieldPath[0]).orderBy(FieldPath.documentId()), pageSize);
+  }
+
+  /**
+   * Deletes every document matched by the query and returns how many were deleted.
+   * Subcollections of the deleted documents are not touched.
+   */
+  public Single<Long> delete(Query query, String description) {
+    return Single.defer(
+        () -> {
+          BulkWriter writer =
+              db.bulkWriter(
+                  BulkWriterOptions.builder().setMaxOpsPerSecond(maxOpsPerSecond).build());
+          AtomicLong deleted = new AtomicLong();
+          long started = System.nanoTime();
+          return pages(query)
+              .concatMapCompletable(
+                  page -> {
+                    List<DocumentReference> refs = new ArrayList<>(page.size());
+                    for (QueryDocumentSnapshot document : page) {
+                      refs.add(document.getReference());
+                    }
+                    return deleteAll(writer, refs)
+                        .doOnComplete(
+                            () ->
+                                logProgress(
+                                    description, deleted.addAndGet(refs.size()), started));
+                  },
+                  1)
+              .doFinally(writer::close)
+              .toSingle(deleted::get);
+        });
+  }
+
+  /** Deletes the given documents through the writer and completes once all are acknowledged. */
+  public Completable deleteAll(BulkWriter writer, List<DocumentReference> refs) {
+    return Completable.defer(
+        () -> {
+          List<ApiFuture<WriteResult>> results = new ArrayList<>(refs.size());
+          for (DocumentReference ref : refs) {
+            results.add(writer.delete(ref));
+          }
+          writer.flush();
+          return ApiFutureUtils.toCompletable(ApiFutures.allAsList(results));
+        });
+  }
+
+  private static void logProgress(String description, long deleted, long startedNanos) {
+    double seconds = Math.max((System.nanoTime() - startedNanos) / 1e9, 0.001);
+    logger.info(
+        "Deleting {}: {} documents in {}s ({} docs/s)",
+        description,
+        deleted,
+        String.format("%.1f", seconds),
+        String.format("%.0f", deleted / seconds));
+  }
+}
@@ -0,0 +1,314 @@
+package com.example.garvik.runner;
+
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentChange;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreException;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.cloud.firestore.QuerySnapshot;
+import com.google.cloud.firestore.WriteResult;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the in-process caches of several replicas coherent through a change-feed collection.
+ *
+ * <p>A replica that writes something other replicas may have cached publishes its key here. Keys
+ * are collected for a short interval and written as one feed document, so a busy replica writes a
+ * few documents a second at most. Every replica listens to the documents added to the feed since
+ * it started and drops the published keys from its caches, which bounds their staleness to the
+ * flush interval plus the listener's delivery lag.
+ *
+ * <p>The listener is replaced periodically, starting a little before the time it was replaced, so
+ * its result set only holds recent documents; replaying an invalidation is harmless. If the
+ * listener fails, every cache is cleared, as invalidations may have been missed, and it is
+ * subscribed again. Feed documents carry an {@code expireAt} field for a Firestore TTL policy.
+ */
+public class CacheInvalidationFeed implements AutoCloseable {
+
+  private static final org.slf4j.Logger logger =
+      org.slf4j.LoggerFactory.getLogger(CacheInvalidationFeed.class);
+
+  private static final String FEED_COLLECTION_NAME = "adk-cache-invalidations";
+
+  /** Keys per feed document, well below the document size limit. */
+  private static final int MAX_KEYS_PER_DOCUMENT = 500;
+
+  /** How far back a new listener starts, to cover clock skew and the previous listener's lag. */
+  private static final Duration LISTEN_OVERLAP = Duration.ofSeconds(10);
+
+  /** Delay before a failed listener is subscribed again. */
+  private static final Duration RESUBSCRIBE_DELAY = Duration.ofSeconds(5);
+
+  /** What a published key identifies. */
+  public enum Scope {
+    /** A session and its events; the key is {@code userId/sessionId}. */
+    SESSION,
+    /** The app-wide state; the key is the app name. */
+    APP_STATE,
+    /** A user's state in an app; the key is {@code appName/userId}. */
+    USER_STATE,
+    /** Everything cached for an app; the key is the app name. */
+    APP,
+    /** A user's preferences; the key is the user id. */
+    USER_PREFERENCES
+  }
+
+  /** Drops the entries other replicas have changed. Called on the feed's thread. */
+  public interface Handler {
+    void invalidate(Scope scope, String key);
+
+    /** Drops every entry, because invalidations may have been missed. */
+    void invalidateAll();
+  }
+
+  private final Firestore db;
+  private final String origin = UUID.randomUUID().toString();
+  private final Duration flushInterval;
+  private final Duration resubscribeInterval;
+  private final Duration retention;
+  private final List<Handler> handlers = new CopyOnWriteArrayList<>();
+  private final Map<Scope, Set<String>> pending = new EnumMap<>(Scope.class);
+  private final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "cache-invalidation-feed");
+            thread.setDaemon(true);
+            return thread;
+          });
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicLong documentsWritten = new AtomicLong();
+  private final AtomicLong writeFailures = new AtomicLong();
+  private final AtomicLong received = new AtomicLong();
+  private final AtomicLong listenerFailures = new AtomicLong();
+  private final AtomicLong subscriptions = new AtomicLong();
+
+  // Only touched on the scheduler thread.
+  private ListenerRegistration registration;
+
+  /**
+   * @param flushInterval how long published keys are collected before they are written.
+   * @param resubscribeInterval how often the listener is replaced to keep its result set small.
+   * @param retention how long feed documents are kept, through their {@code expireAt} field.
+   */
+  public CacheInvalidationFeed(
+      Firestore db, Duration flushInterval, Duration resubscribeInterval, Duration retention) {
+    this.db = db;
+    this.flushInterval = flushInterval;
+    this.resubscribeInterval = resubscribeInterval;
+    this.retention = retention;
+    for (Scope scope : Scope.values()) {
+      pending.put(scope, ConcurrentHashMap.newKeySet());
+    }
+  }
+
+  public void addHandler(Handler handler) {
+    handlers.add(handler);
+  }
+
+  /** Starts listening to other replicas and writing this replica's invalidations. */
+  public void start() {
+    scheduler.execute(() -> subscribe(Instant.now().minus(LISTEN_OVERLAP)));
+    scheduler.scheduleWithFixedDelay(
+        this::flush,
+        flushInterval.toMillis(),
+        flushInterval.toMillis(),
+        TimeUnit.MILLISECONDS);
+    scheduler.scheduleWithFixedDelay(
+        () -> subscribe(Instant.now().minus(LISTEN_OVERLAP)),
+        resubscribeInterval.toMillis(),
+        resubscribeInterval.toMillis(),
+        TimeUnit.MILLISECONDS);
+    logger.info("Cache invalidation feed started as replica {}", origin);
+  }
+
+  /** Tells the other replicas that the entry changed; never blocks. */
+  public void publish(Scope scope, String key) {
+    if (pending.get(scope).add(key)) {
+      published.incrementAndGet();
+    }
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("publishedCount", published.get());
+    stats.put("documentsWritten", documentsWritten.get());
+    stats.put("writeFailureCount", writeFailures.get());
+    stats.put("receivedCount", received.get());
+    stats.put("listenerFailureCount", listenerFailures.get());
+    stats.put("subscriptionCount", subscriptions.get());
+    return stats;
+  }
+
+  /** Writes the invalidations still pending and stops listening. */
+  @Override
+  public void close() {
+    scheduler.execute(
+        () -> {
+          flush();
+          if (registration != null) {
+            registration.remove();
+            registration = null;
+          }
+        });
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Writes the pending keys, {@link #MAX_KEYS_PER_DOCUMENT} per feed document. */
+  private void flush() {
+    Map<String, Object> keys = new HashMap<>();
+    int count = 0;
+    for (Map.Entry<Scope, Set<String>> entry : pending.entrySet()) {
+      List<String> scopeKeys = new ArrayList<>();
+      Iterator<String> it = entry.getValue().iterator();
+      while (it.hasNext()) {
+        scopeKeys.add(it.next());
+        it.remove();
+        if (++count == MAX_KEYS_PER_DOCUMENT) {
+          keys.put(entry.getKey().name(), scopeKeys);
+          write(keys);
+          keys = new HashMap<>();
+          scopeKeys = new ArrayList<>();
+          count = 0;
+        }
+      }
+      if (!scopeKeys.isEmpty()) {
+        keys.put(entry.getKey().name(), scopeKeys);
+      }
+    }
+    if (count > 0) {
+      write(keys);
+    }
+  }
+
+  private void write(Map<String, Object> keys) {
+    Map<String, Object> data = new HashMap<>();
+    data.put("origin", origin);
+    data.put("time", FieldValue.serverTimestamp());
+    data.put("expireAt", Timestamp.of(Date.from(Instant.now().plus(retention))));
+    data.put("keys", keys);
+    DocumentReference ref = db.collection(FEED_COLLECTION_NAME).document();
+    ApiFutures.addCallback(
+        ref.set(data),
+        new ApiFutureCallback<WriteResult>() {
+          @Override
+          public void onSuccess(WriteResult result) {
+            documentsWritten.incrementAndGet();
+          }
+
+          @Override
+          public void onFailure(Throwable error) {
+            // Other replicas see the change once their entries expire.
+            writeFailures.incrementAndGet();
+            logger.warn("Failed to publish cache invalidations {}", keys, error);
+          }
+        },
+        ApiFutureUtils.callbackExecutor());
+  }
+
+  /**
+   * Listens to the feed documents written since {@code from}. The previous listener is removed
+   * once the new one has delivered its first snapshot, so no document falls between the two.
+   */
+  private void subscribe(Instant from) {
+    ListenerRegistration previous = registration;
+    ListenerRegistration[] self = {null};
+    boolean[] first = {true};
+    self[0] =
+        db.collection(FEED_COLLECTION_NAME)
+            .whereGreaterThan("time", Timestamp.of(Date.from(from)))
+            .addSnapshotListener(
+                scheduler,
+                (snapshot, error) -> {
+                  if (error != null) {
+                    onListenerFailure(self[0], error);
+                    return;
+                  }
+                  apply(snapshot);
+                  if (first[0] && previous != null) {
+                    previous.remove();
+                  }
+                  first[0] = false;
+                });
+    registration = self[0];
+    subscriptions.incrementAndGet();
+  }
+
+  private void onListenerFailure(ListenerRegistration failed, FirestoreException error) {
+    listenerFailures.incrementAndGet();
+    logger.warn("Cache invalidation listener failed; clearing caches", error);
+    for (Handler handler : handlers) {
+      handler.invalidateAll();
+    }
+    failed.remove();
+    if (failed != registration) {
+      // A newer listener has taken over.
+      return;
+    }
+    Instant from = Instant.now().minus(LISTEN_OVERLAP);
+    registration = null;
+    scheduler.schedule(
+        () -> {
+          if (registration == null) {
+            subscribe(from);
+          }
+        },
+        RESUBSCRIBE_DELAY.toMillis(),
+        TimeUnit.MILLISECONDS);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void apply(QuerySnapshot snapshot) {
+    for (DocumentChange change : snapshot.getDocumentChanges()) {
+      if (change.getType() != DocumentChange.Type.ADDED
+          || origin.equals(change.getDocument().getString("origin"))) {
+        continue;
+      }
+      Object keys = change.getDocument().get("keys");
+      if (!(keys instanceof Map)) {
+        continue;
+      }
+      ((Map<String, Object>) keys)
+          .forEach(
+              (scopeName, scopeKeys) -> {
+                Scope scope;
+                try {
+                  scope = Scope.valueOf(scopeName);
+                } catch (IllegalArgumentException e) {
+                  // Written by a newer replica.
+                  return;
+                }
+                for (Object key : (List<Object>) scopeKeys) {
+                  received.incrementAndGet();
+                  for (Handler handler : handlers) {
+                    handler.invalidate(scope, String.valueOf(key));
+                  }
+                }
+              });
+    }
+  }
+}
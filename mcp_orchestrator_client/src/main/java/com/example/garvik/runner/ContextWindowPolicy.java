@@ -0,0 +1,146 @@
+package com.example.garvik.runner;
+
+import com.google.adk.events.Event;
+import com.google.adk.sessions.GetSessionConfig;
+import com.google.adk.sessions.Session;
+import com.google.genai.types.Content;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Decides how much conversation history is handed to the agent for a turn.
+ *
+ * <p>Limits are resolved per field: a user override wins over an app override, which wins over the
+ * defaults; an unset limit means unlimited. The window always ends at the newest event and never
+ * starts between a function call and its function response.
+ */
+public class ContextWindowPolicy {
+
+  private static final org.slf4j.Logger logger =
+      org.slf4j.LoggerFactory.getLogger(ContextWindowPolicy.class);
+
+  /** Rough characters-per-token ratio used to estimate prompt size without a tokenizer. */
+  private static final int CHARS_PER_TOKEN = 4;
+
+  /** History limits; a null field is not set and falls through to the next level. */
+  public static final class Limits {
+    private final Integer maxEvents;
+    private final Integer maxTurns;
+    private final Integer maxTokens;
+
+    public Limits(Integer maxEvents, Integer maxTurns, Integer maxTokens) {
+      this.maxEvents = maxEvents;
+      this.maxTurns = maxTurns;
+      this.maxTokens = maxTokens;
+    }
+
+    private Limits orElse(Limits fallback) {
+      if (fallback == null) {
+        return this;
+      }
+      return new Limits(
+          maxEvents != null ? maxEvents : fallback.maxEvents,
+          maxTurns != null ? maxTurns : fallback.maxTurns,
+          maxTokens != null ? maxTokens : fallback.maxTokens);
+    }
+  }
+
+  private final Limits defaults;
+  private final Map<String, Limits> appLimits;
+  private final Map<String, Limits> userLimits;
+
+  public ContextWindowPolicy(
+      Limits defaults, Map<String, Limits> appLimits, Map<String, Limits> userLimits) {
+    this.defaults = defaults;
+    this.appLimits = appLimits;
+    this.userLimits = userLimits;
+  }
+
+  public Limits limitsFor(String appName, String userId) {
+    Limits limits = defaults;
+    if (appLimits.containsKey(appName)) {
+      limits = appLimits.get(appName).orElse(limits);
+    }
+    if (userLimits.containsKey(userId)) {
+      limits = userLimits.get(userId).orElse(limits);
+    }
+    return limits;
+  }
+
+  /** The config to load the session with: only the newest {@code maxEvents} events, if set. */
+  public GetSessionConfig sessionConfig(String appName, String userId) {
+    Limits limits = limitsFor(appName, userId);
+    GetSessionConfig.Builder builder = GetSessionConfig.builder();
+    if (limits.maxEvents != null && limits.maxEvents > 0) {
+      builder.numRecentEvents(limits.maxEvents);
+    }
+    return builder.build();
+  }
+
+  /** Trims the session's events in place to the turn and token limits. */
+  public Session apply(Session session) {
+    Limits limits = limitsFor(session.appName(), session.userId());
+    List<Event> events = session.events();
+    int total = events.size();
+    int start = 0;
+
+    if (limits.maxTurns != null && limits.maxTurns > 0) {
+      int turns = 0;
+      for (int i = events.size() - 1; i >= 0; i--) {
+        if (startsTurn(events.get(i), session.userId()) && ++turns == limits.maxTurns) {
+          start = i;
+          break;
+        }
+      }
+    }
+
+    if (limits.maxTokens != null && limits.maxTokens > 0) {
+      long tokens = 0;
+      for (int i = events.size() - 1; i >= start; i--) {
+        tokens += estimateTokens(events.get(i));
+        if (tokens > limits.maxTokens) {
+          // Always keep at least the newest event.
+          start = Math.min(i + 1, events.size() - 1);
+          break;
+        }
+      }
+    }
+
+    start = keepFunctionPairs(events, Math.min(start, events.size() - 1));
+    if (start > 0) {
+      events.subList(0, start).clear();
+    }
+    // A window cut by the loader itself may begin with a response whose call was not loaded.
+    while (!events.isEmpty() && !events.get(0).functionResponses().isEmpty()) {
+      events.remove(0);
+    }
+    if (events.size() < total) {
+      logger.info(
+          "Context window for session {}: kept {} of {} events",
+          session.id(),
+          events.size(),
+          total);
+    }
+    return session;
+  }
+
+  /** Moves the window start back so function responses keep the call that produced them. */
+  private static int keepFunctionPairs(List<Event> events, int start) {
+    while (start > 0 && !events.get(start).functionResponses().isEmpty()) {
+      start--;
+    }
+    return Math.max(start, 0);
+  }
+
+  /** A turn starts with a message from the user that is not a function response. */
+  private static boolean startsTurn(Event event, String userId) {
+    return (event.author().equalsIgnoreCase(userId) || "user".equalsIgnoreCase(event.author()))
+        && event.functionResponses().isEmpty();
+  }
+
+  private static long estimateTokens(Event event) {
+    Optional<Content> content = event.content();
+    return content.map(value -> (long) value.toJson().length() / CHARS_PER_TOKEN).orElse(0L) + 1;
+  }
+}
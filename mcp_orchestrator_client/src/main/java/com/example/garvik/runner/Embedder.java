@@ -0,0 +1,10 @@
+package com.example.garvik.runner;
+
+/** Turns text into a vector for semantic memory search. */
+public interface Embedder {
+
+  int dimensions();
+
+  /** Returns a unit-length vector, or all zeros when the text has nothing to embed. */
+  float[] embed(String text);
+}
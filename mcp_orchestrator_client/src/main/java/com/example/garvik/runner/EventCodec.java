@@ -0,0 +1,259 @@
+package com.example.garvik.runner;
+
+import com.google.adk.JsonBaseModel;
+import com.google.adk.events.Event;
+import com.google.adk.events.EventActions;
+import com.google.cloud.firestore.Blob;
+import com.google.genai.types.Content;
+import com.google.genai.types.FinishReason;
+import com.google.genai.types.GroundingMetadata;
+import com.google.genai.types.Part;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Versioned binary encoding of a complete {@link Event}, stored in the {@code payload} field of an
+ * event document next to the few top-level fields that queries filter on.
+ *
+ * <p>The payload is a version byte followed by a message in protobuf wire format. Plain text parts,
+ * by far the most common, are stored as raw strings; other parts, the event actions and grounding
+ * metadata are stored as their JSON form. Parts are decoded lazily, on first access.
+ */
+public class EventCodec {
+
+  /** Event document field holding the encoded event. */
+  public static final String PAYLOAD_FIELD = "payload";
+
+  private static final byte VERSION = 1;
+
+  // Event fields.
+  private static final int ID = 1;
+  private static final int INVOCATION_ID = 2;
+  private static final int AUTHOR = 3;
+  private static final int TIMESTAMP = 4;
+  private static final int BRANCH = 5;
+  private static final int PARTIAL = 6;
+  private static final int TURN_COMPLETE = 7;
+  private static final int INTERRUPTED = 8;
+  private static final int ERROR_CODE = 9;
+  private static final int ERROR_MESSAGE = 10;
+  private static final int ROLE = 11;
+  private static final int PART = 12;
+  private static final int ACTIONS_JSON = 13;
+  private static final int LONG_RUNNING_TOOL_ID = 14;
+  private static final int GROUNDING_METADATA_JSON = 15;
+  private static final int HAS_CONTENT = 16;
+
+  // Part fields.
+  private static final int PART_TEXT = 1;
+  private static final int PART_JSON = 2;
+
+  /** How new event documents are written; documents in either form are always readable. */
+  public enum Encoding {
+    /** Nested maps under {@code content}, as written before the binary payload existed. */
+    MAP,
+    /** A {@link #PAYLOAD_FIELD} blob holding the whole event. */
+    BINARY
+  }
+
+  private static final EventActions EMPTY_ACTIONS = EventActions.builder().build();
+
+  private final Encoding encoding;
+
+  public EventCodec(Encoding encoding) {
+    this.encoding = encoding;
+  }
+
+  public Encoding encoding() {
+    return encoding;
+  }
+
+  public static boolean hasPayload(Map<String, Object> data) {
+    return data != null && data.get(PAYLOAD_FIELD) instanceof Blob;
+  }
+
+  public Blob encode(Event event) {
+    return encode(event, event.author());
+  }
+
+  /**
+   * Encodes {@code event} with {@code author} in place of its own, so the payload carries the same
+   * author as the event document's top-level {@code author} field.
+   */
+  public Blob encode(Event event, String author) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+      bytes.write(VERSION);
+      CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+      writeString(out, ID, event.id());
+      writeString(out, INVOCATION_ID, event.invocationId());
+      writeString(out, AUTHOR, author);
+      out.writeInt64(TIMESTAMP, event.timestamp());
+      writeString(out, BRANCH, event.branch().orElse(null));
+      if (event.partial().isPresent()) {
+        out.writeBool(PARTIAL, event.partial().get());
+      }
+      if (event.turnComplete().isPresent()) {
+        out.writeBool(TURN_COMPLETE, event.turnComplete().get());
+      }
+      if (event.interrupted().isPresent()) {
+        out.writeBool(INTERRUPTED, event.interrupted().get());
+      }
+      writeString(out, ERROR_CODE, event.errorCode().map(FinishReason::toString).orElse(null));
+      writeString(out, ERROR_MESSAGE, event.errorMessage().orElse(null));
+      if (event.content().isPresent()) {
+        Content content = event.content().get();
+        out.writeBool(HAS_CONTENT, true);
+        writeString(out, ROLE, content.role().orElse(null));
+        for (Part part : content.parts().orElse(List.of())) {
+          out.writeBytes(PART, encodePart(part));
+        }
+      }
+      if (event.actions() != null && !EMPTY_ACTIONS.equals(event.actions())) {
+        out.writeByteArray(
+            ACTIONS_JSON, JsonBaseModel.getMapper().writeValueAsBytes(event.actions()));
+      }
+      for (String toolId : event.longRunningToolIds().orElse(Set.of())) {
+        out.writeString(LONG_RUNNING_TOOL_ID, toolId);
+      }
+      writeString(
+          out,
+          GROUNDING_METADATA_JSON,
+          event.groundingMetadata().map(GroundingMetadata::toJson).orElse(null));
+      out.flush();
+      return Blob.fromBytes(bytes.toByteArray());
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to encode event " + event.id(), e);
+    }
+  }
+
+  /** Decodes a payload written by {@link #encode}; the parts are decoded on first access. */
+  public static Event decode(Blob payload) {
+    ByteString bytes = payload.toByteString();
+    if (bytes.isEmpty() || bytes.byteAt(0) != VERSION) {
+      throw new IllegalArgumentException(
+          "Unsupported event payload version: " + (bytes.isEmpty() ? "empty" : bytes.byteAt(0)));
+    }
+    try {
+      CodedInputStream in = bytes.substring(1).newCodedInput();
+      Event.Builder builder = Event.builder();
+      boolean hasContent = false;
+      String role = null;
+      List<ByteString> parts = new ArrayList<>();
+      Set<String> longRunningToolIds = new HashSet<>();
+      int tag;
+      while ((tag = in.readTag()) != 0) {
+        switch (WireFormat.getTagFieldNumber(tag)) {
+          case ID -> builder.id(in.readString());
+          case INVOCATION_ID -> builder.invocationId(in.readString());
+          case AUTHOR -> builder.author(in.readString());
+          case TIMESTAMP -> builder.timestamp(in.readInt64());
+          case BRANCH -> builder.branch(in.readString());
+          case PARTIAL -> builder.partial(in.readBool());
+          case TURN_COMPLETE -> builder.turnComplete(in.readBool());
+          case INTERRUPTED -> builder.interrupted(in.readBool());
+          case ERROR_CODE -> builder.errorCode(new FinishReason(in.readString()));
+          case ERROR_MESSAGE -> builder.errorMessage(in.readString());
+          case HAS_CONTENT -> hasContent = in.readBool();
+          case ROLE -> role = in.readString();
+          case PART -> parts.add(in.readBytes());
+          case ACTIONS_JSON ->
+              builder.actions(
+                  JsonBaseModel.getMapper()
+                      .readValue(in.readByteArray(), EventActions.class));
+          case LONG_RUNNING_TOOL_ID -> longRunningToolIds.add(in.readString());
+          case GROUNDING_METADATA_JSON ->
+              builder.groundingMetadata(GroundingMetadata.fromJson(in.readString()));
+          default -> in.skipField(tag); // Written by a newer version; ignored.
+        }
+      }
+      if (hasContent) {
+        Content.Builder content = Content.builder().parts(new LazyParts(parts));
+        if (role != null) {
+          content.role(role);
+        }
+        builder.content(content.build());
+      }
+      if (!longRunningToolIds.isEmpty()) {
+        builder.longRunningToolIds(longRunningToolIds);
+      }
+      return builder.build();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to decode event payload", e);
+    }
+  }
+
+  private static void writeString(CodedOutputStream out, int field, String value)
+      throws IOException {
+    if (value != null) {
+      out.writeString(field, value);
+    }
+  }
+
+  private static ByteString encodePart(Part part) throws IOException {
+    ByteString.Output bytes = ByteString.newOutput();
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    if (part.text().isPresent() && part.equals(Part.fromText(part.text().get()))) {
+      out.writeString(PART_TEXT, part.text().get());
+    } else {
+      out.writeString(PART_JSON, part.toJson());
+    }
+    out.flush();
+    return bytes.toByteString();
+  }
+
+  private static Part decodePart(ByteString encoded) {
+    try {
+      CodedInputStream in = encoded.newCodedInput();
+      Part part = null;
+      int tag;
+      while ((tag = in.readTag()) != 0) {
+        switch (WireFormat.getTagFieldNumber(tag)) {
+          case PART_TEXT -> part = Part.fromText(in.readString());
+          case PART_JSON -> part = Part.fromJson(in.readString());
+          default -> in.skipField(tag);
+        }
+      }
+      return part != null ? part : Part.builder().build();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to decode event part", e);
+    }
+  }
+
+  /** Parts kept in encoded form until they are read, e.g. only the last few are sent to a model. */
+  private static final class LazyParts extends AbstractList<Part> {
+    private final List<ByteString> encoded;
+    private final Part[] decoded;
+
+    private LazyParts(List<ByteString> encoded) {
+      this.encoded = encoded;
+      this.decoded = new Part[encoded.size()];
+    }
+
+    @Override
+    public Part get(int index) {
+      Part part = decoded[index];
+      if (part == null) {
+        part = decodePart(encoded.get(index));
+        decoded[index] = part;
+      }
+      return part;
+    }
+
+    @Override
+    public int size() {
+      return encoded.size();
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package com.example.garvik.runner;
+
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the sequence numbers of session events, stored numerically in each event's {@link
+ * #SEQ_FIELD}, so events are ordered and read incrementally by a single indexed integer instead of
+ * by timestamp.
+ *
+ * <p>Numbers are allocated by {@link EventWriteBuffer} from blocks that each invocation reserves
+ * against the session's {@link #LAST_SEQ_FIELD}, so they increase but may skip. The last number of
+ * recently used sessions is held here only as a hint: it is learned from reads and commits and
+ * tells a cached session where to resume reading. A hint that is behind merely re-reads events
+ * already cached. Sessions created before sequence numbers were introduced carry no {@link
+ * #SEQUENCED_FIELD} flag and keep being ordered by timestamp.
+ */
+public class EventSequencer {
+
+  /** Field of an event document holding its sequence number, starting at 1. */
+  public static final String SEQ_FIELD = "seq";
+
+  /** Field of a session document set when all of its events carry a sequence number. */
+  public static final String SEQUENCED_FIELD = "sequenced";
+
+  /** Field of a session document holding the last sequence number reserved for its events. */
+  public static final String LAST_SEQ_FIELD = "lastSeq";
+
+  /** Counter value of a session whose events are not numbered. */
+  private static final long UNSEQUENCED = -1;
+
+  private final Cache<String, AtomicLong> counters;
+
+  /**
+   * @param maxSessions most sessions whose last sequence number is held in memory.
+   * @param expireAfterAccess idle time after which a session's number is forgotten.
+   */
+  public EventSequencer(long maxSessions, Duration expireAfterAccess) {
+    this.counters =
+        CacheBuilder.newBuilder()
+            .maximumSize(maxSessions)
+            .expireAfterAccess(expireAfterAccess)
+            .build();
+  }
+
+  public static boolean isSequenced(DocumentSnapshot session) {
+    return Boolean.TRUE.equals(session.getBoolean(SEQUENCED_FIELD));
+  }
+
+  /** The sequence number of a stored event, or 0 if it has none. */
+  public static long seqOf(DocumentSnapshot event) {
+    Long seq = event.getLong(SEQ_FIELD);
+    return seq == null ? 0 : seq;
+  }
+
+  /**
+   * Records that the session's events are numbered up to {@code lastSeq}, or not numbered at all.
+   * Never moves a known number backwards, so a read that raced an append is harmless.
+   */
+  public void observe(String key, boolean sequenced, long lastSeq) {
+    counter(key, sequenced ? lastSeq : UNSEQUENCED);
+  }
+
+  /** The number of the newest event of the session known to this node, if it is sequenced. */
+  public Optional<Long> last(String key) {
+    AtomicLong counter = counters.getIfPresent(key);
+    return counter == null || counter.get() == UNSEQUENCED
+        ? Optional.empty()
+        : Optional.of(counter.get());
+  }
+
+  /** Drops the session's number, e.g. because the session was deleted. */
+  public void forget(String key) {
+    counters.invalidate(key);
+  }
+
+  public void forgetAll() {
+    counters.invalidateAll();
+  }
+
+  private AtomicLong counter(String key, long lastSeq) {
+    return counters
+        .asMap()
+        .merge(
+            key,
+            new AtomicLong(lastSeq),
+            (known, seen) -> {
+              known.accumulateAndGet(seen.get(), Math::max);
+              return known;
+            });
+  }
+}
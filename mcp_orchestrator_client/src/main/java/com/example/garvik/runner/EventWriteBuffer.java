@@ -0,0 +1,676 @@
+package com.example.garvik.runner;
+
+import com.google.api.core.ApiFuture;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldMask;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.Transaction;
+import com.google.cloud.firestore.UpdateBuilder;
+import com.google.cloud.firestore.WriteBatch;
+import com.google.cloud.firestore.WriteResult;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.subjects.CompletableSubject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the Firestore writes produced by {@link FirestoreSessionService#appendEvent} and
+ * commits them per session as a single {@link WriteBatch}, instead of one RPC per document.
+ *
+ * <p>Writes to the same document are coalesced while they are pending, so an invocation that
+ * touches the session document several times costs one write. Event documents are keyed by the
+ * event id, which makes a retried commit idempotent.
+ *
+ * <p>Writes staged as deferred, such as the session document's metadata, are held until the
+ * invocation ends, the next invocation starts, the session is flushed or the maximum defer delay
+ * passes, whichever comes first. Every event of an invocation then touches only its own document,
+ * and the session document, which Firestore throttles at about one sustained write a second, gets
+ * one deferred write per invocation. Under {@link AckMode#ENQUEUE} the invocation's events are
+ * usually committed together with that write, and so is the reservation of their sequence numbers
+ * described below. Under {@link AckMode#COMMIT} each event is committed on its own, so a sequenced
+ * session is written twice per invocation: once at the first event to reserve numbers and once at
+ * the end.
+ *
+ * <p>Event documents staged with {@link Writes#setNumbered} are numbered when they are committed,
+ * from a block of {@link #RESERVED_SEQS} numbers the invocation reserves on the session document.
+ * The first commit of an invocation runs as a transaction that reads the session's last reserved
+ * number, numbers its events after it and stores the end of the new block, folded into the
+ * session document's deferred update when that is committed too. The invocation's later commits
+ * are plain batches numbered from the block, and only reserve again once it is used up. Every
+ * replica reserves through the same transaction, so numbers are unique, and as the turns of a
+ * session run one after another they increase from one invocation to the next. Numbers left over
+ * in a block are skipped; readers only rely on their order.
+ *
+ * <p>A batch that still fails after {@link #MAX_COMMIT_ATTEMPTS} is dropped. Under {@link
+ * AckMode#ENQUEUE} its events have already been acknowledged, so {@link DropListener}s are told
+ * which session it belonged to and can forget what they assumed was written.
+ */
+public class EventWriteBuffer {
+
+  private static final org.slf4j.Logger logger =
+      org.slf4j.LoggerFactory.getLogger(EventWriteBuffer.class);
+
+  /** Firestore rejects batches with more than 500 writes. */
+  private static final int MAX_BATCH_WRITES = 500;
+
+  private static final int MAX_COMMIT_ATTEMPTS = 3;
+
+  /** Sequence numbers an invocation reserves at a time. */
+  static final int RESERVED_SEQS = 32;
+
+  /** When an append is acknowledged to the caller. */
+  public enum AckMode {
+    /** Acknowledge once the writes are staged; they are committed in the background. */
+    ENQUEUE,
+    /** Acknowledge only after the batch holding the writes has been committed. */
+    COMMIT
+  }
+
+  /** Notified when the writes of a session are dropped after failing to commit. */
+  public interface DropListener {
+    void onWritesDropped(String sessionKey);
+  }
+
+  /** Notified when a commit has numbered a session's events up to {@code lastSeq}. */
+  public interface NumberListener {
+    void onNumbered(String sessionKey, long lastSeq);
+  }
+
+  private enum WriteKind {
+    SET,
+    MERGE,
+    UPDATE
+  }
+
+  private static final class StagedWrite {
+    private final DocumentReference ref;
+    private final WriteKind kind;
+    /** Document data of a set or merge. */
+    private final Map<String, Object> data;
+    /** Fields of an update, by path so that keys containing dots are not split. */
+    private final Map<FieldPath, Object> fields;
+    /** The session whose sequence numbers the event document set here, or null. */
+    private final DocumentReference numberedIn;
+
+    private StagedWrite(
+        DocumentReference ref,
+        WriteKind kind,
+        Map<String, Object> data,
+        Map<FieldPath, Object> fields,
+        DocumentReference numberedIn) {
+      this.ref = ref;
+      this.kind = kind;
+      this.data = new HashMap<>(data);
+      this.fields = new LinkedHashMap<>(fields);
+      this.numberedIn = numberedIn;
+    }
+  }
+
+  /**
+   * The sequence numbers reserved for one invocation. The commits of a session are chained, so
+   * only one of them uses the numbering at a time.
+   */
+  private static final class Numbering {
+    /** Whether the session numbers its events; null until the first reservation. */
+    private Boolean sequenced;
+    /** The next reserved number to hand out. */
+    private long next = 1;
+    /** The last reserved number. */
+    private long limit;
+  }
+
+  /** What a reserving commit numbered and reserved. */
+  private static final class Reservation {
+    private final boolean sequenced;
+    private final Map<String, Long> seqs;
+    private final long next;
+    private final long limit;
+
+    private Reservation(boolean sequenced, Map<String, Long> seqs, long next, long limit) {
+      this.sequenced = sequenced;
+      this.seqs = seqs;
+      this.next = next;
+      this.limit = limit;
+    }
+  }
+
+  private static final class Batch {
+    private final String sessionKey;
+    private final String invocationId;
+    private final Numbering numbering;
+    private final Map<String, StagedWrite> writes = new LinkedHashMap<>();
+    private final Map<String, StagedWrite> deferred = new LinkedHashMap<>();
+    /** Numbers given to the batch's event documents, by path; kept so a retry reuses them. */
+    private final Map<String, Long> seqs = new HashMap<>();
+    /** {@link Writes#committed()} of the events whose writes are in the batch. */
+    private final List<CompletableSubject> acks = new ArrayList<>();
+    private ScheduledFuture<?> timer;
+    private ScheduledFuture<?> deferTimer;
+
+    private Batch(String sessionKey, String invocationId, Numbering numbering) {
+      this.sessionKey = sessionKey;
+      this.invocationId = invocationId;
+      this.numbering = numbering;
+    }
+
+    private int size() {
+      return writes.size() + deferred.size();
+    }
+
+    /** Moves the writes that are not deferred to a batch of their own. */
+    private Batch takeWrites() {
+      Batch taken = new Batch(sessionKey, invocationId, numbering);
+      taken.writes.putAll(writes);
+      writes.clear();
+      taken.acks.addAll(acks);
+      acks.clear();
+      if (timer != null) {
+        timer.cancel(false);
+        timer = null;
+      }
+      return taken;
+    }
+  }
+
+  private final Firestore db;
+  private final AckMode ackMode;
+  private final long flushDelayMillis;
+  private final long maxDeferMillis;
+  private final ConcurrentHashMap<String, Batch> pending = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Completable> inFlight = new ConcurrentHashMap<>();
+  private final List<DropListener> dropListeners = new CopyOnWriteArrayList<>();
+  private final List<NumberListener> numberListeners = new CopyOnWriteArrayList<>();
+  private final AtomicLong committedBatches = new AtomicLong();
+  private final AtomicLong committedWrites = new AtomicLong();
+  private final AtomicLong droppedBatches = new AtomicLong();
+  private final AtomicLong droppedWrites = new AtomicLong();
+  private final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "event-write-buffer");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /**
+   * @param flushDelayMillis how long writes acknowledged on {@link AckMode#ENQUEUE} are held.
+   * @param maxDeferMillis how long deferred writes are held if their invocation does not end.
+   */
+  public EventWriteBuffer(
+      Firestore db, AckMode ackMode, long flushDelayMillis, long maxDeferMillis) {
+    this.db = db;
+    this.ackMode = ackMode;
+    this.flushDelayMillis = flushDelayMillis;
+    this.maxDeferMillis = maxDeferMillis;
+  }
+
+  public AckMode ackMode() {
+    return ackMode;
+  }
+
+  public void addDropListener(DropListener listener) {
+    dropListeners.add(listener);
+  }
+
+  public void addNumberListener(NumberListener listener) {
+    numberListeners.add(listener);
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("pendingSessions", pending.size());
+    stats.put("inFlightSessions", inFlight.size());
+    stats.put("committedBatches", committedBatches.get());
+    stats.put("committedWrites", committedWrites.get());
+    stats.put("droppedBatches", droppedBatches.get());
+    stats.put("droppedWrites", droppedWrites.get());
+    return stats;
+  }
+
+  /** Starts collecting the writes of one appended event. */
+  public Writes begin(String sessionKey, String invocationId) {
+    return new Writes(sessionKey, invocationId);
+  }
+
+  /** The writes produced by a single event, staged together by {@link #stage}. */
+  public final class Writes {
+    private final String sessionKey;
+    private final String invocationId;
+    private final List<StagedWrite> writes = new ArrayList<>();
+    private final List<StagedWrite> deferred = new ArrayList<>();
+    private final CompletableSubject committed = CompletableSubject.create();
+
+    private Writes(String sessionKey, String invocationId) {
+      this.sessionKey = sessionKey;
+      this.invocationId = invocationId;
+    }
+
+    /**
+     * Completes once the batch holding these writes, other than the deferred ones, is committed,
+     * whatever the ack mode, and fails if that batch is dropped.
+     */
+    public Completable committed() {
+      return committed.hide();
+    }
+
+    public Writes set(DocumentReference ref, Map<String, Object> data) {
+      writes.add(new StagedWrite(ref, WriteKind.SET, data, Map.of(), null));
+      return this;
+    }
+
+    /**
+     * Like {@link #set}, for an event document of the session {@code sessionRef}. If the session
+     * is sequenced, the event gets the session's next sequence number when it is committed.
+     */
+    public Writes setNumbered(
+        DocumentReference ref, Map<String, Object> data, DocumentReference sessionRef) {
+      writes.add(new StagedWrite(ref, WriteKind.SET, data, Map.of(), sessionRef));
+      return this;
+    }
+
+    public Writes merge(DocumentReference ref, Map<String, Object> data) {
+      writes.add(new StagedWrite(ref, WriteKind.MERGE, data, Map.of(), null));
+      return this;
+    }
+
+    /** Updates the given fields of an existing document; other fields are left untouched. */
+    public Writes update(DocumentReference ref, Map<FieldPath, Object> fields) {
+      writes.add(new StagedWrite(ref, WriteKind.UPDATE, Map.of(), fields, null));
+      return this;
+    }
+
+    /**
+     * Like {@link #update}, but committed with the end of the invocation rather than with this
+     * event; the event's acknowledgement does not wait for it.
+     */
+    public Writes deferUpdate(DocumentReference ref, Map<FieldPath, Object> fields) {
+      deferred.add(new StagedWrite(ref, WriteKind.UPDATE, Map.of(), fields, null));
+      return this;
+    }
+  }
+
+  /**
+   * Stages the writes and, depending on the ack mode, either completes immediately or once the
+   * batch containing them is committed.
+   *
+   * @param endOfInvocation true when the event closes the invocation; its batch is flushed now.
+   */
+  public Completable stage(Writes writes, boolean endOfInvocation) {
+    List<Batch> ready = new ArrayList<>();
+    pending.compute(
+        writes.sessionKey,
+        (key, batch) -> {
+          if (batch != null && !Objects.equals(batch.invocationId, writes.invocationId)) {
+            // A new invocation started before the previous one was flushed.
+            ready.add(batch);
+            batch = null;
+          }
+          if (batch == null) {
+            batch = new Batch(key, writes.invocationId, new Numbering());
+          }
+          for (StagedWrite write : writes.writes) {
+            coalesce(batch, batch.writes, write);
+          }
+          for (StagedWrite write : writes.deferred) {
+            coalesce(batch, batch.deferred, write);
+          }
+          batch.acks.add(writes.committed);
+          if (endOfInvocation || batch.size() >= MAX_BATCH_WRITES) {
+            ready.add(batch);
+            return null;
+          }
+          if (ackMode == AckMode.COMMIT) {
+            ready.add(batch.takeWrites());
+          } else if (batch.timer == null) {
+            batch.timer =
+                scheduler.schedule(
+                    () -> flushWrites(key).subscribe(() -> {}, error -> {}),
+                    flushDelayMillis,
+                    TimeUnit.MILLISECONDS);
+          }
+          if (batch.deferred.isEmpty() && batch.writes.isEmpty()) {
+            batch.acks.forEach(CompletableSubject::onComplete);
+            return null;
+          }
+          if (!batch.deferred.isEmpty() && batch.deferTimer == null) {
+            batch.deferTimer =
+                scheduler.schedule(
+                    () -> flush(key).subscribe(() -> {}, error -> {}),
+                    maxDeferMillis,
+                    TimeUnit.MILLISECONDS);
+          }
+          return batch;
+        });
+
+    Completable commits = Completable.merge(ready.stream().map(this::commit).toList());
+    if (ackMode == AckMode.COMMIT) {
+      return commits;
+    }
+    commits.subscribe(() -> {}, error -> {});
+    return Completable.complete();
+  }
+
+  /**
+   * Commits whatever is pending for the session and waits for commits already in flight, e.g.
+   * before reading the session back from Firestore.
+   */
+  public Completable flush(String sessionKey) {
+    Batch batch = pending.remove(sessionKey);
+    if (batch != null) {
+      return commit(batch);
+    }
+    Completable running = inFlight.get(sessionKey);
+    return running == null ? Completable.complete() : running.onErrorComplete();
+  }
+
+  /** Commits the session's pending writes that are not deferred. */
+  private Completable flushWrites(String sessionKey) {
+    List<Batch> ready = new ArrayList<>();
+    pending.computeIfPresent(
+        sessionKey,
+        (key, batch) -> {
+          ready.add(batch.takeWrites());
+          return batch.deferred.isEmpty() ? null : batch;
+        });
+    return ready.isEmpty() ? Completable.complete() : commit(ready.get(0));
+  }
+
+  /** Commits every pending batch; used on shutdown. */
+  public Completable flushAll() {
+    return Completable.merge(
+        new ArrayList<>(pending.keySet()).stream().map(this::flush).toList());
+  }
+
+  public void close() {
+    flushAll().blockingAwait();
+    scheduler.shutdown();
+  }
+
+  private static void coalesce(Batch batch, Map<String, StagedWrite> writes, StagedWrite write) {
+    String path = write.ref.getPath();
+    StagedWrite existing = writes.get(path);
+    if (existing == null || write.kind == WriteKind.SET) {
+      writes.put(path, write);
+    } else if (existing.kind == WriteKind.SET && write.kind == WriteKind.MERGE) {
+      existing.data.putAll(write.data);
+    } else if (existing.kind == write.kind) {
+      existing.data.putAll(write.data);
+      existing.fields.putAll(write.fields);
+    } else {
+      // Mixed update and merge on one document: keep both, in staging order.
+      writes.put(path + "#" + batch.size(), write);
+    }
+  }
+
+  private Completable commit(Batch batch) {
+    if (batch.timer != null) {
+      batch.timer.cancel(false);
+    }
+    if (batch.deferTimer != null) {
+      batch.deferTimer.cancel(false);
+    }
+    if (batch.size() == 0) {
+      batch.acks.forEach(CompletableSubject::onComplete);
+      return Completable.complete();
+    }
+    // Commits of one session are chained so they land in the order they were staged. The chain
+    // is extended atomically, as the flush timer and callers may commit the same session at once.
+    Completable chained =
+        inFlight.compute(
+            batch.sessionKey,
+            (key, previous) ->
+                (previous == null ? Completable.complete() : previous.onErrorComplete())
+                    .andThen(commitWithRetry(batch))
+                    .cache());
+    chained
+        .doFinally(() -> inFlight.remove(batch.sessionKey, chained))
+        .subscribe(() -> {}, error -> {});
+    return chained;
+  }
+
+  private static void apply(UpdateBuilder<?> builder, StagedWrite write) {
+    switch (write.kind) {
+      case SET -> builder.set(write.ref, write.data);
+      case MERGE -> builder.set(write.ref, write.data, SetOptions.merge());
+      case UPDATE -> update(builder, write.ref, write.fields);
+    }
+  }
+
+  private static void update(
+      UpdateBuilder<?> builder, DocumentReference ref, Map<FieldPath, Object> fields) {
+    List<Object> moreFieldsAndValues = new ArrayList<>();
+    FieldPath first = null;
+    Object firstValue = null;
+    for (Map.Entry<FieldPath, Object> field : fields.entrySet()) {
+      if (first == null) {
+        first = field.getKey();
+        firstValue = field.getValue();
+      } else {
+        moreFieldsAndValues.add(field.getKey());
+        moreFieldsAndValues.add(field.getValue());
+      }
+    }
+    if (first != null) {
+      builder.update(ref, first, firstValue, moreFieldsAndValues.toArray());
+    }
+  }
+
+  private Completable commitWithRetry(Batch batch) {
+    return Completable.defer(
+            () -> {
+              // Deferred writes go last, so they land with or after the events they describe.
+              List<StagedWrite> writes = new ArrayList<>(batch.writes.values());
+              writes.addAll(batch.deferred.values());
+              DocumentReference sessionRef = null;
+              for (StagedWrite write : writes) {
+                if (write.numberedIn != null) {
+                  sessionRef = write.numberedIn;
+                }
+              }
+              if (sessionRef != null && !numberFromReserved(batch)) {
+                DocumentReference numberedSession = sessionRef;
+                return ApiFutureUtils.toSingle(
+                        db.runTransaction(tx -> commitReserving(tx, numberedSession, writes)))
+                    .doOnSuccess(reservation -> reserved(batch, reservation))
+                    .ignoreElement();
+              }
+              WriteBatch writeBatch = db.batch();
+              for (StagedWrite write : writes) {
+                Long seq = batch.seqs.get(write.ref.getPath());
+                if (write.numberedIn != null && seq != null) {
+                  writeBatch.set(write.ref, withSeq(write.data, seq));
+                } else {
+                  apply(writeBatch, write);
+                }
+              }
+              ApiFuture<List<WriteResult>> future = writeBatch.commit();
+              return ApiFutureUtils.toSingle(future)
+                  .doOnSuccess(
+                      results -> lastNumbered(batch).ifPresent(seq -> numbered(batch, seq)))
+                  .ignoreElement();
+            })
+        .retry(
+            (attempt, error) -> {
+              logger.warn(
+                  "Batch commit for invocation {} failed (attempt {}), retrying.",
+                  batch.invocationId,
+                  attempt,
+                  error);
+              return attempt < MAX_COMMIT_ATTEMPTS;
+            })
+        .doOnComplete(
+            () -> {
+              committedBatches.incrementAndGet();
+              committedWrites.addAndGet(batch.size());
+              logger.info(
+                  "Committed {} writes for invocation {}", batch.size(), batch.invocationId);
+              batch.acks.forEach(CompletableSubject::onComplete);
+            })
+        .doOnError(error -> drop(batch, error));
+  }
+
+  /**
+   * Numbers the batch's event documents from the invocation's reserved block, unless they are
+   * numbered already or the session is not sequenced.
+   *
+   * @return false if the batch has to reserve numbers first: nothing is reserved yet, or the block
+   *     has no room left for all of its events.
+   */
+  private static boolean numberFromReserved(Batch batch) {
+    Numbering numbering = batch.numbering;
+    synchronized (numbering) {
+      if (numbering.sequenced == null) {
+        return false;
+      }
+      if (!numbering.sequenced) {
+        return true;
+      }
+      List<String> unnumbered = new ArrayList<>();
+      for (StagedWrite write : batch.writes.values()) {
+        if (write.numberedIn != null && !batch.seqs.containsKey(write.ref.getPath())) {
+          unnumbered.add(write.ref.getPath());
+        }
+      }
+      if (unnumbered.size() > numbering.limit - numbering.next + 1) {
+        return false;
+      }
+      for (String path : unnumbered) {
+        batch.seqs.put(path, numbering.next++);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Writes the batch in a transaction that reserves the invocation's sequence numbers: the event
+   * documents are numbered after the session's last reserved number, and the end of a block of
+   * {@link #RESERVED_SEQS} more is stored on the session document, in its deferred update if the
+   * batch carries it. Events stored by an earlier attempt whose response was lost keep their
+   * number. Events of a session that is not sequenced are written unnumbered.
+   */
+  private static Reservation commitReserving(
+      Transaction tx, DocumentReference sessionRef, List<StagedWrite> writes) throws Exception {
+    List<DocumentReference> refs = new ArrayList<>();
+    refs.add(sessionRef);
+    for (StagedWrite write : writes) {
+      if (write.numberedIn != null) {
+        refs.add(write.ref);
+      }
+    }
+    // The session and its events in one read.
+    DocumentSnapshot session = null;
+    Map<String, Long> storedSeqs = new HashMap<>();
+    for (DocumentSnapshot snapshot :
+        tx.getAll(
+                refs.toArray(new DocumentReference[0]),
+                FieldMask.of(
+                    EventSequencer.SEQUENCED_FIELD,
+                    EventSequencer.LAST_SEQ_FIELD,
+                    EventSequencer.SEQ_FIELD))
+            .get()) {
+      if (snapshot.getReference().equals(sessionRef)) {
+        session = snapshot;
+      } else if (snapshot.exists() && EventSequencer.seqOf(snapshot) > 0) {
+        storedSeqs.put(snapshot.getReference().getPath(), EventSequencer.seqOf(snapshot));
+      }
+    }
+    if (session == null || !EventSequencer.isSequenced(session)) {
+      for (StagedWrite write : writes) {
+        apply(tx, write);
+      }
+      return new Reservation(false, Map.of(), 0, 0);
+    }
+
+    Long reservedSeq = session.getLong(EventSequencer.LAST_SEQ_FIELD);
+    long lastSeq = reservedSeq == null ? 0 : reservedSeq;
+    Map<String, Long> seqs = new HashMap<>();
+    for (StagedWrite write : writes) {
+      if (write.numberedIn != null) {
+        Long stored = storedSeqs.get(write.ref.getPath());
+        seqs.put(write.ref.getPath(), stored != null ? stored : ++lastSeq);
+      }
+    }
+    long limit = lastSeq + RESERVED_SEQS;
+    boolean reserved = false;
+    for (StagedWrite write : writes) {
+      if (write.numberedIn != null) {
+        tx.set(write.ref, withSeq(write.data, seqs.get(write.ref.getPath())));
+      } else if (!reserved && write.kind == WriteKind.UPDATE && write.ref.equals(sessionRef)) {
+        Map<FieldPath, Object> fields = new LinkedHashMap<>(write.fields);
+        fields.put(FieldPath.of(EventSequencer.LAST_SEQ_FIELD), limit);
+        update(tx, write.ref, fields);
+        reserved = true;
+      } else {
+        apply(tx, write);
+      }
+    }
+    if (!reserved) {
+      tx.update(sessionRef, FieldPath.of(EventSequencer.LAST_SEQ_FIELD), limit);
+    }
+    return new Reservation(true, seqs, lastSeq + 1, limit);
+  }
+
+  /** Records the numbers a committed transaction reserved, for the invocation's later commits. */
+  private void reserved(Batch batch, Reservation reservation) {
+    Numbering numbering = batch.numbering;
+    synchronized (numbering) {
+      numbering.sequenced = reservation.sequenced;
+      numbering.next = reservation.next;
+      numbering.limit = reservation.limit;
+    }
+    batch.seqs.putAll(reservation.seqs);
+    lastNumbered(batch).ifPresent(seq -> numbered(batch, seq));
+  }
+
+  private static Optional<Long> lastNumbered(Batch batch) {
+    return batch.seqs.values().stream().max(Long::compare);
+  }
+
+  private static Map<String, Object> withSeq(Map<String, Object> data, long seq) {
+    Map<String, Object> numbered = new HashMap<>(data);
+    numbered.put(EventSequencer.SEQ_FIELD, seq);
+    return numbered;
+  }
+
+  private void numbered(Batch batch, long lastSeq) {
+    for (NumberListener listener : numberListeners) {
+      listener.onNumbered(batch.sessionKey, lastSeq);
+    }
+  }
+
+  private void drop(Batch batch, Throwable error) {
+    droppedBatches.incrementAndGet();
+    droppedWrites.addAndGet(batch.size());
+    logger.error(
+        "Dropping {} writes for invocation {} after {} attempts.",
+        batch.size(),
+        batch.invocationId,
+        MAX_COMMIT_ATTEMPTS,
+        error);
+    for (CompletableSubject ack : batch.acks) {
+      ack.onError(error);
+    }
+    for (DropListener listener : dropListeners) {
+      try {
+        listener.onWritesDropped(batch.sessionKey);
+      } catch (RuntimeException e) {
+        logger.warn("Drop listener failed for session {}", batch.sessionKey, e);
+      }
+    }
+  }
+}
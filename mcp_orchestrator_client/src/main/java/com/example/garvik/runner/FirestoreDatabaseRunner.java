@@ -37,4 +37,19 @@ public class FirestoreDatabaseRunner extends Runner {
         new FirestoreMemoryService(db),
         plugins);
   }
+
+  public FirestoreDatabaseRunner(
+      BaseAgent agent,
+      String appName,
+      java.util.List<BasePlugin> plugins,
+      FirestoreSessionService sessionService,
+      FirestoreMemoryService memoryService) {
+    super(
+        agent,
+        appName,
+        new com.google.adk.artifacts.GcsArtifactService(BUCKET_NAME, storage),
+        sessionService,
+        memoryService,
+        plugins);
+  }
 }
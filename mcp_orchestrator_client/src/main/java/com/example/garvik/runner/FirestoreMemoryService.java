@@ -1,64 +1,137 @@
 package com.example.garvik.runner;
 
+import com.google.adk.events.Event;
 import com.google.adk.memory.BaseMemoryService;
 import com.google.adk.memory.MemoryEntry;
 import com.google.adk.memory.SearchMemoryResponse;
 import com.google.adk.sessions.Session;
-import com.google.api.core.ApiFuture;
-import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.Blob;
+import com.google.cloud.firestore.FieldPath;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.Query;
 import com.google.cloud.firestore.QueryDocumentSnapshot;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Lists;
 import com.google.genai.types.Content;
 import com.google.genai.types.Part;
 import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.core.Maybe;
 import io.reactivex.rxjava3.core.Single;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.Executors;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
-public class FirestoreMemoryService implements BaseMemoryService {
+public class FirestoreMemoryService
+    implements BaseMemoryService, FirestoreSessionService.AppendListener {
 
   private static final org.slf4j.Logger logger =
       org.slf4j.LoggerFactory.getLogger(FirestoreMemoryService.class);
-  private static final Pattern WORD_PATTERN = Pattern.compile("[A-Za-z]+");
   private static final String EVENTS_SUBCOLLECTION_NAME = "user-events";
-  private static final Set<String> STOP_WORDS =
-      new HashSet<>(
-          Arrays.asList(
-              "a", "an", "and", "are", "as", "at", "be", "but", "by", "for", "if", "in", "into",
-              "is", "it", "i", "no", "not", "of", "on", "or", "such", "that", "the", "their",
-              "then", "there", "these", "they", "this", "to", "was", "will", "with", "what",
-              "where", "when", "why", "how", "help", "need", "like", "make", "got", "would",
-              "could", "should"));
+
+  /** Event documents read per round trip when a user's memory index is built. */
+  private static final int INDEX_BUILD_PAGE_SIZE = 500;
+
+  /** Damps the weight of the top ranks when keyword and semantic matches are fused. */
+  private static final int RRF_K = 60;
 
   private final Firestore db;
+  private final KeywordExtractor keywordExtractor;
+  private final MemoryIndex memoryIndex;
+  private final int searchTopK;
+  private final Duration recencyHalfLife;
+  private final VectorMemory vectorMemory;
+  private final MemorySearchCache searchCache;
+  private final MemoryIndexer indexer;
 
   public FirestoreMemoryService(Firestore db) {
+    this(
+        db,
+        new KeywordExtractor(false),
+        10_000,
+        Duration.ofMinutes(30),
+        5,
+        Duration.ofDays(30),
+        null,
+        new MemorySearchCache(10_000, 32, Duration.ofMinutes(5)),
+        10_000,
+        200);
+  }
+
+  /**
+   * @param keywordExtractor must match the one used to index events.
+   * @param indexMaxUsers most per-user memory indexes kept in memory.
+   * @param indexRebuildAfter age after which a user's index is rebuilt from Firestore.
+   * @param searchTopK most memories returned by a search.
+   * @param recencyHalfLife age at which a memory has lost half of the recency share of its score.
+   * @param vectorMemory adds semantic matches to the keyword matches; null to search by keywords
+   *     only.
+   * @param searchCache responses to recent searches, dropped when the user's events change.
+   * @param indexerQueueCapacity most appended events waiting to be indexed.
+   * @param indexerBatchSize most appended events indexed together.
+   */
+  public FirestoreMemoryService(
+      Firestore db,
+      KeywordExtractor keywordExtractor,
+      long indexMaxUsers,
+      Duration indexRebuildAfter,
+      int searchTopK,
+      Duration recencyHalfLife,
+      VectorMemory vectorMemory,
+      MemorySearchCache searchCache,
+      int indexerQueueCapacity,
+      int indexerBatchSize) {
     this.db = db;
+    this.keywordExtractor = keywordExtractor;
+    this.searchTopK = searchTopK;
+    this.recencyHalfLife = recencyHalfLife;
+    this.vectorMemory = vectorMemory;
+    this.searchCache = searchCache;
+    this.memoryIndex = new MemoryIndex(this::readIndexDocuments, indexMaxUsers, indexRebuildAfter);
+    this.indexer =
+        new MemoryIndexer(
+            db, keywordExtractor, this::onIndexed, indexerQueueCapacity, indexerBatchSize);
   }
 
+  public MemoryIndex memoryIndex() {
+    return memoryIndex;
+  }
+
+  public MemorySearchCache searchCache() {
+    return searchCache;
+  }
+
+  public MemoryIndexer indexer() {
+    return indexer;
+  }
+
+  /** Stops the background indexer. */
+  public void close() {
+    indexer.close();
+  }
+
+  /**
+   * Indexes every event of the session at once, e.g. when it ends. Events appended through
+   * {@link FirestoreSessionService} are also indexed in the background as they arrive; indexing
+   * one twice is harmless.
+   */
   @Override
   public Completable addSessionToMemory(Session session) {
-    // No-op. Keywords are indexed when events are appended in
-    // FirestoreSessionService.
-    return Completable.complete();
+    Objects.requireNonNull(session, "session cannot be null");
+    return indexer.indexSession(session);
   }
 
   @Override
   public Single<SearchMemoryResponse> searchMemory(String appName, String userId, String query) {
-    return Single.fromCallable(
+    return Single.defer(
         () -> {
           Objects.requireNonNull(appName, "appName cannot be null");
           Objects.requireNonNull(userId, "userId cannot be null");
@@ -67,62 +140,120 @@ public class FirestoreMemoryService implements BaseMemoryService {
           Set<String> queryKeywords = extractKeywords(query);
 
           if (queryKeywords.isEmpty()) {
-            return SearchMemoryResponse.builder().build();
+            return Single.just(SearchMemoryResponse.builder().build());
           }
 
-          List<String> queryKeywordsList = new ArrayList<>(queryKeywords);
-          List<List<String>> chunks = Lists.partition(queryKeywordsList, 10);
-
-          List<ApiFuture<List<QueryDocumentSnapshot>>> futures = new ArrayList<>();
-          for (List<String> chunk : chunks) {
-            Query eventsQuery =
-                db.collectionGroup(EVENTS_SUBCOLLECTION_NAME)
-                    .whereEqualTo("appName", appName)
-                    .whereEqualTo("userId", userId)
-                    .whereArrayContainsAny("keywords", chunk);
-            futures.add(
-                ApiFutures.transform(
-                    eventsQuery.get(),
-                    com.google.cloud.firestore.QuerySnapshot::getDocuments,
-                    Executors.newSingleThreadExecutor()));
+          // Looked up before searching, so a response outdated by a concurrent append is stored
+          // in entries that have already been dropped.
+          MemorySearchCache.Entries cached = searchCache.entries(appName, userId);
+          Optional<SearchMemoryResponse> cachedResponse = cached.get(queryKeywords);
+          if (cachedResponse.isPresent()) {
+            return Single.just(cachedResponse.get());
           }
 
-          Set<String> seenEventIds = new HashSet<>();
-          List<MemoryEntry> matchingMemories = new ArrayList<>();
-
-          for (QueryDocumentSnapshot eventDoc :
-              ApiFutures.allAsList(futures).get().stream()
-                  .flatMap(List::stream)
-                  .collect(Collectors.toList())) {
-            if (seenEventIds.add(eventDoc.getId())) {
-              MemoryEntry entry = memoryEntryFromDoc(eventDoc);
-              if (entry != null) {
-                matchingMemories.add(entry);
-              }
-            }
-          }
-
-          return SearchMemoryResponse.builder()
-              .setMemories(ImmutableList.copyOf(matchingMemories))
-              .build();
+          return memoryIndex
+              .index(appName, userId)
+              .map(
+                  index -> {
+                    List<MemoryIndex.Document> matches =
+                        index.search(
+                            queryKeywords, searchTopK, recencyHalfLife, System.currentTimeMillis());
+                    if (vectorMemory != null) {
+                      matches =
+                          fuse(
+                              matches,
+                              vectorMemory.search(appName, userId, index, query, searchTopK));
+                    }
+                    List<MemoryEntry> matchingMemories = new ArrayList<>();
+                    for (MemoryIndex.Document document : matches) {
+                      matchingMemories.add(document.entry());
+                    }
+                    return SearchMemoryResponse.builder()
+                        .setMemories(ImmutableList.copyOf(matchingMemories))
+                        .build();
+                  })
+              .doOnSuccess(response -> cached.put(queryKeywords, response));
         });
   }
 
-  private Set<String> extractKeywords(String text) {
-    Set<String> keywords = new HashSet<>();
-    if (text != null && !text.isEmpty()) {
-      Matcher matcher = WORD_PATTERN.matcher(text.toLowerCase(Locale.ROOT));
-      while (matcher.find()) {
-        String word = matcher.group();
-        if (!STOP_WORDS.contains(word)) {
-          keywords.add(word);
-        }
+  /**
+   * Merges keyword and semantic matches by reciprocal rank fusion: each list contributes {@code
+   * 1 / (RRF_K + rank)} to a memory's score, so memories found both ways come first. Memories with
+   * the same content are merged.
+   */
+  private List<MemoryIndex.Document> fuse(
+      List<MemoryIndex.Document> keywordMatches, List<MemoryIndex.Document> semanticMatches) {
+    Map<Content, Double> scores = new HashMap<>();
+    Map<Content, MemoryIndex.Document> documents = new HashMap<>();
+    for (List<MemoryIndex.Document> ranking : List.of(keywordMatches, semanticMatches)) {
+      for (int rank = 0; rank < ranking.size(); rank++) {
+        MemoryIndex.Document document = ranking.get(rank);
+        Content content = document.entry().content();
+        scores.merge(content, 1.0 / (RRF_K + rank + 1), Double::sum);
+        documents.putIfAbsent(content, document);
       }
     }
-    return keywords;
+    List<Content> ranked = new ArrayList<>(scores.keySet());
+    ranked.sort(Comparator.comparingDouble((Content content) -> scores.get(content)).reversed());
+    List<MemoryIndex.Document> fused = new ArrayList<>(Math.min(searchTopK, ranked.size()));
+    for (Content content : ranked.subList(0, Math.min(searchTopK, ranked.size()))) {
+      fused.add(documents.get(content));
+    }
+    return fused;
+  }
+
+  /** Queues an event this node has just persisted for background indexing. */
+  @Override
+  public void onEventAppended(Session session, Event event) {
+    indexer.enqueue(session, event);
+  }
+
+  private void onIndexed(String appName, String userId, MemoryIndex.Document document) {
+    memoryIndex.add(appName, userId, document);
+    searchCache.invalidate(appName, userId);
+  }
+
+  /** Reads every event of the user in the app that has text, page by page. */
+  private Flowable<MemoryIndex.Document> readIndexDocuments(String appName, String userId) {
+    Query eventsQuery =
+        db.collectionGroup(EVENTS_SUBCOLLECTION_NAME)
+            .whereEqualTo("appName", appName)
+            .whereEqualTo("userId", userId)
+            .orderBy(FieldPath.documentId());
+    return ApiFutureUtils.pages(eventsQuery, INDEX_BUILD_PAGE_SIZE)
+        .concatMapIterable(documents -> documents)
+        .concatMapMaybe(document -> Maybe.fromCallable(() -> indexDocumentFromDoc(document)));
   }
 
   @SuppressWarnings("unchecked")
+  private MemoryIndex.Document indexDocumentFromDoc(QueryDocumentSnapshot doc) {
+    MemoryEntry entry = memoryEntryFromDoc(doc);
+    if (entry == null) {
+      return null;
+    }
+    // Keywords are stored by the background indexer; events it has not reached are tokenized here.
+    Object stored = doc.get("keywords");
+    Collection<String> keywords;
+    if (stored instanceof List && !((List<?>) stored).isEmpty()) {
+      keywords = (List<String>) stored;
+    } else {
+      Set<String> extracted = new HashSet<>();
+      for (Part part : entry.content().parts().orElse(List.of())) {
+        part.text().ifPresent(text -> keywordExtractor.addKeywords(text, extracted));
+      }
+      keywords = extracted;
+    }
+    if (keywords.isEmpty()) {
+      return null;
+    }
+    return new MemoryIndex.Document(
+        doc.getId(), entry, Instant.parse(entry.timestamp()).toEpochMilli(), keywords);
+  }
+
+  private Set<String> extractKeywords(String text) {
+    return keywordExtractor.keywords(text);
+  }
+
   private MemoryEntry memoryEntryFromDoc(QueryDocumentSnapshot doc) {
     Map<String, Object> data = doc.getData();
     if (data == null) {
@@ -132,23 +263,13 @@ public class FirestoreMemoryService implements BaseMemoryService {
     try {
       String author = (String) data.get("author");
       String timestampStr = (String) data.get("timestamp");
-      Map<String, Object> contentMap = (Map<String, Object>) data.get("content");
+      List<Part> parts = textParts(data);
 
-      if (author == null || timestampStr == null || contentMap == null) {
+      if (author == null || timestampStr == null || parts == null) {
         logger.warn("Skipping malformed event data: {}", data);
         return null;
       }
 
-      List<Map<String, Object>> partsList = (List<Map<String, Object>>) contentMap.get("parts");
-      List<Part> parts = new ArrayList<>();
-      if (partsList != null) {
-        for (Map<String, Object> partMap : partsList) {
-          if (partMap.containsKey("text")) {
-            parts.add(Part.fromText((String) partMap.get("text")));
-          }
-        }
-      }
-
       return MemoryEntry.builder()
           .author(author)
           .content(Content.fromParts(parts.toArray(new Part[0])))
@@ -159,4 +280,34 @@ public class FirestoreMemoryService implements BaseMemoryService {
       return null;
     }
   }
+
+  /**
+   * The text parts of a stored event, in either encoding; null if the document holds no content.
+   */
+  @SuppressWarnings("unchecked")
+  static List<Part> textParts(Map<String, Object> data) {
+    List<Part> parts = new ArrayList<>();
+    if (EventCodec.hasPayload(data)) {
+      Event event = EventCodec.decode((Blob) data.get(EventCodec.PAYLOAD_FIELD));
+      for (Part part : event.content().flatMap(Content::parts).orElse(List.of())) {
+        if (part.text().isPresent()) {
+          parts.add(part);
+        }
+      }
+      return parts;
+    }
+    Map<String, Object> contentMap = (Map<String, Object>) data.get("content");
+    if (contentMap == null) {
+      return null;
+    }
+    List<Map<String, Object>> partsList = (List<Map<String, Object>>) contentMap.get("parts");
+    if (partsList != null) {
+      for (Map<String, Object> partMap : partsList) {
+        if (partMap.containsKey("text")) {
+          parts.add(Part.fromText((String) partMap.get("text")));
+        }
+      }
+    }
+    return parts;
+  }
 }
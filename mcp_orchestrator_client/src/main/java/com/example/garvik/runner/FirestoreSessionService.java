@@ -8,27 +8,34 @@ import com.google.adk.sessions.ListEventsResponse;
 import com.google.adk.sessions.ListSessionsResponse;
 import com.google.adk.sessions.Session;
 import com.google.adk.sessions.SessionNotFoundException;
+import com.google.adk.sessions.State;
 import com.google.api.core.ApiFuture;
 import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.Blob;
 import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
 import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.FieldValue;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.Query;
 import com.google.cloud.firestore.QueryDocumentSnapshot;
-import com.google.cloud.firestore.WriteResult;
 import com.google.errorprone.annotations.CanIgnoreReturnValue;
 import com.google.genai.types.Content;
 import com.google.genai.types.Part;
 import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Flowable;
 import io.reactivex.rxjava3.core.Maybe;
 import io.reactivex.rxjava3.core.Single;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
@@ -36,11 +43,10 @@ import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.Executors;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-public class FirestoreSessionService implements BaseSessionService {
+public class FirestoreSessionService
+    implements BaseSessionService, CacheInvalidationFeed.Handler {
   private static final org.slf4j.Logger logger =
       org.slf4j.LoggerFactory.getLogger(FirestoreSessionService.class);
   private final Firestore db;
@@ -49,18 +55,160 @@ public class FirestoreSessionService implements BaseSessionService {
   private static final String APP_STATE_COLLECTION = "app_state";
   private static final String USER_STATE_COLLECTION = "user_state";
 
-  private static final Pattern WORD_PATTERN = Pattern.compile("[A-Za-z]+");
-  private static final Set<String> STOP_WORDS =
-      new HashSet<>(
-          Arrays.asList(
-              "a", "an", "and", "are", "as", "at", "be", "but", "by", "for", "if", "in", "into",
-              "is", "it", "i", "no", "not", "of", "on", "or", "such", "that", "the", "their",
-              "then", "there", "these", "they", "this", "to", "was", "will", "with", "what",
-              "where", "when", "why", "how", "help", "need", "like", "make", "got", "would",
-              "could", "should"));
+  /** Sessions deleted in parallel by the bulk delete operations. */
+  private static final int MAX_CONCURRENT_SESSION_DELETES = 4;
+
+  /** Documents read per round trip by the streaming list operations. */
+  private static final int LIST_PAGE_SIZE = 100;
+
+  /** The only session fields a listing needs. */
+  private static final String[] SESSION_SUMMARY_FIELDS = {"id", "appName", "userId", "updateTime"};
+
+  private final EventWriteBuffer writeBuffer;
+  private final SessionCache sessionCache;
+  private final SessionCompactor compactor;
+  private final EventCodec codec;
+  private final BulkDeleter deleter;
+  private final StateTierCache stateTiers;
+  private final EventSequencer sequencer;
+  private final List<AppendListener> appendListeners = new CopyOnWriteArrayList<>();
+  private volatile CacheInvalidationFeed invalidationFeed;
+
+  /**
+   * Notified of every event appended through this service once its document is committed, which
+   * under {@link EventWriteBuffer.AckMode#ENQUEUE} is after the append returns. Events whose writes
+   * are dropped are not notified. Called on the appending or the committing thread; listeners must
+   * hand any real work off.
+   */
+  public interface AppendListener {
+    void onEventAppended(Session session, Event event);
+  }
 
   public FirestoreSessionService(Firestore db) {
+    this(
+        db,
+        new EventWriteBuffer(db, EventWriteBuffer.AckMode.COMMIT, 0, 1000),
+        new SessionCache(1000, Duration.ofMinutes(30)),
+        new SessionCompactor(0, 0, 1000, Duration.ofMinutes(30)),
+        new EventCodec(EventCodec.Encoding.MAP),
+        new BulkDeleter(db, 500, 500),
+        new StateTierCache(10_000, Duration.ofMinutes(1)),
+        new EventSequencer(1000, Duration.ofMinutes(30)));
+  }
+
+  /**
+   * @param writeBuffer stages and commits the writes of {@code appendEvent}.
+   * @param sessionCache recently used sessions, refreshed with only their newest events.
+   * @param compactor folds old events into a checkpoint read in place of the full history.
+   * @param codec encodes new event documents; documents in either encoding are read.
+   * @param deleter pages through and deletes the events of deleted sessions.
+   * @param stateTiers app and user state merged into sessions on read.
+   * @param sequencer numbers the events appended to each session.
+   */
+  public FirestoreSessionService(
+      Firestore db,
+      EventWriteBuffer writeBuffer,
+      SessionCache sessionCache,
+      SessionCompactor compactor,
+      EventCodec codec,
+      BulkDeleter deleter,
+      StateTierCache stateTiers,
+      EventSequencer sequencer) {
     this.db = db;
+    this.writeBuffer = writeBuffer;
+    this.sessionCache = sessionCache;
+    this.compactor = compactor;
+    this.codec = codec;
+    this.deleter = deleter;
+    this.stateTiers = stateTiers;
+    this.sequencer = sequencer;
+    writeBuffer.addDropListener(this::onWritesDropped);
+    writeBuffer.addNumberListener((key, lastSeq) -> sequencer.observe(key, true, lastSeq));
+  }
+
+  public EventWriteBuffer writeBuffer() {
+    return writeBuffer;
+  }
+
+  public SessionCache sessionCache() {
+    return sessionCache;
+  }
+
+  public StateTierCache stateTiers() {
+    return stateTiers;
+  }
+
+  public void addAppendListener(AppendListener listener) {
+    appendListeners.add(listener);
+  }
+
+  /**
+   * Publishes the sessions and state this node writes to the feed, and drops what other replicas
+   * publish from this node's caches.
+   */
+  public void useInvalidationFeed(CacheInvalidationFeed feed) {
+    this.invalidationFeed = feed;
+    feed.addHandler(this);
+  }
+
+  private void publish(CacheInvalidationFeed.Scope scope, String key) {
+    CacheInvalidationFeed feed = invalidationFeed;
+    if (feed != null) {
+      feed.publish(scope, key);
+    }
+  }
+
+  /** Drops an entry another replica has written. */
+  @Override
+  public void invalidate(CacheInvalidationFeed.Scope scope, String key) {
+    int slash = key.indexOf('/');
+    switch (scope) {
+      case SESSION:
+        sessionCache.invalidate(key);
+        compactor.forget(key);
+        sequencer.forget(key);
+        break;
+      case APP_STATE:
+        stateTiers.invalidateAppState(key);
+        break;
+      case USER_STATE:
+        if (slash > 0) {
+          stateTiers.invalidateUserState(key.substring(0, slash), key.substring(slash + 1));
+        }
+        break;
+      case APP:
+        stateTiers.invalidateApp(key);
+        break;
+      default:
+        break;
+    }
+  }
+
+  @Override
+  public void invalidateAll() {
+    sessionCache.invalidateAll();
+    compactor.forgetAll();
+    sequencer.forgetAll();
+    stateTiers.invalidateAll();
+  }
+
+  /**
+   * Forgets what this node assumed about a session whose staged writes were never committed: its
+   * cached events and state, its sequence number and its compaction progress are read again.
+   */
+  private void onWritesDropped(String key) {
+    sessionCache.invalidate(key);
+    sequencer.forget(key);
+    compactor.forget(key);
+  }
+
+  /** Commits any writes still staged in the write buffer. */
+  public void close() {
+    writeBuffer.close();
+  }
+
+  private static String sessionKey(String userId, String sessionId) {
+    return userId + "/" + sessionId;
   }
 
   private CollectionReference getSessionsCollection(String userId) {
@@ -70,7 +218,7 @@ public class FirestoreSessionService implements BaseSessionService {
   @Override
   public Single<Session> createSession(
       String appName, String userId, ConcurrentMap<String, Object> state, String sessionId) {
-    return Single.fromCallable(
+    return Single.defer(
         () -> {
           Objects.requireNonNull(appName, "appName cannot be null");
           Objects.requireNonNull(userId, "userId cannot be null");
@@ -106,13 +254,20 @@ public class FirestoreSessionService implements BaseSessionService {
           sessionData.put("userId", newSession.userId());
           sessionData.put("updateTime", newSession.lastUpdateTime().toString());
           sessionData.put("state", newSession.state());
-
-          // Asynchronously write to Firestore and wait for the result
-          ApiFuture<WriteResult> future =
-              getSessionsCollection(userId).document(resolvedSessionId).set(sessionData);
-          future.get(); // Block until the write is complete
-
-          return newSession;
+          sessionData.put(EventSequencer.SEQUENCED_FIELD, true);
+
+          // Write to Firestore; the session is emitted once the write is acknowledged.
+          return ApiFutureUtils.toSingle(
+                  getSessionsCollection(userId).document(resolvedSessionId).set(sessionData))
+              .map(
+                  writeResult -> {
+                    sessionCache.put(sessionKey(userId, resolvedSessionId), newSession);
+                    sequencer.observe(sessionKey(userId, resolvedSessionId), true, 0);
+                    // The id may have been reused, replacing a session other replicas cached.
+                    publish(
+                        CacheInvalidationFeed.Scope.SESSION, sessionKey(userId, resolvedSessionId));
+                    return newSession;
+                  });
         });
   }
 
@@ -125,9 +280,37 @@ public class FirestoreSessionService implements BaseSessionService {
     Objects.requireNonNull(configOpt, "configOpt cannot be null");
 
     logger.info("Getting session for userId: {} with sessionId: {}", userId, sessionId);
-    ApiFuture<DocumentSnapshot> future = getSessionsCollection(userId).document(sessionId).get();
+    String key = sessionKey(userId, sessionId);
+    GetSessionConfig config = configOpt.orElse(GetSessionConfig.builder().build());
+
+    // Read-your-writes: anything still staged for this session must land before we query it.
+    return writeBuffer
+        .flush(key)
+        .andThen(
+            Maybe.defer(
+                () -> {
+                  Optional<SessionCache.Snapshot> cached =
+                      sessionCache.get(key).filter(snapshot -> snapshot.appName().equals(appName));
+                  if (cached.isPresent()) {
+                    return refreshCachedSession(
+                        key, cached.get(), appName, userId, sessionId, config);
+                  }
+                  return loadSession(key, appName, userId, sessionId, config);
+                }));
+  }
 
-    return ApiFutureUtils.toMaybe(future)
+  /** Reads the session document and its events, caching the result if it is the full history. */
+  private Maybe<Session> loadSession(
+      String key, String appName, String userId, String sessionId, GetSessionConfig config) {
+    DocumentReference sessionRef = getSessionsCollection(userId).document(sessionId);
+    if (config.afterTimestamp().isEmpty() && compactor.isEnabled()) {
+      // The checkpoint load is already bounded, and unlike a limited query it can be cached.
+      return loadFromCheckpoint(key, appName, userId, sessionId, sessionRef, config)
+          .map(session -> applyConfig(session, config));
+    }
+    return getAllWithStateTiers(appName, userId, sessionRef)
+        .map(documents -> documents.get(0))
+        .toMaybe()
         .flatMap(
             document -> {
               if (!document.exists()) {
@@ -141,56 +324,383 @@ public class FirestoreSessionService implements BaseSessionService {
                 return Maybe.empty();
               }
 
-              // Fetch events based on config
-              GetSessionConfig config = configOpt.orElse(GetSessionConfig.builder().build());
-              CollectionReference eventsCollection =
-                  document.getReference().collection(EVENTS_SUBCOLLECTION_NAME);
-              Query eventsQuery = eventsCollection.orderBy("timestamp");
+              boolean sequenced = EventSequencer.isSequenced(document);
+              boolean fullHistory =
+                  config.afterTimestamp().isEmpty() && config.numRecentEvents().isEmpty();
+              return loadEvents(sessionRef, config, userId, sequenced)
+                  .map(
+                      loaded -> {
+                        // A filtered read that found nothing does not tell the newest number.
+                        if (fullHistory || !loaded.events().isEmpty()) {
+                          sequencer.observe(key, sequenced, loaded.lastSeq());
+                        }
+                        Session session = withStateTiers(sessionFromData(data, loaded.events()));
+                        if (fullHistory) {
+                          sessionCache.put(key, session);
+                        }
+                        return session;
+                      })
+                  .toMaybe();
+            });
+  }
 
-              if (config.afterTimestamp().isPresent()) {
-                eventsQuery =
-                    eventsQuery.whereGreaterThan(
-                        "timestamp", config.afterTimestamp().get().toString());
+  /**
+   * Reads the session and its checkpoint in one round trip, then only the events written after
+   * the checkpoint. If older events have fallen out of the checkpoint and the config asks for
+   * more than it holds, the whole history is read instead; a session missing events is never
+   * returned or cached as if it were complete.
+   */
+  private Maybe<Session> loadFromCheckpoint(
+      String key,
+      String appName,
+      String userId,
+      String sessionId,
+      DocumentReference sessionRef,
+      GetSessionConfig config) {
+    return getAllWithStateTiers(appName, userId, sessionRef, compactor.checkpointRef(sessionRef))
+        .flatMapMaybe(
+            documents -> {
+              DocumentSnapshot document = documents.get(0);
+              if (!document.exists() || document.getData() == null) {
+                logger.warn("Session not found for sessionId: {}", sessionId);
+                return Maybe.error(new SessionNotFoundException("Session not found: " + sessionId));
               }
-
-              if (config.numRecentEvents().isPresent()) {
-                eventsQuery = eventsQuery.limitToLast(config.numRecentEvents().get());
+              SessionCompactor.Checkpoint checkpoint = compactor.read(documents.get(1));
+              boolean sequenced = EventSequencer.isSequenced(document);
+              if (!checkpoint.complete()
+                  && config.numRecentEvents().orElse(Integer.MAX_VALUE)
+                      > checkpoint.events().size()) {
+                return loadPastCheckpoint(key, userId, sessionRef, document, checkpoint, sequenced);
+              }
+              List<Event> events = new ArrayList<>();
+              for (Map<String, Object> eventData : checkpoint.events()) {
+                Event event = eventFromStored(eventData, null, userId);
+                if (event != null) {
+                  events.add(event);
+                }
+              }
+              Set<String> folded = checkpoint.eventIds();
+              Single<EventRange> tailEvents;
+              if (sequenced && checkpoint.throughSeq().isPresent()) {
+                tailEvents = loadEventsAfter(sessionRef, checkpoint.throughSeq().get(), userId);
+              } else {
+                // One millisecond of overlap; events already in the checkpoint are skipped by id.
+                GetSessionConfig tailConfig =
+                    checkpoint
+                        .through()
+                        .filter(through -> !sequenced)
+                        .map(
+                            through ->
+                                GetSessionConfig.builder()
+                                    .afterTimestamp(through.minusMillis(1))
+                                    .build())
+                        .orElse(GetSessionConfig.builder().build());
+                tailEvents = loadEvents(sessionRef, tailConfig, userId, sequenced);
               }
 
-              ApiFuture<List<QueryDocumentSnapshot>> eventsFuture =
-                  ApiFutures.transform(
-                      eventsQuery.get(),
-                      com.google.cloud.firestore.QuerySnapshot::getDocuments,
-                      Executors.newSingleThreadExecutor());
-
-              return ApiFutureUtils.toSingle(eventsFuture)
+              return tailEvents
                   .map(
-                      eventDocs -> {
-                        List<Event> events = new ArrayList<>();
-                        for (DocumentSnapshot eventDoc : eventDocs) {
-                          Event event = eventFromMap(eventDoc.getData(), userId);
-                          if (event != null) {
+                      loaded -> {
+                        List<Event> tail = loaded.events();
+                        sequencer.observe(
+                            key,
+                            sequenced,
+                            Math.max(checkpoint.throughSeq().orElse(0L), loaded.lastSeq()));
+                        for (Event event : tail) {
+                          if (!folded.contains(event.id())) {
                             events.add(event);
                           }
                         }
-                        return events;
-                      })
-                  .map(
-                      events -> {
-                        ConcurrentMap<String, Object> state =
-                            new ConcurrentHashMap<>((Map<String, Object>) data.get("state"));
-                        return Session.builder((String) data.get("id"))
-                            .appName((String) data.get("appName"))
-                            .userId((String) data.get("userId"))
-                            .lastUpdateTime(Instant.parse((String) data.get("updateTime")))
-                            .state(state)
-                            .events(events)
-                            .build();
+                        logger.info(
+                            "Loaded sessionId: {} from checkpoint ({} events) and tail ({} events)",
+                            sessionId,
+                            checkpoint.events().size(),
+                            tail.size());
+                        compactor.onLoaded(key, sessionRef, tail.size());
+                        Session session =
+                            withStateTiers(sessionFromData(document.getData(), events));
+                        // Only the newest events of an incomplete checkpoint were asked for.
+                        if (checkpoint.complete()) {
+                          sessionCache.put(key, session);
+                        }
+                        return session;
                       })
                   .toMaybe();
             });
   }
 
+  /**
+   * Reads the whole history of a session whose checkpoint has dropped events, and caches it. The
+   * events after the checkpoint still count towards the next compaction.
+   */
+  private Maybe<Session> loadPastCheckpoint(
+      String key,
+      String userId,
+      DocumentReference sessionRef,
+      DocumentSnapshot document,
+      SessionCompactor.Checkpoint checkpoint,
+      boolean sequenced) {
+    return loadEvents(sessionRef, GetSessionConfig.builder().build(), userId, sequenced)
+        .map(
+            loaded -> {
+              List<Event> events = loaded.events();
+              sequencer.observe(key, sequenced, loaded.lastSeq());
+              int tailSize = events.size();
+              Optional<String> throughId = checkpoint.throughId();
+              for (int i = events.size() - 1; i >= 0 && throughId.isPresent(); i--) {
+                if (throughId.get().equals(events.get(i).id())) {
+                  tailSize = events.size() - 1 - i;
+                  break;
+                }
+              }
+              logger.info(
+                  "Loaded sessionId: {} in full ({} events), its checkpoint is incomplete",
+                  sessionRef.getId(),
+                  events.size());
+              compactor.onLoaded(key, sessionRef, tailSize);
+              Session session = withStateTiers(sessionFromData(document.getData(), events));
+              sessionCache.put(key, session);
+              return session;
+            })
+        .toMaybe();
+  }
+
+  /**
+   * Serves a cached session, fetching only the session document and the events newer than the
+   * cached tail.
+   */
+  private Maybe<Session> refreshCachedSession(
+      String key,
+      SessionCache.Snapshot cached,
+      String appName,
+      String userId,
+      String sessionId,
+      GetSessionConfig config) {
+    DocumentReference sessionRef = getSessionsCollection(userId).document(sessionId);
+    Optional<Long> lastSeq = sequencer.last(key);
+    Single<EventRange> tailEvents;
+    if (lastSeq.isPresent()) {
+      tailEvents = loadEventsAfter(sessionRef, lastSeq.get(), userId);
+    } else {
+      // Step back one millisecond so events sharing the tail's timestamp are not missed; the
+      // duplicates this returns are dropped by id.
+      GetSessionConfig tailConfig =
+          cached
+              .tailTimestamp()
+              .map(tail -> GetSessionConfig.builder().afterTimestamp(tail.minusMillis(1)).build())
+              .orElse(GetSessionConfig.builder().build());
+      tailEvents = loadEvents(sessionRef, tailConfig, userId, false);
+    }
+
+    return Single.zip(
+            getAllWithStateTiers(appName, userId, sessionRef).map(documents -> documents.get(0)),
+            tailEvents,
+            (document, loaded) -> {
+              if (!document.exists() || document.getData() == null) {
+                sessionCache.invalidate(key);
+                throw new SessionNotFoundException("Session not found: " + sessionId);
+              }
+              List<Event> tail = loaded.events();
+              boolean sequenced = EventSequencer.isSequenced(document);
+              if (!sequenced || lastSeq.isPresent() || !tail.isEmpty()) {
+                sequencer.observe(key, sequenced, Math.max(lastSeq.orElse(0L), loaded.lastSeq()));
+              }
+              Session fresh =
+                  withStateTiers(sessionFromData(document.getData(), new ArrayList<>()));
+              logger.info(
+                  "Session cache hit for sessionId: {}, fetched {} tail events",
+                  sessionId,
+                  tail.size());
+              return applyConfig(sessionCache.extend(key, cached, fresh, tail).toSession(), config);
+            })
+        .toMaybe();
+  }
+
+  private DocumentReference appStateRef(String appName) {
+    return db.collection(APP_STATE_COLLECTION).document(appName);
+  }
+
+  private DocumentReference userStateRef(String appName, String userId) {
+    return db.collection(USER_STATE_COLLECTION)
+        .document(appName)
+        .collection("users")
+        .document(userId);
+  }
+
+  /**
+   * Reads the given documents in one round trip together with whichever of the app and user state
+   * documents are not cached, and caches those. Returns only the given documents, in order.
+   */
+  private Single<List<DocumentSnapshot>> getAllWithStateTiers(
+      String appName, String userId, DocumentReference... refs) {
+    boolean readAppState = stateTiers.appState(appName).isEmpty();
+    boolean readUserState = stateTiers.userState(appName, userId).isEmpty();
+    List<DocumentReference> toRead = new ArrayList<>(Arrays.asList(refs));
+    if (readAppState) {
+      toRead.add(appStateRef(appName));
+    }
+    if (readUserState) {
+      toRead.add(userStateRef(appName, userId));
+    }
+    return ApiFutureUtils.toSingle(db.getAll(toRead.toArray(new DocumentReference[0])))
+        .map(
+            documents -> {
+              int next = refs.length;
+              if (readAppState) {
+                stateTiers.putAppState(appName, documents.get(next++).getData());
+              }
+              if (readUserState) {
+                stateTiers.putUserState(appName, userId, documents.get(next).getData());
+              }
+              return documents.subList(0, refs.length);
+            });
+  }
+
+  /** Adds the cached app and user state to the session state under their prefixes. */
+  private Session withStateTiers(Session session) {
+    stateTiers
+        .appState(session.appName())
+        .ifPresent(
+            state -> state.forEach((key, value) -> session.state().put("_app_" + key, value)));
+    stateTiers
+        .userState(session.appName(), session.userId())
+        .ifPresent(
+            state -> state.forEach((key, value) -> session.state().put("_user_" + key, value)));
+    return session;
+  }
+
+  /** Trims a fully loaded session to what the config asks for. */
+  private static Session applyConfig(Session session, GetSessionConfig config) {
+    List<Event> events = session.events();
+    config
+        .afterTimestamp()
+        .ifPresent(after -> events.removeIf(event -> event.timestamp() <= after.toEpochMilli()));
+    config
+        .numRecentEvents()
+        .ifPresent(
+            limit -> {
+              if (events.size() > limit) {
+                events.subList(0, events.size() - limit).clear();
+              }
+            });
+    return session;
+  }
+
+  /**
+   * Reads the events the config asks for, oldest first. Events of a sequenced session are
+   * ordered by sequence number, except when read after a timestamp.
+   */
+  private Single<EventRange> loadEvents(
+      DocumentReference sessionRef, GetSessionConfig config, String userId, boolean sequenced) {
+    // Fetch events based on config
+    Query eventsQuery =
+        sessionRef
+            .collection(EVENTS_SUBCOLLECTION_NAME)
+            .orderBy(
+                sequenced && config.afterTimestamp().isEmpty()
+                    ? EventSequencer.SEQ_FIELD
+                    : "timestamp");
+
+    if (config.afterTimestamp().isPresent()) {
+      eventsQuery =
+          eventsQuery.whereGreaterThan("timestamp", config.afterTimestamp().get().toString());
+    }
+
+    if (config.numRecentEvents().isPresent()) {
+      eventsQuery = eventsQuery.limitToLast(config.numRecentEvents().get());
+    }
+
+    return queryEvents(eventsQuery, userId);
+  }
+
+  /** Reads the events of a sequenced session numbered after {@code afterSeq}, oldest first. */
+  private Single<EventRange> loadEventsAfter(
+      DocumentReference sessionRef, long afterSeq, String userId) {
+    return queryEvents(
+        sessionRef
+            .collection(EVENTS_SUBCOLLECTION_NAME)
+            .whereGreaterThan(EventSequencer.SEQ_FIELD, afterSeq)
+            .orderBy(EventSequencer.SEQ_FIELD),
+        userId);
+  }
+
+  private Single<EventRange> queryEvents(Query eventsQuery, String userId) {
+    ApiFuture<List<QueryDocumentSnapshot>> eventsFuture =
+        ApiFutures.transform(
+            eventsQuery.get(),
+            com.google.cloud.firestore.QuerySnapshot::getDocuments,
+            ApiFutureUtils.directExecutor());
+
+    return ApiFutureUtils.toSingle(eventsFuture)
+        .map(
+            eventDocs -> {
+              List<Event> events = new ArrayList<>();
+              long lastSeq = 0;
+              for (DocumentSnapshot eventDoc : eventDocs) {
+                lastSeq = Math.max(lastSeq, EventSequencer.seqOf(eventDoc));
+                Event event = eventFromDocument(eventDoc, userId);
+                if (event != null) {
+                  events.add(event);
+                }
+              }
+              return new EventRange(events, lastSeq);
+            });
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Session sessionFromData(Map<String, Object> data, List<Event> events) {
+    ConcurrentMap<String, Object> state =
+        new ConcurrentHashMap<>((Map<String, Object>) data.get("state"));
+    return Session.builder((String) data.get("id"))
+        .appName((String) data.get("appName"))
+        .userId((String) data.get("userId"))
+        .lastUpdateTime(Instant.parse((String) data.get("updateTime")))
+        .state(state)
+        .events(events)
+        .build();
+  }
+
+  private Event eventFromDocument(DocumentSnapshot eventDoc, String sessionUserId) {
+    return eventFromStored(eventDoc.getData(), eventDoc.getId(), sessionUserId);
+  }
+
+  /** Reconstructs an event, falling back to {@code documentId} for events stored without one. */
+  static Event eventFromStored(
+      Map<String, Object> data, String documentId, String sessionUserId) {
+    if (EventCodec.hasPayload(data)) {
+      try {
+        Event event = EventCodec.decode((Blob) data.get(EventCodec.PAYLOAD_FIELD));
+        if (event.id() == null && documentId != null) {
+          event.setId(documentId);
+        }
+        // The top-level author is authoritative: payloads written before it was mapped to the
+        // user's ID still hold "user" for the user's turns.
+        Object author = data.get("author");
+        if (author instanceof String) {
+          event.setAuthor((String) author);
+        }
+        return event;
+      } catch (RuntimeException e) {
+        logger.error("Failed to decode event payload of document {}", documentId, e);
+        return null;
+      }
+    }
+    Event event = eventFromMap(data, sessionUserId);
+    if (event != null) {
+      Object id = data.get("id");
+      if (id instanceof String) {
+        event.setId((String) id);
+      } else if (documentId != null) {
+        event.setId(documentId);
+      }
+      Object invocationId = data.get("invocationId");
+      if (invocationId instanceof String) {
+        event.setInvocationId((String) invocationId);
+      }
+    }
+    return event;
+  }
+
   /**
    * Reconstructs an Event object from a Map retrieved from Firestore.
    *
@@ -198,7 +708,7 @@ public class FirestoreSessionService implements BaseSessionService {
    * @return An Event object, or null if the data is malformed.
    */
   @SuppressWarnings("unchecked")
-  private Event eventFromMap(Map<String, Object> data, String sessionUserId) {
+  private static Event eventFromMap(Map<String, Object> data, String sessionUserId) {
     if (data == null) {
       return null;
     }
@@ -270,7 +780,7 @@ public class FirestoreSessionService implements BaseSessionService {
    * @param fcMap The map containing the function call 'name' and 'args'.
    * @return A Part containing the FunctionCall.
    */
-  private Part functionCallPartFromMap(Map<String, Object> fcMap) {
+  private static Part functionCallPartFromMap(Map<String, Object> fcMap) {
     if (fcMap == null) {
       return null;
     }
@@ -286,7 +796,7 @@ public class FirestoreSessionService implements BaseSessionService {
    * @param frMap The map containing the function response 'name' and 'response'.
    * @return A Part containing the FunctionResponse.
    */
-  private Part functionResponsePartFromMap(Map<String, Object> frMap) {
+  private static Part functionResponsePartFromMap(Map<String, Object> frMap) {
     if (frMap == null) {
       return null;
     }
@@ -302,317 +812,676 @@ public class FirestoreSessionService implements BaseSessionService {
    * @param fdMap The map containing the file data 'fileUri' and 'mimeType'.
    * @return A Part containing the file data.
    */
-  private Part fileDataPartFromMap(Map<String, Object> fdMap) {
+  private static Part fileDataPartFromMap(Map<String, Object> fdMap) {
     if (fdMap == null) return null;
     String fileUri = (String) fdMap.get("fileUri");
     String mimeType = (String) fdMap.get("mimeType");
     return Part.fromUri(fileUri, mimeType);
   }
 
-  private Map<String, Object> eventToMap(Session session, Event event) {
+  /** The event document of {@code event}, without the fields that identify it. */
+  static Map<String, Object> eventToMap(EventCodec codec, Session session, Event event) {
     Map<String, Object> data = new HashMap<>();
     // For user-generated events, the author should be the user's ID.
     // The ADK runner sets the author to "user" for the user's turn.
-    if ("user".equalsIgnoreCase(event.author())) {
-      data.put("author", session.userId());
-    } else {
-      data.put("author", event.author());
-    }
+    String author = "user".equalsIgnoreCase(event.author()) ? session.userId() : event.author();
+    data.put("author", author);
     data.put("timestamp", Instant.ofEpochMilli(event.timestamp()).toString());
     data.put("appName", session.appName()); // Persist appName with the event
 
-    Map<String, Object> contentData = new HashMap<>();
+    if (codec.encoding() == EventCodec.Encoding.BINARY) {
+      // The payload carries the whole event; only the fields queries filter on stay top level.
+      data.put(EventCodec.PAYLOAD_FIELD, codec.encode(event, author));
+    } else {
+      Map<String, Object> contentData = new HashMap<>();
+      List<Map<String, Object>> partsData = partsToMaps(event);
+      logger.debug("Serialized parts data before saving: {}", partsData);
+      contentData.put("parts", partsData);
+      data.put("content", contentData);
+    }
+
+    return data;
+  }
+
+  private static List<Map<String, Object>> partsToMaps(Event event) {
     List<Map<String, Object>> partsData = new ArrayList<>();
-    Set<String> keywords = new HashSet<>();
+    for (Part part : event.content().flatMap(Content::parts).orElse(List.of())) {
+      Map<String, Object> partData = new HashMap<>();
+      part.text().ifPresent(text -> partData.put("text", text));
+      part.functionCall()
+          .ifPresent(
+              fc -> {
+                Map<String, Object> fcMap = new HashMap<>();
+                fc.name().ifPresent(name -> fcMap.put("name", name));
+                fc.args().ifPresent(args -> fcMap.put("args", args));
+                if (!fcMap.isEmpty()) {
+                  partData.put("functionCall", fcMap);
+                }
+              });
+      part.functionResponse()
+          .ifPresent(
+              fr -> {
+                Map<String, Object> frMap = new HashMap<>();
+                fr.name().ifPresent(name -> frMap.put("name", name));
+                fr.response().ifPresent(response -> frMap.put("response", response));
+                if (!frMap.isEmpty()) {
+                  partData.put("functionResponse", frMap);
+                }
+              });
+      part.fileData()
+          .ifPresent(
+              fd -> {
+                Map<String, Object> fdMap = new HashMap<>();
+                // When serializing, we assume the artifact service has already converted the
+                // bytes to a GCS URI.
+                fd.fileUri().ifPresent(uri -> fdMap.put("fileUri", uri));
+                fd.mimeType().ifPresent(mime -> fdMap.put("mimeType", mime));
+                if (!fdMap.isEmpty()) {
+                  partData.put("fileData", fdMap);
+                }
+              });
+
+      // Add other part types if necessary
+      partsData.add(partData);
+    }
+    return partsData;
+  }
 
-    event
-        .content()
-        .flatMap(Content::parts)
-        .ifPresent(
-            parts -> {
-              for (Part part : parts) {
-                Map<String, Object> partData = new HashMap<>();
-                part.text()
-                    .ifPresent(
-                        text -> {
-                          partData.put("text", text);
-                          // Extract keywords only if there is text
-                          if (!text.isEmpty()) {
-
-                            Matcher matcher = WORD_PATTERN.matcher(text);
-                            while (matcher.find()) {
-                              String word = matcher.group().toLowerCase(Locale.ROOT);
-                              if (!STOP_WORDS.contains(word)) {
-                                keywords.add(word);
-                              }
-                            }
-                          }
-                        });
-                part.functionCall()
-                    .ifPresent(
-                        fc -> {
-                          Map<String, Object> fcMap = new HashMap<>();
-                          fc.name().ifPresent(name -> fcMap.put("name", name));
-                          fc.args().ifPresent(args -> fcMap.put("args", args));
-                          if (!fcMap.isEmpty()) {
-                            partData.put("functionCall", fcMap);
-                          }
-                        });
-                part.functionResponse()
-                    .ifPresent(
-                        fr -> {
-                          Map<String, Object> frMap = new HashMap<>();
-                          fr.name().ifPresent(name -> frMap.put("name", name));
-                          fr.response().ifPresent(response -> frMap.put("response", response));
-                          if (!frMap.isEmpty()) {
-                            partData.put("functionResponse", frMap);
-                          }
-                        });
-                part.fileData()
-                    .ifPresent(
-                        fd -> {
-                          Map<String, Object> fdMap = new HashMap<>();
-                          // When serializing, we assume the artifact service has already converted
-                          // the
-                          // bytes to a GCS URI.
-                          fd.fileUri().ifPresent(uri -> fdMap.put("fileUri", uri));
-                          fd.mimeType().ifPresent(mime -> fdMap.put("mimeType", mime));
-                          if (!fdMap.isEmpty()) {
-                            partData.put("fileData", fdMap);
-                          }
-                        });
+  /** Events read in sequence order and the sequence number of the newest one, 0 if none. */
+  public static final class EventRange {
+    private final List<Event> events;
+    private final long lastSeq;
 
-                // Add other part types if necessary
-                partsData.add(partData);
-              }
-            });
+    private EventRange(List<Event> events, long lastSeq) {
+      this.events = events;
+      this.lastSeq = lastSeq;
+    }
 
-    logger.info("Serialized parts data before saving: {}", partsData);
-    contentData.put("parts", partsData);
-    data.put("content", contentData);
-    if (!keywords.isEmpty()) {
-      data.put("keywords", new ArrayList<>(keywords)); // Firestore works well with Lists
+    public List<Event> events() {
+      return events;
     }
 
-    return data;
+    public long lastSeq() {
+      return lastSeq;
+    }
+  }
+
+  /** One page of sessions and the token of the next page, if there is one. */
+  public static final class SessionPage {
+    private final List<Session> sessions;
+    private final Optional<String> nextPageToken;
+
+    private SessionPage(List<Session> sessions, Optional<String> nextPageToken) {
+      this.sessions = sessions;
+      this.nextPageToken = nextPageToken;
+    }
+
+    public List<Session> sessions() {
+      return sessions;
+    }
+
+    public Optional<String> nextPageToken() {
+      return nextPageToken;
+    }
   }
 
   @Override
   public Single<ListSessionsResponse> listSessions(String appName, String userId) {
-    return Single.fromCallable(
+    return streamSessions(appName, userId)
+        .toList()
+        .map(sessions -> ListSessionsResponse.builder().sessions(sessions).build());
+  }
+
+  /**
+   * Lists one page of the user's sessions, ordered by id.
+   *
+   * @param pageToken the {@code nextPageToken} of the previous page, or empty for the first page.
+   */
+  public Single<SessionPage> listSessions(
+      String appName, String userId, int pageSize, Optional<String> pageToken) {
+    return Single.defer(
         () -> {
           Objects.requireNonNull(appName, "appName cannot be null");
           Objects.requireNonNull(userId, "userId cannot be null");
 
-          logger.info("Listing sessions for userId: {}", userId);
-
-          Query query = getSessionsCollection(userId).whereEqualTo("appName", appName);
-
-          ApiFuture<List<QueryDocumentSnapshot>> querySnapshot =
-              ApiFutures.transform(
-                  query.get(), // Query is already scoped to the user
-                  snapshot -> snapshot.getDocuments(),
-                  Executors.newSingleThreadExecutor());
-
-          List<Session> sessions = new ArrayList<>();
-          for (DocumentSnapshot document : querySnapshot.get()) {
-            Map<String, Object> data = document.getData();
-            if (data != null) {
-              // Create a session object with empty events and state, as per
-              // InMemorySessionService
-              Session session =
-                  Session.builder((String) data.get("id"))
-                      .appName((String) data.get("appName"))
-                      .userId((String) data.get("userId"))
-                      .lastUpdateTime(Instant.parse((String) data.get("updateTime")))
-                      .state(new ConcurrentHashMap<>()) // Empty state
-                      .events(new ArrayList<>()) // Empty events
-                      .build();
-              sessions.add(session);
-            }
+          logger.info("Listing a page of {} sessions for userId: {}", pageSize, userId);
+          Query query = sessionsQuery(appName, userId).limit(pageSize);
+          if (pageToken.isPresent()) {
+            query = query.startAfter((Object[]) decodePageToken(pageToken.get(), 1));
           }
+          return ApiFutureUtils.documents(query)
+              .toList()
+              .map(
+                  documents -> {
+                    List<Session> sessions = new ArrayList<>();
+                    for (QueryDocumentSnapshot document : documents) {
+                      sessions.add(sessionSummary(document.getData()));
+                    }
+                    Optional<String> nextPageToken =
+                        documents.size() < pageSize
+                            ? Optional.empty()
+                            : Optional.of(
+                                encodePageToken(documents.get(documents.size() - 1).getId()));
+                    return new SessionPage(sessions, nextPageToken);
+                  });
+        });
+  }
+
+  /** Streams the user's sessions page by page; pages are read as the subscriber requests them. */
+  public Flowable<Session> streamSessions(String appName, String userId) {
+    return Flowable.defer(
+        () -> {
+          Objects.requireNonNull(appName, "appName cannot be null");
+          Objects.requireNonNull(userId, "userId cannot be null");
 
-          return ListSessionsResponse.builder().sessions(sessions).build();
+          logger.info("Listing sessions for userId: {}", userId);
+          return ApiFutureUtils.pages(sessionsQuery(appName, userId), LIST_PAGE_SIZE)
+              .concatMapIterable(documents -> documents)
+              .map(document -> sessionSummary(document.getData()));
         });
   }
 
+  /** The user's sessions in the app, ordered by id and projected to the listed fields. */
+  private Query sessionsQuery(String appName, String userId) {
+    // Query is already scoped to the user
+    return getSessionsCollection(userId)
+        .whereEqualTo("appName", appName)
+        .select(SESSION_SUMMARY_FIELDS)
+        .orderBy(FieldPath.documentId());
+  }
+
+  private static Session sessionSummary(Map<String, Object> data) {
+    // Create a session object with empty events and state, as per InMemorySessionService
+    return Session.builder((String) data.get("id"))
+        .appName((String) data.get("appName"))
+        .userId((String) data.get("userId"))
+        .lastUpdateTime(Instant.parse((String) data.get("updateTime")))
+        .state(new ConcurrentHashMap<>()) // Empty state
+        .events(new ArrayList<>()) // Empty events
+        .build();
+  }
+
+  /** Page tokens are the cursor values of the last document, URL-safe Base64 encoded. */
+  private static String encodePageToken(String... values) {
+    return Base64.getUrlEncoder()
+        .withoutPadding()
+        .encodeToString(String.join("\n", values).getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String[] decodePageToken(String token, int expectedValues) {
+    try {
+      String[] values =
+          new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split("\n", -1);
+      if (values.length == expectedValues) {
+        return values;
+      }
+    } catch (IllegalArgumentException e) {
+      // Reported below.
+    }
+    throw new IllegalArgumentException("Invalid page token: " + token);
+  }
+
   @Override
   public Completable deleteSession(String appName, String userId, String sessionId) {
-    return Completable.fromAction(
+    return Completable.defer(
         () -> {
           Objects.requireNonNull(appName, "appName cannot be null");
           Objects.requireNonNull(userId, "userId cannot be null");
           Objects.requireNonNull(sessionId, "sessionId cannot be null");
 
           logger.info("Deleting session for userId: {} with sessionId: {}", userId, sessionId);
+          String key = sessionKey(userId, sessionId);
 
           // Reference to the session document
-          com.google.cloud.firestore.DocumentReference sessionRef =
-              getSessionsCollection(userId).document(sessionId);
-
-          // 1. Delete all events in the subcollection
-          CollectionReference eventsRef = sessionRef.collection(EVENTS_SUBCOLLECTION_NAME);
-          com.google.api.core.ApiFuture<com.google.cloud.firestore.QuerySnapshot> eventsQuery =
-              eventsRef.get();
-          List<QueryDocumentSnapshot> eventDocuments = eventsQuery.get().getDocuments();
-          List<ApiFuture<WriteResult>> deleteFutures = new ArrayList<>();
-          for (QueryDocumentSnapshot doc : eventDocuments) {
-            deleteFutures.add(doc.getReference().delete());
-          }
-          // Wait for all event deletions to complete
-          if (!deleteFutures.isEmpty()) {
-            ApiFutures.allAsList(deleteFutures).get();
-          }
+          DocumentReference sessionRef = getSessionsCollection(userId).document(sessionId);
+
+          // Land staged writes first so they cannot recreate documents after the delete.
+          return writeBuffer
+              .flush(key)
+              .onErrorComplete()
+              // 1. Delete all events in the subcollection, one page at a time
+              .andThen(
+                  deleter
+                      .delete(
+                          sessionRef.collection(EVENTS_SUBCOLLECTION_NAME),
+                          "events of " + sessionRef.getPath())
+                      .ignoreElement())
+              .andThen(
+                  Completable.defer(
+                      () ->
+                          ApiFutureUtils.toCompletable(
+                              compactor.checkpointRef(sessionRef).delete())))
+              // 2. Delete the session document itself
+              .andThen(Completable.defer(() -> ApiFutureUtils.toCompletable(sessionRef.delete())))
+              .doOnComplete(
+                  () -> {
+                    sessionCache.invalidate(key);
+                    compactor.forget(key);
+                    sequencer.forget(key);
+                    publish(CacheInvalidationFeed.Scope.SESSION, key);
+                    logger.info("Successfully deleted session: {}", sessionId);
+                  });
+        });
+  }
 
-          // 2. Delete the session document itself
-          ApiFuture<WriteResult> deleteSessionFuture = sessionRef.delete();
-          deleteSessionFuture.get(); // Block until deletion is complete
+  /**
+   * Deletes every session the user has in the app, plus the user's state for the app, e.g. to
+   * honour an erasure request.
+   *
+   * @return the number of sessions deleted.
+   */
+  public Single<Long> deleteAllSessions(String appName, String userId) {
+    return Single.defer(
+        () -> {
+          Objects.requireNonNull(appName, "appName cannot be null");
+          Objects.requireNonNull(userId, "userId cannot be null");
+          logger.info("Deleting all sessions of userId: {} in app: {}", userId, appName);
+          DocumentReference userStateRef = userStateRef(appName, userId);
+          return deleteSessions(
+                  appName,
+                  getSessionsCollection(userId).whereEqualTo("appName", appName),
+                  "sessions of " + userId)
+              .flatMap(
+                  count ->
+                      ApiFutureUtils.toCompletable(userStateRef.delete()).toSingleDefault(count))
+              .doOnSuccess(
+                  count -> {
+                    stateTiers.invalidateUserState(appName, userId);
+                    publish(CacheInvalidationFeed.Scope.USER_STATE, appName + "/" + userId);
+                  });
+        });
+  }
 
-          logger.info("Successfully deleted session: {}", sessionId);
+  /**
+   * Deletes every session of every user in the app, plus the app and user state of the app.
+   * Requires a collection group index on {@code sessions.appName}.
+   *
+   * @return the number of sessions deleted.
+   */
+  public Single<Long> deleteAllSessions(String appName) {
+    return Single.defer(
+        () -> {
+          Objects.requireNonNull(appName, "appName cannot be null");
+          logger.info("Deleting all sessions in app: {}", appName);
+          return deleteSessions(
+                  appName,
+                  db.collectionGroup("sessions").whereEqualTo("appName", appName),
+                  "sessions of app " + appName)
+              .flatMap(
+                  count ->
+                      deleter
+                          .delete(
+                              db.collection(USER_STATE_COLLECTION)
+                                  .document(appName)
+                                  .collection("users"),
+                              "user state of app " + appName)
+                          .ignoreElement()
+                          .andThen(
+                              Completable.defer(
+                                  () ->
+                                      ApiFutureUtils.toCompletable(
+                                          db.collection(USER_STATE_COLLECTION)
+                                              .document(appName)
+                                              .delete())))
+                          .andThen(
+                              Completable.defer(
+                                  () ->
+                                      ApiFutureUtils.toCompletable(
+                                          appStateRef(appName).delete())))
+                          .toSingleDefault(count))
+              .doOnSuccess(
+                  count -> {
+                    stateTiers.invalidateApp(appName);
+                    publish(CacheInvalidationFeed.Scope.APP, appName);
+                  });
         });
   }
 
+  /** Deletes the sessions matched by the query, a few at a time, each with its events. */
+  private Single<Long> deleteSessions(String appName, Query sessions, String description) {
+    long started = System.nanoTime();
+    return deleter
+        .pages(sessions)
+        .concatMapSingle(
+            page ->
+                Flowable.fromIterable(page)
+                    .flatMapCompletable(
+                        session -> {
+                          DocumentReference ref = session.getReference();
+                          String userId = ref.getParent().getParent().getId();
+                          return deleteSession(appName, userId, ref.getId());
+                        },
+                        false,
+                        MAX_CONCURRENT_SESSION_DELETES)
+                    .toSingleDefault((long) page.size()))
+        .scan(0L, Long::sum)
+        .doOnNext(
+            count ->
+                logger.info(
+                    "Deleting {}: {} sessions in {} ms",
+                    description,
+                    count,
+                    (System.nanoTime() - started) / 1_000_000))
+        .last(0L);
+  }
+
   @Override
   public Single<ListEventsResponse> listEvents(String appName, String userId, String sessionId) {
-    return Single.fromCallable(
+    return streamEvents(appName, userId, sessionId)
+        .toList()
+        .map(
+            events -> {
+              logger.info("Returning {} events for sessionId: {}", events.size(), sessionId);
+              return ListEventsResponse.builder().events(events).build();
+            });
+  }
+
+  /**
+   * Lists one page of the session's events, oldest first.
+   *
+   * @param pageToken the {@code nextPageToken} of the previous page, or empty for the first page.
+   */
+  public Single<ListEventsResponse> listEvents(
+      String appName, String userId, String sessionId, int pageSize, Optional<String> pageToken) {
+    return Single.defer(
         () -> {
           Objects.requireNonNull(appName, "appName cannot be null");
           Objects.requireNonNull(userId, "userId cannot be null");
           Objects.requireNonNull(sessionId, "sessionId cannot be null");
 
-          logger.info("Listing events for userId: {} with sessionId: {}", userId, sessionId);
+          logger.info(
+              "Listing a page of {} events for userId: {} with sessionId: {}",
+              pageSize,
+              userId,
+              sessionId);
+          DocumentReference sessionRef = getSessionsCollection(userId).document(sessionId);
+          return sessionSequenced(appName, userId, sessionId, sessionRef)
+              .flatMap(
+                  sequenced -> {
+                    Query query = eventsQuery(sessionRef, sequenced).limit(pageSize);
+                    if (pageToken.isPresent() && sequenced) {
+                      query = query.startAfter(parseSeq(decodePageToken(pageToken.get(), 1)[0]));
+                    } else if (pageToken.isPresent()) {
+                      query = query.startAfter((Object[]) decodePageToken(pageToken.get(), 2));
+                    }
+                    return ApiFutureUtils.documents(query)
+                        .toList()
+                        .map(documents -> eventsPage(documents, userId, pageSize, sequenced));
+                  });
+        });
+  }
 
-          // First, check if the session document exists.
-          ApiFuture<DocumentSnapshot> sessionFuture =
-              getSessionsCollection(userId).document(sessionId).get();
-          DocumentSnapshot sessionDocument = sessionFuture.get(); // Block for the result
+  private ListEventsResponse eventsPage(
+      List<QueryDocumentSnapshot> documents, String userId, int pageSize, boolean sequenced) {
+    List<Event> events = new ArrayList<>();
+    for (QueryDocumentSnapshot document : documents) {
+      Event event = eventFromDocument(document, userId);
+      if (event != null) {
+        events.add(event);
+      }
+    }
+    ListEventsResponse.Builder response = ListEventsResponse.builder().events(events);
+    if (documents.size() == pageSize) {
+      QueryDocumentSnapshot last = documents.get(documents.size() - 1);
+      response.nextPageToken(
+          sequenced
+              ? encodePageToken(String.valueOf(EventSequencer.seqOf(last)))
+              : encodePageToken(last.getString("timestamp"), last.getId()));
+    }
+    return response.build();
+  }
 
-          if (!sessionDocument.exists()) {
-            logger.warn(
-                "Session not found for sessionId: {}. Returning empty list of events.", sessionId);
-            throw new SessionNotFoundException(appName + "," + userId + "," + sessionId);
-          }
+  private static long parseSeq(String value) {
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid page token sequence number: " + value, e);
+    }
+  }
 
-          // Session exists, now fetch the events.
-          CollectionReference eventsCollection =
-              sessionDocument.getReference().collection(EVENTS_SUBCOLLECTION_NAME);
-          Query eventsQuery = eventsCollection.orderBy("timestamp");
-
-          ApiFuture<List<QueryDocumentSnapshot>> eventsFuture =
-              ApiFutures.transform(
-                  eventsQuery.get(),
-                  querySnapshot -> querySnapshot.getDocuments(),
-                  Executors.newSingleThreadExecutor());
-
-          List<Event> events = new ArrayList<>();
-          for (DocumentSnapshot eventDoc : eventsFuture.get()) {
-            Event event = eventFromMap(eventDoc.getData(), userId);
-            if (event != null) {
-              events.add(event);
-            }
-          }
-          logger.info("Returning {} events for sessionId: {}", events.size(), sessionId);
-          return ListEventsResponse.builder().events(events).build();
+  /**
+   * Reads the events of the session numbered after {@code afterSeq}, oldest first, e.g. to catch
+   * up from the {@link EventRange#lastSeq()} of a previous read. Fails with {@link
+   * IllegalArgumentException} for sessions created before events were numbered.
+   */
+  public Single<EventRange> listEventsAfter(
+      String appName, String userId, String sessionId, long afterSeq) {
+    return Single.defer(
+        () -> {
+          Objects.requireNonNull(appName, "appName cannot be null");
+          Objects.requireNonNull(userId, "userId cannot be null");
+          Objects.requireNonNull(sessionId, "sessionId cannot be null");
+
+          DocumentReference sessionRef = getSessionsCollection(userId).document(sessionId);
+          return sessionSequenced(appName, userId, sessionId, sessionRef)
+              .flatMap(
+                  sequenced -> {
+                    if (!sequenced) {
+                      return Single.error(
+                          new IllegalArgumentException(
+                              "Events of session " + sessionId + " have no sequence numbers"));
+                    }
+                    return loadEventsAfter(sessionRef, afterSeq, userId);
+                  });
+        });
+  }
+
+  /** Streams the session's events page by page; pages are read as the subscriber requests them. */
+  public Flowable<Event> streamEvents(String appName, String userId, String sessionId) {
+    return Flowable.defer(
+        () -> {
+          Objects.requireNonNull(appName, "appName cannot be null");
+          Objects.requireNonNull(userId, "userId cannot be null");
+          Objects.requireNonNull(sessionId, "sessionId cannot be null");
+
+          logger.info("Listing events for userId: {} with sessionId: {}", userId, sessionId);
+
+          DocumentReference sessionRef = getSessionsCollection(userId).document(sessionId);
+          return sessionSequenced(appName, userId, sessionId, sessionRef)
+              .flatMapPublisher(
+                  sequenced ->
+                      ApiFutureUtils.pages(eventsQuery(sessionRef, sequenced), LIST_PAGE_SIZE))
+              .concatMapIterable(documents -> documents)
+              .concatMapMaybe(
+                  document -> Maybe.fromCallable(() -> eventFromDocument(document, userId)));
         });
   }
 
+  /**
+   * The session's events, oldest first. Events of sequenced sessions are ordered by their unique
+   * sequence number; otherwise the document id breaks timestamp ties for cursors.
+   */
+  private static Query eventsQuery(DocumentReference sessionRef, boolean sequenced) {
+    if (sequenced) {
+      return sessionRef.collection(EVENTS_SUBCOLLECTION_NAME).orderBy(EventSequencer.SEQ_FIELD);
+    }
+    return sessionRef
+        .collection(EVENTS_SUBCOLLECTION_NAME)
+        .orderBy("timestamp")
+        .orderBy(FieldPath.documentId());
+  }
+
+  /**
+   * Emits whether the session's events are numbered; fails with {@link SessionNotFoundException}
+   * if the session document does not exist.
+   */
+  private Single<Boolean> sessionSequenced(
+      String appName, String userId, String sessionId, DocumentReference sessionRef) {
+    return ApiFutureUtils.toSingle(sessionRef.get())
+        .flatMap(
+            sessionDocument -> {
+              if (!sessionDocument.exists()) {
+                logger.warn("Session not found for sessionId: {}.", sessionId);
+                return Single.error(
+                    new SessionNotFoundException(appName + "," + userId + "," + sessionId));
+              }
+              return Single.just(EventSequencer.isSequenced(sessionDocument));
+            });
+  }
+
   @CanIgnoreReturnValue
   @Override
   public Single<Event> appendEvent(Session session, Event event) {
-    return Single.fromCallable(
+    return Single.defer(
         () -> {
           Objects.requireNonNull(session, "session cannot be null");
           Objects.requireNonNull(session.appName(), "session.appName cannot be null");
           Objects.requireNonNull(session.userId(), "session.userId cannot be null");
           Objects.requireNonNull(session.id(), "session.id cannot be null");
           logger.info("appendEvent(S,E) - appending event to sessionId: {}", session.id());
-          String appName = session.appName();
           String userId = session.userId();
           String sessionId = session.id();
+          DocumentReference sessionRef = getSessionsCollection(userId).document(sessionId);
+          return appendEvent(session, event, sessionRef);
+        });
+  }
 
-          List<ApiFuture<WriteResult>> futures = new ArrayList<>();
-
-          // --- Update User/App State ---
-          EventActions actions = event.actions();
-          if (actions != null) {
-            Map<String, Object> stateDelta = actions.stateDelta();
-            if (stateDelta != null && !stateDelta.isEmpty()) {
-              Map<String, Object> appStateUpdates = new HashMap<>();
-              Map<String, Object> userStateUpdates = new HashMap<>();
-
-              stateDelta.forEach(
-                  (key, value) -> {
-                    if (key.startsWith("_app_")) {
-                      appStateUpdates.put(key.substring("_app_".length()), value);
-                    } else if (key.startsWith("_user_")) {
-                      userStateUpdates.put(key.substring("_user_".length()), value);
-                    } else {
-                      // Regular session state
-                      if (value == null) {
-                        session.state().remove(key);
-                      } else {
-                        session.state().put(key, value);
-                      }
-                    }
-                  });
+  /** Stages the event's writes; the event is numbered when they are committed. */
+  private Single<Event> appendEvent(Session session, Event event, DocumentReference sessionRef) {
+    String appName = session.appName();
+    String userId = session.userId();
+    String sessionId = session.id();
+
+    // Deterministic document id, so a retried commit overwrites instead of duplicating.
+    String eventId = eventDocumentId(event);
+    EventWriteBuffer.Writes writes =
+        writeBuffer.begin(sessionKey(userId, sessionId), event.invocationId());
+
+    // --- Update User/App State ---
+    // Only the keys in the delta are written; removed keys are deleted field by field.
+    Map<FieldPath, Object> stateUpdates = new LinkedHashMap<>();
+    Map<String, Object> appStateUpdates = new HashMap<>();
+    Map<String, Object> userStateUpdates = new HashMap<>();
+    EventActions actions = event.actions();
+    if (actions != null) {
+      Map<String, Object> stateDelta = actions.stateDelta();
+      if (stateDelta != null && !stateDelta.isEmpty()) {
+        applyStateDelta(
+            stateDelta, session.state(), stateUpdates, appStateUpdates, userStateUpdates);
+
+        if (!appStateUpdates.isEmpty()) {
+          writes.merge(appStateRef(appName), appStateUpdates);
+        }
+        if (!userStateUpdates.isEmpty()) {
+          writes.merge(userStateRef(appName, userId), userStateUpdates);
+        }
+      }
+    }
 
+    // This adds the event to the session's internal list.
+    BaseSessionService.super.appendEvent(session, event);
+    session.lastUpdateTime(getInstantFromEvent(event));
+
+    // --- Persist event to Firestore ---
+    Map<String, Object> eventData = eventToMap(codec, session, event);
+    eventData.put("id", eventId);
+    eventData.put("userId", userId);
+    eventData.put("appName", appName);
+    if (event.invocationId() != null) {
+      eventData.put("invocationId", event.invocationId());
+    }
+    writes.setNumbered(
+        sessionRef.collection(EVENTS_SUBCOLLECTION_NAME).document(eventId), eventData, sessionRef);
+
+    // --- Update the session document in Firestore ---
+    // Deferred to the end of the invocation and coalesced, so the event's own write is the only
+    // one on the hot path. The timestamp is bumped even when no state changed; deferred, that is
+    // part of the one deferred session write per invocation rather than a write per event.
+    stateUpdates.put(FieldPath.of("updateTime"), session.lastUpdateTime().toString());
+    writes.deferUpdate(sessionRef, stateUpdates);
+
+    sessionCache.append(sessionKey(userId, sessionId), session, event);
+    compactor.onAppended(sessionKey(userId, sessionId), sessionRef);
+
+    // Drop cached tiers we write to, both now and once the write has landed, so a read
+    // racing the commit cannot keep the old value cached.
+    Runnable invalidateStateTiers =
+        () -> {
+          if (!appStateUpdates.isEmpty()) {
+            stateTiers.invalidateAppState(appName);
+          }
+          if (!userStateUpdates.isEmpty()) {
+            stateTiers.invalidateUserState(appName, userId);
+          }
+        };
+    invalidateStateTiers.run();
+
+    boolean endOfInvocation = event.finalResponse() && !event.partial().orElse(false);
+    return writeBuffer
+        .stage(writes, endOfInvocation)
+        .doOnTerminate(invalidateStateTiers::run)
+        .doOnError(error -> sessionCache.invalidate(sessionKey(userId, sessionId)))
+        .doOnComplete(
+            () -> {
+              publish(CacheInvalidationFeed.Scope.SESSION, sessionKey(userId, sessionId));
               if (!appStateUpdates.isEmpty()) {
-                futures.add(
-                    db.collection(APP_STATE_COLLECTION)
-                        .document(appName)
-                        .set(appStateUpdates, com.google.cloud.firestore.SetOptions.merge()));
+                publish(CacheInvalidationFeed.Scope.APP_STATE, appName);
               }
               if (!userStateUpdates.isEmpty()) {
-                futures.add(
-                    db.collection(USER_STATE_COLLECTION)
-                        .document(appName)
-                        .collection("users")
-                        .document(userId)
-                        .set(userStateUpdates, com.google.cloud.firestore.SetOptions.merge()));
+                publish(CacheInvalidationFeed.Scope.USER_STATE, appName + "/" + userId);
               }
+              writes
+                  .committed()
+                  .subscribe(() -> notifyAppended(session, event), error -> {});
+              logger.info("Event appended successfully to sessionId: {}", sessionId);
+              logger.info("Returning appended event: {}", event.stringifyContent());
+            })
+        .toSingleDefault(event);
+  }
+
+  private void notifyAppended(Session session, Event event) {
+    for (AppendListener listener : appendListeners) {
+      try {
+        listener.onEventAppended(session, event);
+      } catch (RuntimeException e) {
+        logger.warn("Append listener failed for sessionId: {}", session.id(), e);
+      }
+    }
+  }
+
+  /**
+   * Applies an event's state delta to the session's state and splits it into the field updates of
+   * the session document and the merges into the app and user state documents. ADK marks a removed
+   * key with {@link State#REMOVED}; it, like a null value, becomes {@link FieldValue#delete()}.
+   */
+  static void applyStateDelta(
+      Map<String, Object> stateDelta,
+      Map<String, Object> sessionState,
+      Map<FieldPath, Object> stateUpdates,
+      Map<String, Object> appStateUpdates,
+      Map<String, Object> userStateUpdates) {
+    stateDelta.forEach(
+        (key, value) -> {
+          boolean removed = value == null || value == State.REMOVED;
+          Object stored = removed ? FieldValue.delete() : value;
+          if (key.startsWith("_app_")) {
+            appStateUpdates.put(key.substring("_app_".length()), stored);
+          } else if (key.startsWith("_user_")) {
+            userStateUpdates.put(key.substring("_user_".length()), stored);
+          } else {
+            // Regular session state
+            if (removed) {
+              sessionState.remove(key);
+            } else {
+              sessionState.put(key, value);
             }
+            stateUpdates.put(FieldPath.of("state", key), stored);
           }
-
-          // This adds the event to the session's internal list.
-          BaseSessionService.super.appendEvent(session, event);
-          session.lastUpdateTime(getInstantFromEvent(event));
-
-          // --- Persist event to Firestore ---
-          Map<String, Object> eventData = eventToMap(session, event);
-          eventData.put("userId", userId);
-          eventData.put("appName", appName);
-          // Generate a new ID for the event document
-          String eventId =
-              getSessionsCollection(userId)
-                  .document(sessionId)
-                  .collection(EVENTS_SUBCOLLECTION_NAME)
-                  .document()
-                  .getId();
-          futures.add(
-              getSessionsCollection(userId)
-                  .document(sessionId)
-                  .collection(EVENTS_SUBCOLLECTION_NAME)
-                  .document(eventId)
-                  .set(eventData));
-
-          // --- Update the session document in Firestore ---
-          Map<String, Object> sessionUpdates = new HashMap<>();
-          sessionUpdates.put("updateTime", session.lastUpdateTime().toString());
-          sessionUpdates.put("state", session.state());
-          futures.add(getSessionsCollection(userId).document(sessionId).update(sessionUpdates));
-
-          // Block and wait for all async Firestore operations to complete.
-          // This makes the method effectively synchronous within the reactive chain,
-          // ensuring the database is consistent before the runner proceeds.
-          ApiFutures.allAsList(futures).get();
-
-          logger.info("Event appended successfully to sessionId: {}", sessionId);
-          logger.info("Returning appended event: {}", event.stringifyContent());
-
-          return event;
         });
   }
 
+  /**
+   * Returns the id used for the event's Firestore document. The runner assigns every event a
+   * unique id; events without one get an id derived from their invocation, author and timestamp.
+   */
+  private static String eventDocumentId(Event event) {
+    if (event.id() == null || event.id().isEmpty()) {
+      String seed = event.invocationId() + "|" + event.author() + "|" + event.timestamp();
+      event.setId(UUID.nameUUIDFromBytes(seed.getBytes(StandardCharsets.UTF_8)).toString());
+    }
+    return event.id();
+  }
+
   /** Converts an event's timestamp to an Instant. Adapt based on actual Event structure. */
   private Instant getInstantFromEvent(Event event) {
     // The event timestamp is in milliseconds since the epoch.
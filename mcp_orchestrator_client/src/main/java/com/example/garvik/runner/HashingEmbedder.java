@@ -0,0 +1,63 @@
+package com.example.garvik.runner;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Embeds text by hashing its keywords and their character trigrams into a fixed number of
+ * dimensions. Needs no model and no network, and the same text always gets the same vector.
+ *
+ * <p>Texts that share words, or parts of words such as "refund" and "refunded", come out close.
+ * Synonyms do not; an {@link Embedder} backed by an embedding model is needed for those.
+ */
+public class HashingEmbedder implements Embedder {
+
+  private static final HashFunction HASH = Hashing.murmur3_128(0x5eed);
+
+  private static final float WORD_WEIGHT = 1f;
+  private static final float TRIGRAM_WEIGHT = 0.5f;
+
+  private final KeywordExtractor keywordExtractor;
+  private final int dimensions;
+
+  public HashingEmbedder(KeywordExtractor keywordExtractor, int dimensions) {
+    this.keywordExtractor = keywordExtractor;
+    this.dimensions = dimensions;
+  }
+
+  @Override
+  public int dimensions() {
+    return dimensions;
+  }
+
+  @Override
+  public float[] embed(String text) {
+    float[] vector = new float[dimensions];
+    for (String keyword : keywordExtractor.keywords(text)) {
+      addFeature(vector, "w:" + keyword, WORD_WEIGHT);
+      String padded = "<" + keyword + ">";
+      for (int i = 0; i + 3 <= padded.length(); i++) {
+        addFeature(vector, padded.substring(i, i + 3), TRIGRAM_WEIGHT);
+      }
+    }
+    double norm = 0;
+    for (float value : vector) {
+      norm += value * value;
+    }
+    if (norm > 0) {
+      float scale = (float) (1 / Math.sqrt(norm));
+      for (int i = 0; i < vector.length; i++) {
+        vector[i] *= scale;
+      }
+    }
+    return vector;
+  }
+
+  /** Adds the feature to one dimension, with a sign from the hash so collisions tend to cancel. */
+  private void addFeature(float[] vector, String feature, float weight) {
+    long hash = HASH.hashString(feature, StandardCharsets.UTF_8).asLong();
+    int index = (int) Math.floorMod(hash, (long) dimensions);
+    vector[index] += hash < 0 ? -weight : weight;
+  }
+}
@@ -0,0 +1,341 @@
+package com.example.garvik.runner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Approximate nearest-neighbour index over unit-length vectors: a hierarchical navigable small
+ * world graph (Malkov and Yashunin). Similarity is the dot product, i.e. cosine similarity.
+ *
+ * <p>Vectors are identified by a string label and never removed. Searches run concurrently with
+ * each other; additions are exclusive. The index can be written to a file and read back.
+ */
+public class HnswIndex {
+
+  private static final int MAGIC = 0x484e5357; // "HNSW"
+  private static final byte VERSION = 1;
+
+  /** A labelled vector found by a search and its similarity to the query. */
+  public static final class Hit {
+    private final String label;
+    private final double similarity;
+
+    private Hit(String label, double similarity) {
+      this.label = label;
+      this.similarity = similarity;
+    }
+
+    public String label() {
+      return label;
+    }
+
+    public double similarity() {
+      return similarity;
+    }
+  }
+
+  private static final class Candidate {
+    private final int node;
+    private final double similarity;
+
+    private Candidate(int node, double similarity) {
+      this.node = node;
+      this.similarity = similarity;
+    }
+  }
+
+  private static final Comparator<Candidate> BY_SIMILARITY =
+      Comparator.comparingDouble(candidate -> candidate.similarity);
+
+  private final int dimensions;
+  private final int m;
+  private final int efConstruction;
+  private final int efSearch;
+  private final double levelMultiplier;
+  private final Random random;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private final List<String> labels = new ArrayList<>();
+  private final Map<String, Integer> nodesByLabel = new HashMap<>();
+  private final List<float[]> vectors = new ArrayList<>();
+  /** Per node and level: the neighbour count followed by the neighbours. */
+  private final List<int[][]> links = new ArrayList<>();
+
+  private int entryPoint = -1;
+  private int maxLevel = -1;
+
+  /**
+   * @param m neighbours linked per node on each level above the bottom one, which gets twice as
+   *     many. Higher values improve recall at the cost of memory and insert time.
+   * @param efConstruction candidates considered when linking a new node.
+   * @param efSearch candidates considered by a search; at least the number of results asked for.
+   */
+  public HnswIndex(int dimensions, int m, int efConstruction, int efSearch) {
+    this.dimensions = dimensions;
+    this.m = m;
+    this.efConstruction = efConstruction;
+    this.efSearch = efSearch;
+    this.levelMultiplier = 1 / Math.log(m);
+    // A fixed seed keeps the graph reproducible for the same sequence of additions.
+    this.random = new Random(m);
+  }
+
+  public int dimensions() {
+    return dimensions;
+  }
+
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return labels.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public boolean contains(String label) {
+    lock.readLock().lock();
+    try {
+      return nodesByLabel.containsKey(label);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Adds a unit-length vector under the label, unless the label is already indexed. */
+  public void add(String label, float[] vector) {
+    if (vector.length != dimensions) {
+      throw new IllegalArgumentException(
+          "Expected " + dimensions + " dimensions but got " + vector.length);
+    }
+    lock.writeLock().lock();
+    try {
+      if (nodesByLabel.containsKey(label)) {
+        return;
+      }
+      int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+      int node = addNode(label, vector, level);
+      if (entryPoint < 0) {
+        entryPoint = node;
+        maxLevel = level;
+        return;
+      }
+      int current = entryPoint;
+      for (int l = maxLevel; l > level; l--) {
+        current = searchLayer(vector, current, 1, l).get(0).node;
+      }
+      for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+        List<Candidate> nearest = searchLayer(vector, current, efConstruction, l);
+        for (Candidate neighbour : nearest.subList(0, Math.min(m, nearest.size()))) {
+          link(node, neighbour.node, l);
+          link(neighbour.node, node, l);
+        }
+        current = nearest.get(0).node;
+      }
+      if (level > maxLevel) {
+        maxLevel = level;
+        entryPoint = node;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Returns up to {@code limit} labels whose vectors are most similar to the query, best first. */
+  public List<Hit> search(float[] query, int limit) {
+    lock.readLock().lock();
+    try {
+      if (entryPoint < 0 || limit <= 0) {
+        return List.of();
+      }
+      int current = entryPoint;
+      for (int l = maxLevel; l > 0; l--) {
+        current = searchLayer(query, current, 1, l).get(0).node;
+      }
+      List<Candidate> nearest = searchLayer(query, current, Math.max(efSearch, limit), 0);
+      List<Hit> hits = new ArrayList<>(Math.min(limit, nearest.size()));
+      for (Candidate candidate : nearest.subList(0, Math.min(limit, nearest.size()))) {
+        hits.add(new Hit(labels.get(candidate.node), candidate.similarity));
+      }
+      return hits;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Writes the index to the file, replacing it atomically. */
+  public void write(Path file) throws IOException {
+    Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    lock.readLock().lock();
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      out.writeInt(dimensions);
+      out.writeInt(m);
+      out.writeInt(efConstruction);
+      out.writeInt(efSearch);
+      out.writeInt(labels.size());
+      out.writeInt(entryPoint);
+      out.writeInt(maxLevel);
+      for (int node = 0; node < labels.size(); node++) {
+        out.writeUTF(labels.get(node));
+        for (float value : vectors.get(node)) {
+          out.writeFloat(value);
+        }
+        int[][] nodeLinks = links.get(node);
+        out.writeInt(nodeLinks.length);
+        for (int[] level : nodeLinks) {
+          out.writeInt(level[0]);
+          for (int i = 1; i <= level[0]; i++) {
+            out.writeInt(level[i]);
+          }
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** Reads an index written by {@link #write}. */
+  public static HnswIndex read(Path file) throws IOException {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not an HNSW index: " + file);
+      }
+      byte version = in.readByte();
+      if (version != VERSION) {
+        throw new IOException("Unsupported HNSW index version " + version + ": " + file);
+      }
+      HnswIndex index = new HnswIndex(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+      int size = in.readInt();
+      int entryPoint = in.readInt();
+      int maxLevel = in.readInt();
+      for (int node = 0; node < size; node++) {
+        String label = in.readUTF();
+        float[] vector = new float[index.dimensions];
+        for (int i = 0; i < vector.length; i++) {
+          vector[i] = in.readFloat();
+        }
+        int levels = in.readInt();
+        index.addNode(label, vector, levels - 1);
+        int[][] nodeLinks = index.links.get(node);
+        for (int l = 0; l < levels; l++) {
+          int count = in.readInt();
+          nodeLinks[l][0] = count;
+          for (int i = 1; i <= count; i++) {
+            nodeLinks[l][i] = in.readInt();
+          }
+        }
+      }
+      index.entryPoint = entryPoint;
+      index.maxLevel = maxLevel;
+      return index;
+    }
+  }
+
+  private int addNode(String label, float[] vector, int level) {
+    int node = labels.size();
+    labels.add(label);
+    nodesByLabel.put(label, node);
+    vectors.add(vector);
+    int[][] nodeLinks = new int[level + 1][];
+    for (int l = 0; l <= level; l++) {
+      nodeLinks[l] = new int[1 + capacity(l)];
+    }
+    links.add(nodeLinks);
+    return node;
+  }
+
+  private int capacity(int level) {
+    return level == 0 ? 2 * m : m;
+  }
+
+  /**
+   * Best-first search of one level from the entry node. Returns up to {@code ef} of the nodes
+   * most similar to the query, best first.
+   */
+  private List<Candidate> searchLayer(float[] query, int entry, int ef, int level) {
+    BitSet visited = new BitSet(labels.size());
+    PriorityQueue<Candidate> candidates = new PriorityQueue<>(BY_SIMILARITY.reversed());
+    PriorityQueue<Candidate> results = new PriorityQueue<>(BY_SIMILARITY);
+    Candidate start = new Candidate(entry, similarity(query, vectors.get(entry)));
+    visited.set(entry);
+    candidates.add(start);
+    results.add(start);
+    while (!candidates.isEmpty()) {
+      Candidate closest = candidates.poll();
+      if (results.size() >= ef && closest.similarity < results.peek().similarity) {
+        break;
+      }
+      int[] neighbours = links.get(closest.node)[level];
+      for (int i = 1; i <= neighbours[0]; i++) {
+        int neighbour = neighbours[i];
+        if (visited.get(neighbour)) {
+          continue;
+        }
+        visited.set(neighbour);
+        double similarity = similarity(query, vectors.get(neighbour));
+        if (results.size() < ef || similarity > results.peek().similarity) {
+          Candidate candidate = new Candidate(neighbour, similarity);
+          candidates.add(candidate);
+          results.add(candidate);
+          if (results.size() > ef) {
+            results.poll();
+          }
+        }
+      }
+    }
+    Candidate[] sorted = results.toArray(new Candidate[0]);
+    Arrays.sort(sorted, BY_SIMILARITY.reversed());
+    return Arrays.asList(sorted);
+  }
+
+  /** Links the node to the neighbour; a full neighbour list keeps only the most similar ones. */
+  private void link(int node, int neighbour, int level) {
+    int[] neighbours = links.get(node)[level];
+    int count = neighbours[0];
+    if (count < neighbours.length - 1) {
+      neighbours[count + 1] = neighbour;
+      neighbours[0] = count + 1;
+      return;
+    }
+    float[] vector = vectors.get(node);
+    Candidate[] all = new Candidate[count + 1];
+    for (int i = 0; i < count; i++) {
+      all[i] = new Candidate(neighbours[i + 1], similarity(vector, vectors.get(neighbours[i + 1])));
+    }
+    all[count] = new Candidate(neighbour, similarity(vector, vectors.get(neighbour)));
+    Arrays.sort(all, BY_SIMILARITY.reversed());
+    for (int i = 0; i < count; i++) {
+      neighbours[i + 1] = all[i].node;
+    }
+  }
+
+  private static double similarity(float[] a, float[] b) {
+    double dot = 0;
+    for (int i = 0; i < a.length; i++) {
+      dot += a[i] * b[i];
+    }
+    return dot;
+  }
+}
@@ -0,0 +1,116 @@
+package com.example.garvik.runner;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Splits text into lower-case keywords for memory search. Used both when events are indexed and
+ * when queries are parsed, so the two always agree.
+ *
+ * <p>A keyword is a run of Unicode letters, including combining marks, so non-Latin scripts are
+ * kept. The text is scanned code point by code point into one reusable buffer; only keywords that
+ * survive the stop list become strings.
+ */
+public class KeywordExtractor {
+
+  private static final Set<String> STOP_WORDS =
+      Set.of(
+          "a", "an", "and", "are", "as", "at", "be", "but", "by", "for", "if", "in", "into", "is",
+          "it", "i", "no", "not", "of", "on", "or", "such", "that", "the", "their", "then",
+          "there", "these", "they", "this", "to", "was", "will", "with", "what", "where", "when",
+          "why", "how", "help", "need", "like", "make", "got", "would", "could", "should");
+
+  /** Longest stop word; longer tokens skip the stop-list lookup. */
+  private static final int MAX_STOP_WORD_LENGTH = 6;
+
+  private final boolean stemming;
+
+  /**
+   * @param stemming strip English plural endings, so that "tickets" matches "ticket". Changing
+   *     this affects how stored keywords match new queries.
+   */
+  public KeywordExtractor(boolean stemming) {
+    this.stemming = stemming;
+  }
+
+  public Set<String> keywords(CharSequence text) {
+    Set<String> keywords = new HashSet<>();
+    addKeywords(text, keywords);
+    return keywords;
+  }
+
+  /** Adds the keywords of the text to the given set. */
+  public void addKeywords(CharSequence text, Set<String> keywords) {
+    if (text == null) {
+      return;
+    }
+    StringBuilder token = new StringBuilder(16);
+    int length = text.length();
+    int i = 0;
+    while (i < length) {
+      int codePoint = Character.codePointAt(text, i);
+      i += Character.charCount(codePoint);
+      if (isWordChar(codePoint)) {
+        token.appendCodePoint(Character.toLowerCase(codePoint));
+      } else if (token.length() > 0) {
+        emit(token, keywords);
+      }
+    }
+    if (token.length() > 0) {
+      emit(token, keywords);
+    }
+  }
+
+  private void emit(StringBuilder token, Set<String> keywords) {
+    if (stemming) {
+      stem(token);
+    }
+    String word = token.toString();
+    token.setLength(0);
+    if (word.length() > MAX_STOP_WORD_LENGTH || !STOP_WORDS.contains(word)) {
+      keywords.add(word);
+    }
+  }
+
+  private static boolean isWordChar(int codePoint) {
+    if (Character.isLetter(codePoint)) {
+      return true;
+    }
+    int type = Character.getType(codePoint);
+    return type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK;
+  }
+
+  /** Light English plural stripping: "stories" to "story", "boxes" to "box", "cars" to "car". */
+  private static void stem(StringBuilder word) {
+    int n = word.length();
+    if (n > 4 && endsWith(word, "ies")) {
+      word.setLength(n - 3);
+      word.append('y');
+    } else if (n > 4
+        && (endsWith(word, "sses")
+            || endsWith(word, "xes")
+            || endsWith(word, "ches")
+            || endsWith(word, "shes"))) {
+      word.setLength(n - 2);
+    } else if (n > 3
+        && word.charAt(n - 1) == 's'
+        && word.charAt(n - 2) != 's'
+        && word.charAt(n - 2) != 'u'
+        && word.charAt(n - 2) != 'i') {
+      word.setLength(n - 1);
+    }
+  }
+
+  private static boolean endsWith(StringBuilder word, String suffix) {
+    int offset = word.length() - suffix.length();
+    if (offset < 0) {
+      return false;
+    }
+    for (int i = 0; i < suffix.length(); i++) {
+      if (word.charAt(offset + i) != suffix.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,424 @@
+package com.example.garvik.runner;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.BulkWriter;
+import com.google.cloud.firestore.BulkWriterException;
+import com.google.cloud.firestore.BulkWriterOptions;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QueryPartition;
+import com.google.cloud.firestore.WriteBatch;
+import com.google.cloud.firestore.WriteResult;
+import com.google.genai.types.Part;
+import io.grpc.Status;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.core.Single;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Recomputes the stored {@code keywords} of every event, e.g. after the keyword extraction
+ * changed.
+ *
+ * <p>The {@code user-events} collection group is split into partitions that are scanned in
+ * parallel, page by page, in document id order. Keywords are recomputed on a fork-join pool and
+ * only changed documents are written, through one rate-limited {@link BulkWriter}. Once a page's
+ * writes are acknowledged, the partition's position is checkpointed in its own document under
+ * {@code adk-reindex-jobs/<jobId>/partitions}, so a job restarted with the same id resumes where
+ * it stopped.
+ *
+ * <p>Run from the command line with {@link #main}. The Firestore client connects to the emulator
+ * when {@code FIRESTORE_EMULATOR_HOST} is set.
+ */
+public class KeywordReindexJob {
+
+  private static final org.slf4j.Logger logger =
+      org.slf4j.LoggerFactory.getLogger(KeywordReindexJob.class);
+
+  private static final String EVENTS_SUBCOLLECTION_NAME = "user-events";
+  private static final String JOBS_COLLECTION_NAME = "adk-reindex-jobs";
+  private static final String PARTITIONS_SUBCOLLECTION_NAME = "partitions";
+  private static final String KEYWORDS_FIELD = "keywords";
+
+  /** The codes Firestore retries batch writes on, which the default error listener retries. */
+  private static final Set<Status.Code> RETRYABLE_CODES =
+      EnumSet.of(Status.Code.ABORTED, Status.Code.RESOURCE_EXHAUSTED, Status.Code.UNAVAILABLE);
+
+  /** A range of the collection group, and how far it has been re-indexed. */
+  private static final class Partition {
+    private final String key;
+    private final String startAt;
+    private final String endBefore;
+    private final String cursor;
+
+    private Partition(String key, String startAt, String endBefore, String cursor) {
+      this.key = key;
+      this.startAt = startAt;
+      this.endBefore = endBefore;
+      this.cursor = cursor;
+    }
+  }
+
+  /** A document whose keywords changed. */
+  private static final class KeywordUpdate {
+    private final DocumentReference ref;
+    private final Object keywords;
+
+    private KeywordUpdate(DocumentReference ref, Object keywords) {
+      this.ref = ref;
+      this.keywords = keywords;
+    }
+  }
+
+  private final Firestore db;
+  private final KeywordExtractor keywordExtractor;
+  private final ForkJoinPool pool;
+  private final int partitionCount;
+  private final int pageSize;
+  private final int maxOpsPerSecond;
+
+  private final AtomicLong scanned = new AtomicLong();
+  private final AtomicLong updated = new AtomicLong();
+
+  /**
+   * @param keywordExtractor the extraction the keywords are recomputed with.
+   * @param pool computes the keywords of each page in parallel.
+   * @param partitionCount partitions requested for a new job; Firestore may return fewer.
+   * @param pageSize documents read per round trip in each partition.
+   * @param maxOpsPerSecond cap on the write rate, which ramps up to it.
+   */
+  public KeywordReindexJob(
+      Firestore db,
+      KeywordExtractor keywordExtractor,
+      ForkJoinPool pool,
+      int partitionCount,
+      int pageSize,
+      int maxOpsPerSecond) {
+    this.db = db;
+    this.keywordExtractor = keywordExtractor;
+    this.pool = pool;
+    this.partitionCount = partitionCount;
+    this.pageSize = pageSize;
+    this.maxOpsPerSecond = maxOpsPerSecond;
+  }
+
+  /**
+   * Runs or resumes the job with the given id and returns how many documents were updated by this
+   * run.
+   */
+  public Single<Long> run(String jobId) {
+    DocumentReference jobRef = db.collection(JOBS_COLLECTION_NAME).document(jobId);
+    return Single.defer(
+        () -> {
+          BulkWriter writer =
+              db.bulkWriter(
+                  BulkWriterOptions.builder().setMaxOpsPerSecond(maxOpsPerSecond).build());
+          writer.addWriteErrorListener(KeywordReindexJob::retryWrite);
+          long started = System.nanoTime();
+          return partitions(jobRef)
+              .flatMapPublisher(Flowable::fromIterable)
+              .flatMapCompletable(
+                  partition -> reindex(jobRef, writer, partition, started),
+                  false,
+                  Math.max(pool.getParallelism(), 1))
+              .andThen(
+                  Completable.defer(
+                      () ->
+                          ApiFutureUtils.toCompletable(
+                              jobRef.update("completedAt", Instant.now().toString()))))
+              .doFinally(writer::close)
+              .doOnComplete(() -> logProgress(jobId, started))
+              .toSingle(updated::get);
+        });
+  }
+
+  /** The job's unfinished partitions: read from its checkpoint, or created on the first run. */
+  private Single<List<Partition>> partitions(DocumentReference jobRef) {
+    return ApiFutureUtils.toSingle(jobRef.get())
+        .flatMap(
+            snapshot -> {
+              if (!snapshot.exists()) {
+                return createPartitions(jobRef);
+              }
+              return ApiFutureUtils.toSingle(
+                      jobRef.collection(PARTITIONS_SUBCOLLECTION_NAME)
+                          .whereEqualTo("done", false)
+                          .get())
+                  .map(
+                      unfinished -> {
+                        List<Partition> partitions = new ArrayList<>();
+                        for (QueryDocumentSnapshot partition : unfinished.getDocuments()) {
+                          partitions.add(
+                              new Partition(
+                                  partition.getId(),
+                                  partition.getString("startAt"),
+                                  partition.getString("endBefore"),
+                                  partition.getString("cursor")));
+                        }
+                        logger.info(
+                            "Resuming re-index {} with {} unfinished partitions",
+                            jobRef.getId(),
+                            partitions.size());
+                        return partitions;
+                      });
+            });
+  }
+
+  private Single<List<Partition>> createPartitions(DocumentReference jobRef) {
+    return ApiFutureUtils.toSingle(
+            db.collectionGroup(EVENTS_SUBCOLLECTION_NAME).getPartitions(partitionCount))
+        .onErrorReturn(
+            error -> {
+              // The emulator, for one, may not support partition queries.
+              logger.warn("Partitioning failed; re-indexing as one partition", error);
+              return List.of();
+            })
+        .flatMap(
+            queryPartitions -> {
+              List<Partition> partitions = new ArrayList<>();
+              if (queryPartitions.isEmpty()) {
+                partitions.add(new Partition("0", null, null, null));
+              }
+              for (int i = 0; i < queryPartitions.size(); i++) {
+                QueryPartition queryPartition = queryPartitions.get(i);
+                partitions.add(
+                    new Partition(
+                        String.valueOf(i),
+                        cursorPath(queryPartition.getStartAt()),
+                        cursorPath(queryPartition.getEndBefore()),
+                        null));
+              }
+              WriteBatch batch = db.batch();
+              batch.set(jobRef, Map.of("startedAt", Instant.now().toString()));
+              for (Partition partition : partitions) {
+                Map<String, Object> data = new HashMap<>();
+                data.put("startAt", partition.startAt);
+                data.put("endBefore", partition.endBefore);
+                data.put("done", false);
+                data.put("scanned", 0L);
+                data.put("updated", 0L);
+                batch.set(partitionRef(jobRef, partition), data);
+              }
+              logger.info(
+                  "Starting re-index {} with {} partitions", jobRef.getId(), partitions.size());
+              return ApiFutureUtils.toCompletable(batch.commit()).toSingleDefault(partitions);
+            });
+  }
+
+  private Completable reindex(
+      DocumentReference jobRef, BulkWriter writer, Partition partition, long started) {
+    Query query = db.collectionGroup(EVENTS_SUBCOLLECTION_NAME).orderBy(FieldPath.documentId());
+    if (partition.cursor != null) {
+      query = query.startAfter(db.document(partition.cursor));
+    } else if (partition.startAt != null) {
+      query = query.startAt(db.document(partition.startAt));
+    }
+    if (partition.endBefore != null) {
+      query = query.endBefore(db.document(partition.endBefore));
+    }
+    return ApiFutureUtils.pages(query, pageSize)
+        .concatMapCompletable(
+            page ->
+                keywordUpdates(page)
+                    .flatMapCompletable(
+                        updates ->
+                            write(writer, updates)
+                                .andThen(
+                                    checkpoint(jobRef, partition, page, updates.size(), started))),
+            1)
+        .andThen(
+            Completable.defer(
+                () ->
+                    ApiFutureUtils.toCompletable(
+                        partitionRef(jobRef, partition).update("done", true))));
+  }
+
+  /** Recomputes the keywords of the page's documents in parallel on the pool. */
+  private Single<List<KeywordUpdate>> keywordUpdates(List<QueryDocumentSnapshot> page) {
+    return Single.fromCompletionStage(
+        CompletableFuture.supplyAsync(
+            () ->
+                page.parallelStream()
+                    .map(this::keywordUpdate)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList()),
+            pool));
+  }
+
+  /** The update to the document's keywords, or null if they are unchanged. */
+  private KeywordUpdate keywordUpdate(QueryDocumentSnapshot document) {
+    Set<String> keywords = new HashSet<>();
+    try {
+      List<Part> parts = FirestoreMemoryService.textParts(document.getData());
+      for (Part part : parts != null ? parts : List.<Part>of()) {
+        part.text().ifPresent(text -> keywordExtractor.addKeywords(text, keywords));
+      }
+    } catch (RuntimeException e) {
+      logger.warn("Skipping unreadable event {}", document.getReference().getPath(), e);
+      return null;
+    }
+    Object stored = document.get(KEYWORDS_FIELD);
+    Set<Object> current = stored instanceof List ? new HashSet<>((List<?>) stored) : Set.of();
+    if (current.equals(keywords)) {
+      return null;
+    }
+    return new KeywordUpdate(
+        document.getReference(),
+        keywords.isEmpty() ? FieldValue.delete() : new ArrayList<>(keywords));
+  }
+
+  /**
+   * Retries what the default listener retries, but gives up at once on an event document deleted
+   * since the scan read it.
+   */
+  private static boolean retryWrite(BulkWriterException error) {
+    if (error.getStatus().getCode() == Status.Code.NOT_FOUND) {
+      return false;
+    }
+    return error.getFailedAttempts() < BulkWriter.MAX_RETRY_ATTEMPTS
+        && RETRYABLE_CODES.contains(error.getStatus().getCode());
+  }
+
+  private Completable write(BulkWriter writer, List<KeywordUpdate> updates) {
+    return Completable.defer(
+        () -> {
+          if (updates.isEmpty()) {
+            return Completable.complete();
+          }
+          List<ApiFuture<WriteResult>> results = new ArrayList<>(updates.size());
+          for (KeywordUpdate update : updates) {
+            results.add(
+                ApiFutures.catching(
+                    writer.update(update.ref, KEYWORDS_FIELD, update.keywords),
+                    BulkWriterException.class,
+                    error -> {
+                      if (error.getStatus().getCode() != Status.Code.NOT_FOUND) {
+                        throw error;
+                      }
+                      logger.debug("Skipping deleted event {}", update.ref.getPath());
+                      return null;
+                    },
+                    ApiFutureUtils.directExecutor()));
+          }
+          writer.flush();
+          return ApiFutureUtils.toCompletable(ApiFutures.allAsList(results));
+        });
+  }
+
+  /** Records how far the partition got, once the writes of the page are acknowledged. */
+  private Completable checkpoint(
+      DocumentReference jobRef,
+      Partition partition,
+      List<QueryDocumentSnapshot> page,
+      int pageUpdates,
+      long started) {
+    return Completable.defer(
+        () -> {
+          long total = scanned.addAndGet(page.size());
+          updated.addAndGet(pageUpdates);
+          if (total % (10L * pageSize) < page.size()) {
+            logProgress(jobRef.getId(), started);
+          }
+          return ApiFutureUtils.toCompletable(
+              partitionRef(jobRef, partition)
+                  .update(
+                      "cursor",
+                      page.get(page.size() - 1).getReference().getPath(),
+                      "scanned",
+                      FieldValue.increment(page.size()),
+                      "updated",
+                      FieldValue.increment(pageUpdates)));
+        });
+  }
+
+  private void logProgress(String jobId, long startedNanos) {
+    double seconds = Math.max((System.nanoTime() - startedNanos) / 1e9, 0.001);
+    logger.info(
+        "Re-index {}: {} documents scanned, {} updated in {}s ({} docs/s)",
+        jobId,
+        scanned.get(),
+        updated.get(),
+        String.format("%.1f", seconds),
+        String.format("%.0f", scanned.get() / seconds));
+  }
+
+  private static DocumentReference partitionRef(DocumentReference jobRef, Partition partition) {
+    return jobRef.collection(PARTITIONS_SUBCOLLECTION_NAME).document(partition.key);
+  }
+
+  private static String cursorPath(Object[] cursor) {
+    return cursor != null && cursor.length > 0 && cursor[0] instanceof DocumentReference
+        ? ((DocumentReference) cursor[0]).getPath()
+        : null;
+  }
+
+  /**
+   * Usage: {@code KeywordReindexJob <jobId> [partitions] [pageSize] [maxOpsPerSecond]
+   * [stemming]}. Connects with the default credentials and project, or to the emulator when
+   * {@code FIRESTORE_EMULATOR_HOST} is set.
+   */
+  public static void main(String[] args) {
+    if (args.length < 1) {
+      System.err.println(
+          "Usage: KeywordReindexJob <jobId> [partitions] [pageSize] [maxOpsPerSecond]"
+              + " [stemming]");
+      System.exit(2);
+    }
+    String jobId = args[0];
+    int partitions = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+    int pageSize = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+    int maxOpsPerSecond = args.length > 3 ? Integer.parseInt(args[3]) : 500;
+    boolean stemming = args.length > 4 && Boolean.parseBoolean(args[4]);
+
+    ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    Firestore db = FirestoreOptions.getDefaultInstance().getService();
+    try {
+      long updated =
+          new KeywordReindexJob(
+                  db,
+                  new KeywordExtractor(stemming),
+                  pool,
+                  partitions,
+                  pageSize,
+                  maxOpsPerSecond)
+              .run(jobId)
+              .blockingGet();
+      logger.info("Re-index {} finished; {} documents updated", jobId, updated);
+    } catch (Exception e) {
+      logger.error("Re-index {} failed; run again with the same id to resume", jobId, e);
+      System.exit(1);
+    } finally {
+      pool.shutdown();
+      close(db);
+    }
+    System.exit(0);
+  }
+
+  private static void close(Firestore db) {
+    try {
+      db.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      logger.warn("Closing Firestore failed", e);
+    }
+  }
+}
@@ -0,0 +1,280 @@
+package com.example.garvik.runner;
+
+import com.google.adk.memory.MemoryEntry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.genai.types.Content;
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.core.Single;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiFunction;
+
+/**
+ * In-process inverted index of the events each user has in an app, used to answer memory searches
+ * without querying Firestore.
+ *
+ * <p>A user's index is built from Firestore on first use and then kept current by the events this
+ * node appends. Indexes of inactive users are evicted, and every index is rebuilt after a while so
+ * that events appended by other nodes are picked up. Firestore stays the source of truth.
+ */
+public class MemoryIndex {
+
+  private static final org.slf4j.Logger logger =
+      org.slf4j.LoggerFactory.getLogger(MemoryIndex.class);
+
+  /** An indexed event: the memory entry returned by searches and the keywords it is found by. */
+  public static final class Document {
+    private final String eventId;
+    private final MemoryEntry entry;
+    private final long timestampMillis;
+    private final String[] keywords;
+
+    public Document(
+        String eventId, MemoryEntry entry, long timestampMillis, Collection<String> keywords) {
+      this.eventId = eventId;
+      this.entry = entry;
+      this.timestampMillis = timestampMillis;
+      this.keywords = keywords.toArray(new String[0]);
+    }
+
+    public String eventId() {
+      return eventId;
+    }
+
+    public MemoryEntry entry() {
+      return entry;
+    }
+
+    public long timestampMillis() {
+      return timestampMillis;
+    }
+
+    public int keywordCount() {
+      return keywords.length;
+    }
+  }
+
+  /** Growable array of document numbers, in ascending order. */
+  private static final class Postings {
+    private int[] docs = new int[4];
+    private int size;
+
+    private void add(int doc) {
+      if (size == docs.length) {
+        docs = Arrays.copyOf(docs, size * 2);
+      }
+      docs[size++] = doc;
+    }
+  }
+
+  /** A document and its relevance to a query. */
+  private static final class Scored {
+    private final Document document;
+    private final double score;
+
+    private Scored(Document document, double score) {
+      this.document = document;
+      this.score = score;
+    }
+  }
+
+  /** The index of one user in one app. Documents are numbered in the order they were added. */
+  public static final class UserIndex {
+    private final List<Document> documents = new ArrayList<>();
+    private final Map<String, Integer> docsByEventId = new HashMap<>();
+    private final Map<String, Postings> postings = new HashMap<>();
+    private long totalKeywords;
+
+    private synchronized void add(Document document) {
+      int doc = documents.size();
+      if (docsByEventId.putIfAbsent(document.eventId, doc) != null) {
+        return;
+      }
+      documents.add(document);
+      totalKeywords += document.keywords.length;
+      for (String keyword : document.keywords) {
+        postings.computeIfAbsent(keyword, k -> new Postings()).add(doc);
+      }
+    }
+
+    /**
+     * Returns at most {@code limit} documents matching any of the keywords, most relevant first.
+     *
+     * <p>Relevance is the BM25 score of the document's keywords, where each keyword occurs once,
+     * scaled by its age: a document loses half of the recency share of its score
+     * every {@code recencyHalfLife}. Documents with the same content as a better one are
+     * left out.
+     */
+    public synchronized List<Document> search(
+        Collection<String> keywords, int limit, Duration recencyHalfLife, long nowMillis) {
+      int n = documents.size();
+      if (n == 0 || limit <= 0) {
+        return List.of();
+      }
+      double averageLength = Math.max((double) totalKeywords / n, 1);
+      double[] scores = new double[n];
+      BitSet matches = new BitSet(n);
+      for (String keyword : keywords) {
+        Postings list = postings.get(keyword);
+        if (list == null) {
+          continue;
+        }
+        double idf = Math.log(1 + (n - list.size + 0.5) / (list.size + 0.5));
+        for (int i = 0; i < list.size; i++) {
+          int doc = list.docs[i];
+          double length = documents.get(doc).keywords.length;
+          scores[doc] += idf * (K1 + 1) / (1 + K1 * (1 - B + B * length / averageLength));
+          matches.set(doc);
+        }
+      }
+
+      double halfLifeMillis = Math.max(recencyHalfLife.toMillis(), 1);
+      Map<Content, Scored> bestByContent = new HashMap<>();
+      for (int doc = matches.nextSetBit(0); doc >= 0; doc = matches.nextSetBit(doc + 1)) {
+        Document document = documents.get(doc);
+        double age = Math.max(nowMillis - document.timestampMillis, 0);
+        double recency = Math.pow(0.5, age / halfLifeMillis);
+        Scored scored =
+            new Scored(document, scores[doc] * (1 - RECENCY_WEIGHT + RECENCY_WEIGHT * recency));
+        Content content = document.entry.content();
+        bestByContent.merge(content, scored, (a, b) -> a.score >= b.score ? a : b);
+      }
+
+      // Min-heap of the best documents seen so far; the weakest is replaced by a better one.
+      PriorityQueue<Scored> top =
+          new PriorityQueue<>(Math.min(limit, bestByContent.size()) + 1, BY_SCORE);
+      for (Scored scored : bestByContent.values()) {
+        if (top.size() < limit) {
+          top.add(scored);
+        } else if (BY_SCORE.compare(scored, top.peek()) > 0) {
+          top.poll();
+          top.add(scored);
+        }
+      }
+      Document[] ranked = new Document[top.size()];
+      for (int i = ranked.length - 1; i >= 0; i--) {
+        ranked[i] = top.poll().document;
+      }
+      return Arrays.asList(ranked);
+    }
+
+    /** The document of the event, or null if it is not indexed. */
+    public synchronized Document document(String eventId) {
+      Integer doc = docsByEventId.get(eventId);
+      return doc != null ? documents.get(doc) : null;
+    }
+
+    /** Documents in the order they were added, starting at the given position. */
+    public synchronized List<Document> documentsFrom(int from) {
+      return new ArrayList<>(documents.subList(Math.min(from, documents.size()), documents.size()));
+    }
+
+    public synchronized int size() {
+      return documents.size();
+    }
+  }
+
+  // BM25 term-saturation and length-normalisation parameters, at their usual values.
+  private static final double K1 = 1.2;
+  private static final double B = 0.75;
+
+  /** Share of a document's score that decays with age; the rest is kept however old it is. */
+  private static final double RECENCY_WEIGHT = 0.5;
+
+  /** Orders by score, then newer first among equal scores. */
+  private static final Comparator<Scored> BY_SCORE =
+      Comparator.<Scored>comparingDouble(scored -> scored.score)
+          .thenComparingLong(scored -> scored.document.timestampMillis);
+
+  private final Cache<String, Single<UserIndex>> indexes;
+  private final BiFunction<String, String, Flowable<Document>> source;
+
+  /**
+   * @param source reads every indexable event of a user in an app from Firestore.
+   * @param maxUsers most user indexes held in memory.
+   * @param rebuildAfter age after which a user's index is rebuilt from Firestore.
+   */
+  public MemoryIndex(
+      BiFunction<String, String, Flowable<Document>> source, long maxUsers, Duration rebuildAfter) {
+    this.source = source;
+    this.indexes =
+        CacheBuilder.newBuilder()
+            .maximumSize(maxUsers)
+            .expireAfterWrite(rebuildAfter)
+            .recordStats()
+            .build();
+  }
+
+  /**
+   * Returns the user's index, building it on first use. Concurrent callers share one build; a
+   * failed build is not cached.
+   */
+  public Single<UserIndex> index(String appName, String userId) {
+    String key = key(appName, userId);
+    try {
+      return indexes.get(key, () -> build(key, appName, userId));
+    } catch (ExecutionException e) {
+      return Single.error(e.getCause());
+    }
+  }
+
+  /** Adds an event to the user's index if it is loaded; otherwise the next build reads it. */
+  public void add(String appName, String userId, Document document) {
+    Single<UserIndex> index = indexes.getIfPresent(key(appName, userId));
+    if (index != null) {
+      index.subscribe(userIndex -> userIndex.add(document), error -> {});
+    }
+  }
+
+  public void invalidate(String appName, String userId) {
+    indexes.invalidate(key(appName, userId));
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("users", indexes.size());
+    stats.put("hitCount", indexes.stats().hitCount());
+    stats.put("missCount", indexes.stats().missCount());
+    stats.put("evictionCount", indexes.stats().evictionCount());
+    return stats;
+  }
+
+  private Single<UserIndex> build(String key, String appName, String userId) {
+    // Events appended while the build runs are added once it completes; those the read has
+    // already returned are skipped by event id.
+    UserIndex userIndex = new UserIndex();
+    long started = System.nanoTime();
+    return source
+        .apply(appName, userId)
+        .doOnNext(userIndex::add)
+        .ignoreElements()
+        .toSingleDefault(userIndex)
+        .doOnSuccess(
+            built ->
+                logger.info(
+                    "Built memory index of {} with {} events in {} ms",
+                    key,
+                    built.size(),
+                    (System.nanoTime() - started) / 1_000_000))
+        .doOnError(
+            error -> {
+              logger.warn("Building the memory index of {} failed", key, error);
+              indexes.invalidate(key);
+            })
+        .cache();
+  }
+
+  private static String key(String appName, String userId) {
+    return appName + "/" + userId;
+  }
+}
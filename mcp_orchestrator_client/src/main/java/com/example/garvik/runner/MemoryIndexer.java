@@ -0,0 +1,239 @@
+package com.example.garvik.runner;
+
+import com.google.adk.events.Event;
+import com.google.adk.memory.MemoryEntry;
+import com.google.adk.sessions.Session;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.BulkWriter;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.WriteResult;
+import com.google.genai.types.Content;
+import com.google.genai.types.Part;
+import io.reactivex.rxjava3.core.Completable;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Extracts the keywords of appended events and indexes them for memory search, on a background
+ * thread instead of the request path.
+ *
+ * <p>Appended events are queued and indexed in batches: each batch is added to the in-process
+ * memory index and its keywords are written to the event documents in one bulk write. When the
+ * queue is full, events are dropped rather than slowing down the turn; the memory index extracts
+ * the keywords itself when it is next built from Firestore, so nothing is lost for good.
+ */
+public class MemoryIndexer {
+
+  private static final org.slf4j.Logger logger =
+      org.slf4j.LoggerFactory.getLogger(MemoryIndexer.class);
+
+  private static final String ROOT_COLLECTION_NAME = "adk-sessions";
+  private static final String EVENTS_SUBCOLLECTION_NAME = "user-events";
+
+  /** Receives every indexed event. */
+  public interface Sink {
+    void indexed(String appName, String userId, MemoryIndex.Document document);
+  }
+
+  /** An appended event waiting to be indexed. */
+  private static final class Pending {
+    private final String appName;
+    private final String userId;
+    private final String sessionId;
+    private final Event event;
+
+    private Pending(Session session, Event event) {
+      this.appName = session.appName();
+      this.userId = session.userId();
+      this.sessionId = session.id();
+      this.event = event;
+    }
+  }
+
+  private final Firestore db;
+  private final KeywordExtractor keywordExtractor;
+  private final Sink sink;
+  private final int batchSize;
+  private final BlockingQueue<Pending> queue;
+  private final ExecutorService worker =
+      Executors.newSingleThreadExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "memory-indexer");
+            thread.setDaemon(true);
+            return thread;
+          });
+  private final AtomicLong indexed = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong writeFailures = new AtomicLong();
+
+  /**
+   * @param keywordExtractor must match the one used to parse queries.
+   * @param queueCapacity most events waiting to be indexed before new ones are dropped.
+   * @param batchSize most events indexed and written together.
+   */
+  public MemoryIndexer(
+      Firestore db,
+      KeywordExtractor keywordExtractor,
+      Sink sink,
+      int queueCapacity,
+      int batchSize) {
+    this.db = db;
+    this.keywordExtractor = keywordExtractor;
+    this.sink = sink;
+    this.batchSize = batchSize;
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    worker.execute(this::run);
+  }
+
+  /** Queues an appended event for indexing; never blocks. */
+  public void enqueue(Session session, Event event) {
+    if (!queue.offer(new Pending(session, event))) {
+      dropped.incrementAndGet();
+      logger.debug("Memory indexing queue full, dropped event {}", event.id());
+    }
+  }
+
+  /** Indexes every event of the session in one bulk write, completing once it is acknowledged. */
+  public Completable indexSession(Session session) {
+    return Completable.defer(
+        () -> {
+          List<Pending> events = new ArrayList<>(session.events().size());
+          for (Event event : session.events()) {
+            events.add(new Pending(session, event));
+          }
+          return ApiFutureUtils.toCompletable(index(events));
+        });
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("queued", queue.size());
+    stats.put("indexedCount", indexed.get());
+    stats.put("droppedCount", dropped.get());
+    stats.put("batchCount", batches.get());
+    stats.put("writeFailureCount", writeFailures.get());
+    return stats;
+  }
+
+  /** Stops the worker; events still queued are left for the next index build. */
+  public void close() {
+    worker.shutdownNow();
+    try {
+      worker.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (!queue.isEmpty()) {
+      logger.info("Memory indexer stopped with {} events not indexed", queue.size());
+    }
+  }
+
+  private void run() {
+    List<Pending> batch = new ArrayList<>(batchSize);
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        batch.add(queue.take());
+        queue.drainTo(batch, batchSize - 1);
+        index(batch).get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException | RuntimeException e) {
+        logger.warn("Failed to index a batch of {} events for memory", batch.size(), e);
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Adds the events that have keywords to the memory index and writes their keywords to their
+   * documents. The returned future completes once every write has been acknowledged; failed
+   * writes are counted, not propagated, as the index re-extracts missing keywords.
+   *
+   * <p>Appended events are only queued once their own document is committed, so the keywords
+   * update it and cannot be overwritten by it. An update never creates a document: an event whose
+   * document does not exist, e.g. of a session deleted since, counts as a failed write.
+   */
+  private ApiFuture<List<WriteResult>> index(List<Pending> events) {
+    BulkWriter writer = db.bulkWriter();
+    List<ApiFuture<WriteResult>> writes = new ArrayList<>(events.size());
+    for (Pending pending : events) {
+      Event event = pending.event;
+      Set<String> keywords = new HashSet<>();
+      List<Part> textParts = new ArrayList<>();
+      for (Part part : event.content().flatMap(Content::parts).orElse(List.of())) {
+        if (part.text().isPresent()) {
+          textParts.add(part);
+          keywordExtractor.addKeywords(part.text().get(), keywords);
+        }
+      }
+      if (keywords.isEmpty() || event.id() == null) {
+        continue;
+      }
+      // Stored events carry the user's id as author for the user's own turns.
+      String author = "user".equalsIgnoreCase(event.author()) ? pending.userId : event.author();
+      MemoryEntry entry =
+          MemoryEntry.builder()
+              .author(author)
+              .content(Content.fromParts(textParts.toArray(new Part[0])))
+              .timestamp(Instant.ofEpochMilli(event.timestamp()).toString())
+              .build();
+      sink.indexed(
+          pending.appName,
+          pending.userId,
+          new MemoryIndex.Document(event.id(), entry, event.timestamp(), keywords));
+      writes.add(
+          ApiFutures.catching(
+              writer.update(
+                  eventRef(pending.userId, pending.sessionId, event.id()),
+                  "keywords",
+                  new ArrayList<>(keywords)),
+              Exception.class,
+              error -> {
+                writeFailures.incrementAndGet();
+                logger.debug("Failed to store keywords of event {}", event.id(), error);
+                return null;
+              },
+              ApiFutureUtils.directExecutor()));
+    }
+    // Everything is already flushed when the writer is closed, so closing does not block.
+    writer.flush().addListener(() -> close(writer), ApiFutureUtils.callbackExecutor());
+    indexed.addAndGet(writes.size());
+    batches.incrementAndGet();
+    return ApiFutures.allAsList(writes);
+  }
+
+  private static void close(BulkWriter writer) {
+    try {
+      writer.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      logger.warn("Failed to close the memory index writer", e);
+    }
+  }
+
+  private DocumentReference eventRef(String userId, String sessionId, String eventId) {
+    return db.collection(ROOT_COLLECTION_NAME)
+        .document(userId)
+        .collection("sessions")
+        .document(sessionId)
+        .collection(EVENTS_SUBCOLLECTION_NAME)
+        .document(eventId);
+  }
+}
@@ -0,0 +1,91 @@
+package com.example.garvik.runner;
+
+import com.google.adk.memory.SearchMemoryResponse;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recent memory search responses of each user, keyed on the query's keywords, so a query repeated
+ * in other words is answered without searching again.
+ *
+ * <p>A user's responses are dropped together when an event with keywords is indexed for the user.
+ * A search holds on to the {@link Entries} it looked up; if they are dropped while it runs, its
+ * response is stored in the detached entries and never served.
+ */
+public class MemorySearchCache {
+
+  /** The cached responses of one user in one app. */
+  public static final class Entries {
+    private final Cache<Set<String>, SearchMemoryResponse> responses;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    private Entries(long maxQueries, Duration ttl, AtomicLong hits, AtomicLong misses) {
+      this.responses =
+          CacheBuilder.newBuilder().maximumSize(maxQueries).expireAfterWrite(ttl).build();
+      this.hits = hits;
+      this.misses = misses;
+    }
+
+    public Optional<SearchMemoryResponse> get(Set<String> keywords) {
+      SearchMemoryResponse response = responses.getIfPresent(keywords);
+      (response != null ? hits : misses).incrementAndGet();
+      return Optional.ofNullable(response);
+    }
+
+    public void put(Set<String> keywords, SearchMemoryResponse response) {
+      responses.put(ImmutableSet.copyOf(keywords), response);
+    }
+  }
+
+  private final Cache<String, Entries> users;
+  private final long maxQueriesPerUser;
+  private final Duration ttl;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  /**
+   * @param maxUsers most users with cached responses.
+   * @param maxQueriesPerUser most responses cached per user.
+   * @param ttl how long a response is served; bounds staleness from events appended elsewhere.
+   */
+  public MemorySearchCache(long maxUsers, long maxQueriesPerUser, Duration ttl) {
+    this.users = CacheBuilder.newBuilder().maximumSize(maxUsers).expireAfterAccess(ttl).build();
+    this.maxQueriesPerUser = maxQueriesPerUser;
+    this.ttl = ttl;
+  }
+
+  public Entries entries(String appName, String userId) {
+    try {
+      return users.get(
+          appName + "/" + userId, () -> new Entries(maxQueriesPerUser, ttl, hits, misses));
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /** Drops the user's cached responses, e.g. because a new event changes their results. */
+  public void invalidate(String appName, String userId) {
+    if (users.asMap().remove(appName + "/" + userId) != null) {
+      invalidations.incrementAndGet();
+    }
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("users", users.size());
+    stats.put("hitCount", hits.get());
+    stats.put("missCount", misses.get());
+    stats.put("invalidationCount", invalidations.get());
+    return stats;
+  }
+}
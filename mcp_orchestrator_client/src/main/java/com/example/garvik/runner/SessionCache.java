@@ -0,0 +1,169 @@
+package com.example.garvik.runner;
+
+import com.google.adk.events.Event;
+import com.google.adk.sessions.Session;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded in-process cache of recently used sessions. Entries are immutable snapshots; callers
+ * always receive a fresh {@link Session} copy, so the runner can mutate it freely.
+ */
+public class SessionCache {
+
+  private static final org.slf4j.Logger logger =
+      org.slf4j.LoggerFactory.getLogger(SessionCache.class);
+
+  /** Immutable copy of a session as last seen by this node. */
+  public static final class Snapshot {
+    private final String appName;
+    private final String userId;
+    private final String id;
+    private final Instant lastUpdateTime;
+    private final ImmutableMap<String, Object> state;
+    private final ImmutableList<Event> events;
+
+    private Snapshot(
+        String appName,
+        String userId,
+        String id,
+        Instant lastUpdateTime,
+        Map<String, Object> state,
+        List<Event> events) {
+      this.appName = appName;
+      this.userId = userId;
+      this.id = id;
+      this.lastUpdateTime = lastUpdateTime;
+      this.state = ImmutableMap.copyOf(state);
+      this.events = ImmutableList.copyOf(events);
+    }
+
+    public String appName() {
+      return appName;
+    }
+
+    public ImmutableList<Event> events() {
+      return events;
+    }
+
+    /** Timestamp of the newest cached event, if any. */
+    public Optional<Instant> tailTimestamp() {
+      return events.isEmpty()
+          ? Optional.empty()
+          : Optional.of(Instant.ofEpochMilli(events.get(events.size() - 1).timestamp()));
+    }
+
+    /** Returns a mutable session built from this snapshot. */
+    public Session toSession() {
+      return Session.builder(id)
+          .appName(appName)
+          .userId(userId)
+          .lastUpdateTime(lastUpdateTime)
+          .state(new ConcurrentHashMap<>(state))
+          .events(new ArrayList<>(events))
+          .build();
+    }
+  }
+
+  private final Cache<String, Snapshot> cache;
+
+  public SessionCache(long maxSessions, Duration expireAfterAccess) {
+    this.cache =
+        CacheBuilder.newBuilder()
+            .maximumSize(maxSessions)
+            .expireAfterAccess(expireAfterAccess)
+            .recordStats()
+            .build();
+  }
+
+  public Optional<Snapshot> get(String key) {
+    return Optional.ofNullable(cache.getIfPresent(key));
+  }
+
+  /** Caches the given session, which must hold its complete event history. */
+  public void put(String key, Session session) {
+    cache.put(key, snapshotOf(session, session.events()));
+  }
+
+  /**
+   * Appends events read from Firestore after the cached tail. Events already cached, which the
+   * overlapping tail query returns again, are skipped by id.
+   */
+  public Snapshot extend(String key, Snapshot cached, Session fresh, List<Event> tail) {
+    Set<String> known = new HashSet<>();
+    for (Event event : cached.events) {
+      known.add(event.id());
+    }
+    List<Event> events = new ArrayList<>(cached.events);
+    for (Event event : tail) {
+      if (event.id() == null || known.add(event.id())) {
+        events.add(event);
+      }
+    }
+    Snapshot snapshot = snapshotOf(fresh, events);
+    cache.put(key, snapshot);
+    return snapshot;
+  }
+
+  /** Records an event appended by this node, if the session is cached. */
+  public void append(String key, Session session, Event event) {
+    cache
+        .asMap()
+        .computeIfPresent(
+            key,
+            (k, cached) -> {
+              List<Event> events = new ArrayList<>(cached.events);
+              events.add(event);
+              return snapshotOf(session, events);
+            });
+  }
+
+  public void invalidate(String key) {
+    cache.invalidate(key);
+  }
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("size", cache.size());
+    stats.put("hitCount", cache.stats().hitCount());
+    stats.put("missCount", cache.stats().missCount());
+    stats.put("evictionCount", cache.stats().evictionCount());
+    return stats;
+  }
+
+  private static Snapshot snapshotOf(Session session, List<Event> events) {
+    Map<String, Object> state = new HashMap<>();
+    session
+        .state()
+        .forEach(
+            (key, value) -> {
+              if (value != null) {
+                state.put(key, value);
+              }
+            });
+    logger.debug("Caching session {} with {} events", session.id(), events.size());
+    return new Snapshot(
+        session.appName(),
+        session.userId(),
+        session.id(),
+        session.lastUpdateTime(),
+        state,
+        events);
+  }
+}
@@ -0,0 +1,287 @@
+package com.example.garvik.runner;
+
+import com.google.cloud.firestore.Blob;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Query;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.reactivex.rxjava3.core.Completable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Folds the older events of a session into a checkpoint document, {@code
+ * sessions/{id}/checkpoints/latest}, so that loading a session costs one document read plus a
+ * short tail query instead of a read of the whole {@code user-events} subcollection.
+ *
+ * <p>The checkpoint holds the newest folded events, in the same map format as the event documents,
+ * up to {@code maxCheckpointEvents} and a size budget below Firestore's 1 MiB document limit.
+ * Older events fall out of the checkpoint but are never deleted from {@code user-events}, so they
+ * stay available to {@code listEvents} and for audit. A checkpoint that has lost events is no
+ * longer {@linkplain Checkpoint#complete() complete}, and a load that needs them has to read them
+ * from {@code user-events}.
+ */
+public class SessionCompactor {
+
+  private static final org.slf4j.Logger logger =
+      org.slf4j.LoggerFactory.getLogger(SessionCompactor.class);
+
+  public static final String CHECKPOINTS_SUBCOLLECTION_NAME = "checkpoints";
+  private static final String CHECKPOINT_DOCUMENT_ID = "latest";
+  private static final String EVENTS_SUBCOLLECTION_NAME = "user-events";
+
+  /** Leaves headroom below the 1 MiB document limit for field names and index overhead. */
+  private static final long MAX_CHECKPOINT_BYTES = 900_000;
+
+  /** The events folded so far and the timestamp and sequence number of the newest one. */
+  public static final class Checkpoint {
+    private final List<Map<String, Object>> events;
+    private final Optional<Instant> through;
+    private final Optional<Long> throughSeq;
+    private final boolean complete;
+
+    private Checkpoint(
+        List<Map<String, Object>> events,
+        Optional<Instant> through,
+        Optional<Long> throughSeq,
+        boolean complete) {
+      this.events = events;
+      this.through = through;
+      this.throughSeq = throughSeq;
+      this.complete = complete;
+    }
+
+    /** Folded events in the event-document map format, oldest first. */
+    public List<Map<String, Object>> events() {
+      return events;
+    }
+
+    /** Timestamp of the newest folded event; the tail starts after it. */
+    public Optional<Instant> through() {
+      return through;
+    }
+
+    /** Sequence number of the newest folded event, if the session's events have them. */
+    public Optional<Long> throughSeq() {
+      return throughSeq;
+    }
+
+    /**
+     * Whether the checkpoint still holds every event it folded. Checkpoints written before this
+     * was recorded count as incomplete.
+     */
+    public boolean complete() {
+      return complete;
+    }
+
+    /** Id of the newest folded event, if any. */
+    public Optional<String> throughId() {
+      return events.isEmpty()
+          ? Optional.empty()
+          : Optional.ofNullable((String) events.get(events.size() - 1).get("id"));
+    }
+
+    /** Ids of the folded events, used to drop tail duplicates at the boundary. */
+    public Set<String> eventIds() {
+      Set<String> ids = new HashSet<>();
+      for (Map<String, Object> event : events) {
+        Object id = event.get("id");
+        if (id instanceof String) {
+          ids.add((String) id);
+        }
+      }
+      return ids;
+    }
+  }
+
+  private final int compactionThreshold;
+  private final int maxCheckpointEvents;
+  private final Cache<String, AtomicInteger> tailSizes;
+  private final Set<String> running = ConcurrentHashMap.newKeySet();
+
+  /**
+   * @param compactionThreshold tail length that triggers a compaction; 0 disables compaction.
+   * @param maxCheckpointEvents most events kept in the checkpoint document.
+   * @param maxSessions most sessions whose tail length is tracked.
+   * @param expireAfterAccess idle time after which a session's tail length is forgotten.
+   */
+  public SessionCompactor(
+      int compactionThreshold,
+      int maxCheckpointEvents,
+      long maxSessions,
+      Duration expireAfterAccess) {
+    this.compactionThreshold = compactionThreshold;
+    this.maxCheckpointEvents = maxCheckpointEvents;
+    this.tailSizes =
+        CacheBuilder.newBuilder()
+            .maximumSize(maxSessions)
+            .expireAfterAccess(expireAfterAccess)
+            .build();
+  }
+
+  public boolean isEnabled() {
+    return compactionThreshold > 0;
+  }
+
+  public DocumentReference checkpointRef(DocumentReference sessionRef) {
+    return sessionRef.collection(CHECKPOINTS_SUBCOLLECTION_NAME).document(CHECKPOINT_DOCUMENT_ID);
+  }
+
+  @SuppressWarnings("unchecked")
+  public Checkpoint read(DocumentSnapshot checkpoint) {
+    if (checkpoint == null || !checkpoint.exists()) {
+      return new Checkpoint(new ArrayList<>(), Optional.empty(), Optional.empty(), true);
+    }
+    List<Map<String, Object>> events = (List<Map<String, Object>>) checkpoint.get("events");
+    String through = checkpoint.getString("throughTimestamp");
+    return new Checkpoint(
+        events == null ? new ArrayList<>() : events,
+        Optional.ofNullable(through).map(Instant::parse),
+        Optional.ofNullable(checkpoint.getLong("throughSeq")),
+        Boolean.TRUE.equals(checkpoint.getBoolean("complete")));
+  }
+
+  /** Records how many events a load found after the checkpoint, compacting if there are many. */
+  public void onLoaded(String sessionKey, DocumentReference sessionRef, int tailSize) {
+    if (!isEnabled()) {
+      return;
+    }
+    tailSizes.asMap().computeIfAbsent(sessionKey, key -> new AtomicInteger()).set(tailSize);
+    maybeCompact(sessionKey, sessionRef, tailSize);
+  }
+
+  /** Counts an appended event against the session's tail. */
+  public void onAppended(String sessionKey, DocumentReference sessionRef) {
+    if (!isEnabled()) {
+      return;
+    }
+    AtomicInteger tailSize = tailSizes.getIfPresent(sessionKey);
+    if (tailSize != null) {
+      maybeCompact(sessionKey, sessionRef, tailSize.incrementAndGet());
+    }
+  }
+
+  public void forget(String sessionKey) {
+    tailSizes.invalidate(sessionKey);
+  }
+
+  public void forgetAll() {
+    tailSizes.invalidateAll();
+  }
+
+  private void maybeCompact(String sessionKey, DocumentReference sessionRef, int tailSize) {
+    if (tailSize < compactionThreshold || !running.add(sessionKey)) {
+      return;
+    }
+    compact(sessionRef)
+        .doFinally(() -> running.remove(sessionKey))
+        .subscribe(
+            () ->
+                tailSizes.asMap().computeIfPresent(sessionKey, (key, size) -> new AtomicInteger()),
+            error -> logger.warn("Compaction of session {} failed", sessionRef.getPath(), error));
+  }
+
+  /** Folds every event newer than the current checkpoint into a new checkpoint. */
+  public Completable compact(DocumentReference sessionRef) {
+    DocumentReference checkpointRef = checkpointRef(sessionRef);
+    return ApiFutureUtils.toSingle(checkpointRef.get())
+        .map(this::read)
+        .flatMapCompletable(
+            checkpoint -> {
+              Query tailQuery =
+                  sessionRef.collection(EVENTS_SUBCOLLECTION_NAME).orderBy("timestamp");
+              if (checkpoint.throughSeq().isPresent()) {
+                tailQuery =
+                    sessionRef
+                        .collection(EVENTS_SUBCOLLECTION_NAME)
+                        .whereGreaterThan(EventSequencer.SEQ_FIELD, checkpoint.throughSeq().get())
+                        .orderBy(EventSequencer.SEQ_FIELD);
+              } else if (checkpoint.through().isPresent()) {
+                // One millisecond of overlap; events already folded are skipped by id.
+                tailQuery =
+                    tailQuery.whereGreaterThan(
+                        "timestamp", checkpoint.through().get().minusMillis(1).toString());
+              }
+              Set<String> folded = checkpoint.eventIds();
+              return ApiFutureUtils.documents(tailQuery)
+                  .map(DocumentSnapshot::getData)
+                  .filter(data -> !folded.contains(data.get("id")))
+                  .toList()
+                  .flatMapCompletable(tail -> writeCheckpoint(checkpointRef, checkpoint, tail));
+            });
+  }
+
+  private Completable writeCheckpoint(
+      DocumentReference checkpointRef,
+      Checkpoint checkpoint,
+      List<Map<String, Object>> tail) {
+    if (tail.isEmpty()) {
+      return Completable.complete();
+    }
+    List<Map<String, Object>> events = new ArrayList<>(checkpoint.events());
+    events.addAll(tail);
+    int dropped = 0;
+    long bytes = 0;
+    for (Map<String, Object> event : events) {
+      bytes += estimateSize(event);
+    }
+    while (!events.isEmpty()
+        && (events.size() > maxCheckpointEvents || bytes > MAX_CHECKPOINT_BYTES)) {
+      bytes -= estimateSize(events.remove(0));
+      dropped++;
+    }
+
+    Map<String, Object> data = new HashMap<>();
+    data.put("events", events);
+    data.put("complete", checkpoint.complete() && dropped == 0);
+    data.put("throughTimestamp", tail.get(tail.size() - 1).get("timestamp"));
+    Object throughSeq = tail.get(tail.size() - 1).get(EventSequencer.SEQ_FIELD);
+    if (throughSeq != null) {
+      data.put("throughSeq", throughSeq);
+    }
+    data.put("updateTime", Instant.now().toString());
+    logger.info(
+        "Checkpointing {}: folded {} events, keeping {} ({} dropped from the block)",
+        checkpointRef.getParent().getParent().getPath(),
+        tail.size(),
+        events.size(),
+        dropped);
+    return ApiFutureUtils.toCompletable(checkpointRef.set(data));
+  }
+
+  /** Rough serialized size of a Firestore value, used to stay under the document size limit. */
+  private static long estimateSize(Object value) {
+    if (value instanceof String) {
+      return ((String) value).length() + 1;
+    }
+    if (value instanceof Blob) {
+      return ((Blob) value).toByteString().size();
+    }
+    if (value instanceof Map) {
+      long size = 0;
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        size += entry.getKey().toString().length() + 1 + estimateSize(entry.getValue());
+      }
+      return size;
+    }
+    if (value instanceof Collection) {
+      long size = 0;
+      for (Object item : (Collection<?>) value) {
+        size += estimateSize(item);
+      }
+      return size;
+    }
+    return 8;
+  }
+}
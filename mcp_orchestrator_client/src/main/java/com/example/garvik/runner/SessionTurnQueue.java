@@ -0,0 +1,174 @@
+package com.example.garvik.runner;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Runs the turns of each session one at a time, in the order they were submitted, while turns of
+ * different sessions run in parallel.
+ *
+ * <p>A turn loads its session, changes its state and appends events; two turns on one session at
+ * once, e.g. from the REST and the WebSocket endpoint, would overwrite each other's state. Each
+ * session with a turn running has a mailbox; a turn submitted while another is running waits in
+ * it and starts when the previous one completes, whether it succeeded or not. A turn that runs
+ * longer than the turn timeout fails with a {@link TimeoutException} and hands the session to the
+ * next turn, so a hung turn cannot block its session for good. Mailboxes only
+ * exist while a turn is running, and are only touched through their own map entry, so sessions
+ * never contend with each other.
+ */
+public class SessionTurnQueue {
+
+  private static final org.slf4j.Logger logger =
+      org.slf4j.LoggerFactory.getLogger(SessionTurnQueue.class);
+
+  /** The turns waiting behind the running turn of one session; guarded by its map entry. */
+  private static final class Mailbox {
+    private final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+  }
+
+  private final ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+  private final int maxWaitingPerSession;
+  private final Duration turnTimeout;
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final AtomicInteger maxDepth = new AtomicInteger();
+  private final LongAdder started = new LongAdder();
+  private final LongAdder queued = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder timedOut = new LongAdder();
+  private final LongAdder totalWaitNanos = new LongAdder();
+  private final AtomicLong maxWaitNanos = new AtomicLong();
+
+  /**
+   * @param maxWaitingPerSession most turns waiting behind a session's running turn; further
+   *     turns are rejected with {@link RejectedExecutionException}.
+   * @param turnTimeout longest a turn may run before the next one starts; zero for no limit.
+   */
+  public SessionTurnQueue(int maxWaitingPerSession, Duration turnTimeout) {
+    this.maxWaitingPerSession = maxWaitingPerSession;
+    this.turnTimeout = turnTimeout;
+  }
+
+  /**
+   * Starts the turn once every turn submitted earlier for the session has completed.
+   *
+   * @param sessionKey identifies the session, e.g. {@code userId + "/" + sessionId}.
+   * @param turn starts the turn and returns its completion; called at most once. If the turn
+   *     times out, this future is completed with a {@link TimeoutException}, and the turn should
+   *     stop when it sees that.
+   * @return completes with the turn.
+   */
+  public <T> CompletableFuture<T> submit(
+      String sessionKey, Supplier<? extends CompletableFuture<T>> turn) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    long submitted = System.nanoTime();
+    Runnable start =
+        () -> {
+          recordWait(System.nanoTime() - submitted);
+          CompletableFuture<T> running;
+          try {
+            running = turn.get();
+          } catch (RuntimeException e) {
+            running = CompletableFuture.failedFuture(e);
+          }
+          if (!turnTimeout.isZero()) {
+            running.orTimeout(turnTimeout.toMillis(), TimeUnit.MILLISECONDS);
+          }
+          running.whenComplete(
+              (value, error) -> {
+                if (error instanceof TimeoutException) {
+                  timedOut.increment();
+                  logger.warn("Turn for session {} timed out after {}", sessionKey, turnTimeout);
+                }
+                // Hand the session to the next turn first, so it does not wait on our caller.
+                next(sessionKey);
+                if (error != null) {
+                  result.completeExceptionally(error);
+                } else {
+                  result.complete(value);
+                }
+              });
+        };
+
+    boolean[] runNow = {false};
+    boolean[] full = {false};
+    mailboxes.compute(
+        sessionKey,
+        (key, mailbox) -> {
+          if (mailbox == null) {
+            runNow[0] = true;
+            return new Mailbox();
+          }
+          if (mailbox.waiting.size() >= maxWaitingPerSession) {
+            full[0] = true;
+          } else {
+            mailbox.waiting.add(start);
+            waiting.incrementAndGet();
+            maxDepth.accumulateAndGet(mailbox.waiting.size(), Math::max);
+          }
+          return mailbox;
+        });
+
+    if (full[0]) {
+      rejected.increment();
+      logger.warn(
+          "Rejected a turn for session {}: {} turns already waiting",
+          sessionKey,
+          maxWaitingPerSession);
+      result.completeExceptionally(
+          new RejectedExecutionException("Too many turns waiting for session " + sessionKey));
+    } else if (runNow[0]) {
+      start.run();
+    } else {
+      queued.increment();
+      logger.debug("Turn for session {} waits for the running one", sessionKey);
+    }
+    return result;
+  }
+
+  public Map<String, Object> stats() {
+    long count = started.sum();
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("activeSessions", mailboxes.size());
+    stats.put("waiting", waiting.get());
+    stats.put("maxDepth", maxDepth.get());
+    stats.put("startedCount", count);
+    stats.put("queuedCount", queued.sum());
+    stats.put("rejectedCount", rejected.sum());
+    stats.put("timedOutCount", timedOut.sum());
+    stats.put("avgWaitMs", count == 0 ? 0 : totalWaitNanos.sum() / count / 1_000_000.0);
+    stats.put("maxWaitMs", maxWaitNanos.get() / 1_000_000.0);
+    return stats;
+  }
+
+  /** Starts the session's next waiting turn, or drops its mailbox if none is waiting. */
+  private void next(String sessionKey) {
+    Runnable[] next = {null};
+    mailboxes.computeIfPresent(
+        sessionKey,
+        (key, mailbox) -> {
+          next[0] = mailbox.waiting.poll();
+          return next[0] == null ? null : mailbox;
+        });
+    if (next[0] != null) {
+      waiting.decrementAndGet();
+      next[0].run();
+    }
+  }
+
+  private void recordWait(long waitNanos) {
+    started.increment();
+    totalWaitNanos.add(waitNanos);
+    maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+  }
+}
@@ -0,0 +1,93 @@
+package com.example.garvik.runner;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Time-bounded cache of the app-wide and per-user state documents that are merged into every
+ * session read. App state is shared by all users of an app, so most turns find it here.
+ *
+ * <p>Entries are dropped when this node writes the tier; writes made by other nodes become visible
+ * once the entry expires, or sooner when a {@link CacheInvalidationFeed} is used.
+ */
+public class StateTierCache {
+
+  private final Cache<String, ImmutableMap<String, Object>> appStates;
+  private final Cache<String, ImmutableMap<String, Object>> userStates;
+
+  public StateTierCache(long maxUsers, Duration ttl) {
+    this.appStates = CacheBuilder.newBuilder().expireAfterWrite(ttl).recordStats().build();
+    this.userStates =
+        CacheBuilder.newBuilder().maximumSize(maxUsers).expireAfterWrite(ttl).recordStats().build();
+  }
+
+  public Optional<ImmutableMap<String, Object>> appState(String appName) {
+    return Optional.ofNullable(appStates.getIfPresent(appName));
+  }
+
+  public Optional<ImmutableMap<String, Object>> userState(String appName, String userId) {
+    return Optional.ofNullable(userStates.getIfPresent(userKey(appName, userId)));
+  }
+
+  /** Caches the app state document's data; null for a missing document. */
+  public void putAppState(String appName, Map<String, Object> data) {
+    appStates.put(appName, copyOf(data));
+  }
+
+  public void putUserState(String appName, String userId, Map<String, Object> data) {
+    userStates.put(userKey(appName, userId), copyOf(data));
+  }
+
+  public void invalidateAppState(String appName) {
+    appStates.invalidate(appName);
+  }
+
+  public void invalidateUserState(String appName, String userId) {
+    userStates.invalidate(userKey(appName, userId));
+  }
+
+  /** Drops every cached user state of the app, e.g. after the app's sessions are purged. */
+  public void invalidateApp(String appName) {
+    appStates.invalidate(appName);
+    userStates.asMap().keySet().removeIf(key -> key.startsWith(appName + "/"));
+  }
+
+  public void invalidateAll() {
+    appStates.invalidateAll();
+    userStates.invalidateAll();
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("appStates", appStates.size());
+    stats.put("appStateHitCount", appStates.stats().hitCount());
+    stats.put("appStateMissCount", appStates.stats().missCount());
+    stats.put("userStates", userStates.size());
+    stats.put("userStateHitCount", userStates.stats().hitCount());
+    stats.put("userStateMissCount", userStates.stats().missCount());
+    return stats;
+  }
+
+  private static String userKey(String appName, String userId) {
+    return appName + "/" + userId;
+  }
+
+  /** Firestore maps may hold null values, which an immutable map cannot; they are dropped. */
+  private static ImmutableMap<String, Object> copyOf(Map<String, Object> data) {
+    ImmutableMap.Builder<String, Object> copy = ImmutableMap.builder();
+    if (data != null) {
+      data.forEach(
+          (key, value) -> {
+            if (value != null) {
+              copy.put(key, value);
+            }
+          });
+    }
+    return copy.build();
+  }
+}
@@ -0,0 +1,181 @@
+package com.example.garvik.runner;
+
+import io.reactivex.rxjava3.core.Single;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Runs the I/O that prepares a turn, such as token verification, preferences, session load, OCR
+ * and transcription, and times each phase.
+ *
+ * <p>Phases that do not depend on each other are started together, and each turn joins them only
+ * where a result is needed, so the setup takes as long as its slowest chain rather than the sum of
+ * its calls. Blocking calls run on a pool of their own, not on the request or Firestore threads.
+ *
+ * <p>For each kind of turn, {@link #stats()} reports every phase, the setup's wall-clock time as
+ * {@code total}, and the sum of its phases as {@code sequential}: what the setup would take with
+ * the phases run one after another. Their gap is what the concurrency saves.
+ */
+public class TurnSetup implements AutoCloseable {
+
+  private static final org.slf4j.Logger logger =
+      org.slf4j.LoggerFactory.getLogger(TurnSetup.class);
+
+  private static final class PhaseStats {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    private void record(long nanos) {
+      count.increment();
+      totalNanos.add(nanos);
+      maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    private Map<String, Object> stats() {
+      long n = count.sum();
+      Map<String, Object> stats = new HashMap<>();
+      stats.put("count", n);
+      stats.put("avgMs", n == 0 ? 0 : totalNanos.sum() / n / 1_000_000.0);
+      stats.put("maxMs", maxNanos.get() / 1_000_000.0);
+      return stats;
+    }
+  }
+
+  private final ExecutorService executor;
+  private final ConcurrentHashMap<String, ConcurrentHashMap<String, PhaseStats>> kinds =
+      new ConcurrentHashMap<>();
+
+  /** @param threads most blocking setup calls running at once. */
+  public TurnSetup(int threads) {
+    AtomicInteger counter = new AtomicInteger();
+    this.executor =
+        Executors.newFixedThreadPool(
+            threads,
+            runnable -> {
+              Thread thread = new Thread(runnable, "turn-setup-" + counter.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /** Starts timing the setup of a turn of the given kind, e.g. {@code "chat"}. */
+  public Turn begin(String kind) {
+    return new Turn(kind);
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    kinds.forEach(
+        (kind, phases) -> {
+          Map<String, Object> kindStats = new HashMap<>();
+          phases.forEach((phase, phaseStats) -> kindStats.put(phase, phaseStats.stats()));
+          stats.put(kind, kindStats);
+        });
+    return stats;
+  }
+
+  @Override
+  public void close() {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** The setup of one turn. Phases may be recorded from any thread. */
+  public final class Turn {
+    private final String kind;
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+
+    private Turn(String kind) {
+      this.kind = kind;
+    }
+
+    /** Runs a blocking call on the setup pool. */
+    public <T> CompletableFuture<T> async(String phase, Callable<T> call) {
+      return CompletableFuture.supplyAsync(
+          () -> {
+            long start = System.nanoTime();
+            try {
+              return call.call();
+            } catch (RuntimeException e) {
+              throw e;
+            } catch (Exception e) {
+              throw new CompletionException(e);
+            } finally {
+              record(phase, start);
+            }
+          },
+          executor);
+    }
+
+    /** Runs a call on the calling thread. */
+    public <T> T time(String phase, Supplier<T> call) {
+      long start = System.nanoTime();
+      try {
+        return call.get();
+      } finally {
+        record(phase, start);
+      }
+    }
+
+    /** Times the subscription to {@code single} until it succeeds or fails. */
+    public <T> Single<T> time(String phase, Single<T> single) {
+      return Single.defer(
+          () -> {
+            long start = System.nanoTime();
+            return single.doOnEvent((value, error) -> record(phase, start));
+          });
+    }
+
+    /** Records a phase that started at {@code startNanos}, as read from {@link System#nanoTime}. */
+    public void record(String phase, long startNanos) {
+      long nanos = System.nanoTime() - startNanos;
+      synchronized (phaseNanos) {
+        phaseNanos.put(phase, nanos);
+      }
+      phases().computeIfAbsent(phase, name -> new PhaseStats()).record(nanos);
+    }
+
+    /** Records the end of the setup, once every phase the turn needs has been joined. */
+    public void end() {
+      long totalNanos = System.nanoTime() - startNanos;
+      long sequentialNanos = 0;
+      StringBuilder breakdown = new StringBuilder();
+      synchronized (phaseNanos) {
+        for (Map.Entry<String, Long> phase : phaseNanos.entrySet()) {
+          sequentialNanos += phase.getValue();
+          breakdown.append(String.format(" %s=%.1fms", phase.getKey(), phase.getValue() / 1e6));
+        }
+      }
+      phases().computeIfAbsent("total", name -> new PhaseStats()).record(totalNanos);
+      phases().computeIfAbsent("sequential", name -> new PhaseStats()).record(sequentialNanos);
+      logger.info(
+          "{} turn setup took {} ms, {} ms if run sequentially:{}",
+          kind,
+          String.format("%.1f", totalNanos / 1e6),
+          String.format("%.1f", sequentialNanos / 1e6),
+          breakdown);
+    }
+
+    private ConcurrentHashMap<String, PhaseStats> phases() {
+      return kinds.computeIfAbsent(kind, name -> new ConcurrentHashMap<>());
+    }
+  }
+}
@@ -0,0 +1,179 @@
+package com.example.garvik.runner;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.hash.Hashing;
+import com.google.genai.types.Part;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Semantic memory search: the events in a user's {@link MemoryIndex} are embedded and kept in a
+ * per-user {@link HnswIndex}, which is searched with the embedded query.
+ *
+ * <p>Each user's vectors are saved to a file in the configured directory when they are evicted
+ * and on shutdown, and loaded from it on first use, so events are embedded once rather than on
+ * every restart. The files are only a cache: events missing from them are embedded again, and
+ * hits are resolved through the keyword index, so deleted events are never returned.
+ */
+public class VectorMemory implements AutoCloseable {
+
+  private static final org.slf4j.Logger logger =
+      org.slf4j.LoggerFactory.getLogger(VectorMemory.class);
+
+  private static final String FILE_SUFFIX = ".hnsw";
+
+  /** A user's vectors and how far they have caught up with the user's keyword index. */
+  private static final class UserVectors {
+    private final Path file;
+    private final HnswIndex index;
+    private MemoryIndex.UserIndex syncedWith;
+    private int syncedCount;
+    private boolean dirty;
+
+    private UserVectors(Path file, HnswIndex index) {
+      this.file = file;
+      this.index = index;
+    }
+  }
+
+  private final Embedder embedder;
+  private final Path directory;
+  private final int m;
+  private final int efConstruction;
+  private final int efSearch;
+  private final double minSimilarity;
+  private final Cache<String, UserVectors> users;
+
+  /**
+   * @param directory where each user's vectors are saved; created if missing.
+   * @param maxUsers most users whose vectors are held in memory.
+   * @param m neighbours per node of the HNSW graph.
+   * @param efConstruction candidates considered when an event is added.
+   * @param efSearch candidates considered by a search.
+   * @param minSimilarity cosine similarity below which a hit is dropped.
+   */
+  public VectorMemory(
+      Embedder embedder,
+      Path directory,
+      long maxUsers,
+      int m,
+      int efConstruction,
+      int efSearch,
+      double minSimilarity)
+      throws IOException {
+    this.embedder = embedder;
+    this.directory = Files.createDirectories(directory);
+    this.m = m;
+    this.efConstruction = efConstruction;
+    this.efSearch = efSearch;
+    this.minSimilarity = minSimilarity;
+    this.users =
+        CacheBuilder.newBuilder()
+            .maximumSize(maxUsers)
+            .removalListener(
+                (RemovalNotification<String, UserVectors> removed) -> save(removed.getValue()))
+            .build();
+  }
+
+  /**
+   * Returns up to {@code limit} documents of the user's index that are semantically closest to the
+   * query, best first. Documents added to the index since the last search are embedded first.
+   */
+  public List<MemoryIndex.Document> search(
+      String appName, String userId, MemoryIndex.UserIndex userIndex, String query, int limit) {
+    UserVectors vectors;
+    try {
+      vectors = users.get(appName + "/" + userId, () -> load(appName + "/" + userId));
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Failed to load vectors of " + userId, e.getCause());
+    }
+    sync(vectors, userIndex);
+    List<MemoryIndex.Document> documents = new ArrayList<>();
+    for (HnswIndex.Hit hit : vectors.index.search(embedder.embed(query), limit)) {
+      if (hit.similarity() < minSimilarity) {
+        break;
+      }
+      MemoryIndex.Document document = userIndex.document(hit.label());
+      if (document != null) {
+        documents.add(document);
+      }
+    }
+    return documents;
+  }
+
+  /** Saves every user's vectors that changed since they were loaded or last saved. */
+  public void flush() {
+    users.asMap().values().forEach(this::save);
+  }
+
+  @Override
+  public void close() {
+    flush();
+  }
+
+  private void sync(UserVectors vectors, MemoryIndex.UserIndex userIndex) {
+    synchronized (vectors) {
+      if (vectors.syncedWith != userIndex) {
+        // A rebuilt keyword index numbers its documents afresh.
+        vectors.syncedWith = userIndex;
+        vectors.syncedCount = 0;
+      }
+      List<MemoryIndex.Document> added = userIndex.documentsFrom(vectors.syncedCount);
+      for (MemoryIndex.Document document : added) {
+        if (!vectors.index.contains(document.eventId())) {
+          vectors.index.add(document.eventId(), embedder.embed(text(document)));
+          vectors.dirty = true;
+        }
+      }
+      vectors.syncedCount += added.size();
+    }
+  }
+
+  private UserVectors load(String key) {
+    Path file =
+        directory.resolve(
+            Hashing.sha256().hashString(key, StandardCharsets.UTF_8) + FILE_SUFFIX);
+    if (Files.exists(file)) {
+      try {
+        HnswIndex index = HnswIndex.read(file);
+        if (index.dimensions() == embedder.dimensions()) {
+          return new UserVectors(file, index);
+        }
+        logger.info("Discarding vectors of {} embedded with other dimensions", key);
+      } catch (IOException e) {
+        logger.warn("Discarding unreadable vectors of {} in {}", key, file, e);
+      }
+    }
+    return new UserVectors(
+        file, new HnswIndex(embedder.dimensions(), m, efConstruction, efSearch));
+  }
+
+  private void save(UserVectors vectors) {
+    synchronized (vectors) {
+      if (!vectors.dirty) {
+        return;
+      }
+      try {
+        vectors.index.write(vectors.file);
+        vectors.dirty = false;
+      } catch (IOException e) {
+        logger.warn("Failed to save vectors to {}", vectors.file, e);
+      }
+    }
+  }
+
+  private static String text(MemoryIndex.Document document) {
+    StringBuilder text = new StringBuilder();
+    for (Part part : document.entry().content().parts().orElse(List.of())) {
+      part.text().ifPresent(value -> text.append(value).append('\n'));
+    }
+    return text.toString();
+  }
+}
@@ -0,0 +1,192 @@
+package com.example.garvik.service;
+
+import com.example.garvik.exception.InvalidTokenException;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import javax.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpClientErrorException;
+
+/**
+ * Remembers the outcome of token introspection, so a client sending the same bearer token with
+ * every request is verified once rather than on every request and STOMP message.
+ *
+ * <p>Tokens are keyed by their SHA-256 hash and never held in memory themselves. A valid token is
+ * cached until its {@code exp} claim, or for {@code auth.token.cache.max-ttl-seconds} if that
+ * comes first or it has none. A rejected token is cached for {@code
+ * auth.token.cache.negative-ttl-seconds}; failures that say nothing about the token, such as an
+ * unreachable introspection endpoint, are not cached. Concurrent lookups of a token that is not
+ * cached wait for a single introspection call.
+ */
+@Service
+public class TokenIntrospectionCache {
+
+  private static final Logger logger = LoggerFactory.getLogger(TokenIntrospectionCache.class);
+
+  /** Claim holding the token's expiry, in seconds since the epoch. */
+  private static final String EXPIRY_CLAIM = "exp";
+
+  /**
+   * Outcome of an introspection: the token details, or the reason the token was rejected. The
+   * details are shared by every request with the token, so they are held as an unmodifiable copy.
+   */
+  private static final class Entry {
+    private final Map<String, Object> details;
+    private final String rejection;
+    private final long expiresAtMillis;
+
+    private Entry(Map<String, Object> details, String rejection, long expiresAtMillis) {
+      this.details = details;
+      this.rejection = rejection;
+      this.expiresAtMillis = expiresAtMillis;
+    }
+
+    private Map<String, Object> details() {
+      if (rejection != null) {
+        throw new InvalidTokenException(rejection);
+      }
+      return details;
+    }
+  }
+
+  @Value("${auth.token.cache.max-entries:10000}")
+  private long maxEntries;
+
+  @Value("${auth.token.cache.max-ttl-seconds:300}")
+  private long maxTtlSeconds;
+
+  @Value("${auth.token.cache.negative-ttl-seconds:10}")
+  private long negativeTtlSeconds;
+
+  private Cache<String, Entry> entries;
+  private final ConcurrentHashMap<String, CompletableFuture<Entry>> inFlight =
+      new ConcurrentHashMap<>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong negativeHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+
+  @PostConstruct
+  public void init() {
+    // Entries also expire on their own deadline; this only bounds how long an expired one is kept.
+    entries =
+        CacheBuilder.newBuilder()
+            .maximumSize(maxEntries)
+            .expireAfterWrite(Duration.ofSeconds(Math.max(maxTtlSeconds, negativeTtlSeconds)))
+            .build();
+  }
+
+  /**
+   * Returns the details of the token, introspecting it only if its outcome is not cached.
+   *
+   * @param introspect verifies the token and returns its details, or throws {@link
+   *     InvalidTokenException}.
+   * @throws InvalidTokenException if the token is rejected, now or recently.
+   */
+  public Map<String, Object> get(String token, Function<String, Map<String, Object>> introspect) {
+    String key = Hashing.sha256().hashString(token, StandardCharsets.UTF_8).toString();
+    Entry cached = entries.getIfPresent(key);
+    if (cached != null && cached.expiresAtMillis > System.currentTimeMillis()) {
+      (cached.rejection != null ? negativeHits : hits).incrementAndGet();
+      return cached.details();
+    }
+
+    CompletableFuture<Entry> call = new CompletableFuture<>();
+    CompletableFuture<Entry> running = inFlight.putIfAbsent(key, call);
+    if (running != null) {
+      coalesced.incrementAndGet();
+      try {
+        return running.join().details();
+      } catch (CompletionException e) {
+        // The introspection failed for a reason that was not cached; the caller sees it too.
+        throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+      }
+    }
+
+    misses.incrementAndGet();
+    try {
+      Entry entry = introspect(token, introspect);
+      if (entry.expiresAtMillis > System.currentTimeMillis()) {
+        entries.put(key, entry);
+      }
+      call.complete(entry);
+      return entry.details();
+    } catch (RuntimeException e) {
+      call.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, call);
+    }
+  }
+
+  public Map<String, Object> stats() {
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("size", entries.size());
+    stats.put("hitCount", hits.get());
+    stats.put("negativeHitCount", negativeHits.get());
+    stats.put("missCount", misses.get());
+    stats.put("coalescedCount", coalesced.get());
+    stats.put("inFlight", inFlight.size());
+    return stats;
+  }
+
+  private Entry introspect(String token, Function<String, Map<String, Object>> introspect) {
+    long now = System.currentTimeMillis();
+    Map<String, Object> details;
+    try {
+      details = introspect.apply(token);
+    } catch (InvalidTokenException e) {
+      if (!isRejection(e)) {
+        throw e;
+      }
+      logger.debug("Caching the rejection of a token for {} s", negativeTtlSeconds);
+      return new Entry(null, e.getMessage(), now + negativeTtlSeconds * 1000);
+    }
+    long expiresAtMillis = now + maxTtlSeconds * 1000;
+    Object exp = details == null ? null : details.get(EXPIRY_CLAIM);
+    try {
+      if (exp != null) {
+        expiresAtMillis = Math.min(expiresAtMillis, Long.parseLong(exp.toString()) * 1000);
+      }
+    } catch (NumberFormatException e) {
+      logger.warn("Ignoring a token expiry that is not a number: {}", exp);
+    }
+    // Not Map.copyOf: the introspection response may hold null claims.
+    return new Entry(
+        details == null ? null : Collections.unmodifiableMap(new LinkedHashMap<>(details)),
+        null,
+        expiresAtMillis);
+  }
+
+  /**
+   * Whether the introspection endpoint rejected the token itself, with an unsuccessful response or
+   * a client error other than rate limiting, rather than failing to check it.
+   */
+  private static boolean isRejection(InvalidTokenException e) {
+    Throwable cause = e.getCause();
+    if (cause == null) {
+      return true;
+    }
+    if (cause instanceof InvalidTokenException) {
+      return isRejection((InvalidTokenException) cause);
+    }
+    return cause instanceof HttpClientErrorException
+        && ((HttpClientErrorException) cause).getStatusCode() != HttpStatus.TOO_MANY_REQUESTS;
+  }
+}
@@ -1,32 +1,50 @@
 package com.example.garvik.service;
 
+import com.example.garvik.runner.CacheInvalidationFeed;
 import com.google.api.core.ApiFuture;
 import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.Firestore;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.time.Duration;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
 @Service
-public class UserPreferences {
+public class UserPreferences implements CacheInvalidationFeed.Handler {
 
   private static final Logger logger = LoggerFactory.getLogger(UserPreferences.class);
   private static final String USER_ROLES_COLLECTION = "user_roles";
 
+  /**
+   * How long cached preferences are used. Preferences changed through {@link
+   * #invlidateUserPreferences} or announced on the invalidation feed are dropped right away; this
+   * bounds how long other changes go unseen.
+   */
+  private static final Duration PREFERENCES_TTL = Duration.ofMinutes(10);
+
   private final Firestore db;
 
   // In-memory cache for user preferences
-  private final Map<String, Optional<Map<String, Object>>> preferencesCache =
-      new ConcurrentHashMap<>();
+  private final Cache<String, Optional<Map<String, Object>>> preferencesCache =
+      CacheBuilder.newBuilder().expireAfterWrite(PREFERENCES_TTL).build();
+
+  private volatile CacheInvalidationFeed invalidationFeed;
 
   public UserPreferences(Firestore db) {
     this.db = db;
   }
 
+  /** Announces invalidated preferences to other replicas and applies theirs. */
+  public void useInvalidationFeed(CacheInvalidationFeed feed) {
+    this.invalidationFeed = feed;
+    feed.addHandler(this);
+  }
+
   /**
    * Fetches user preferences from the 'user_roles' collection in Firestore. The document ID within
    * this collection is expected to be the user's ID.
@@ -37,9 +55,10 @@ public class UserPreferences {
    */
   public Optional<Map<String, Object>> getUserPreferences(String userId) {
     // First, try to get the preferences from the cache
-    if (preferencesCache.containsKey(userId)) {
+    Optional<Map<String, Object>> cached = preferencesCache.getIfPresent(userId);
+    if (cached != null) {
       logger.info("Found preferences for user {} in cache.", userId);
-      return preferencesCache.get(userId);
+      return cached;
     }
 
     // If not in cache, fetch from Firestore
@@ -76,10 +95,14 @@ public class UserPreferences {
    */
   public boolean invlidateUserPreferences(String userId) {
     logger.info("Invalidating preferences for userId: {}.", userId);
+    // Other replicas may have cached them even if this one has not.
+    CacheInvalidationFeed feed = invalidationFeed;
+    if (feed != null) {
+      feed.publish(CacheInvalidationFeed.Scope.USER_PREFERENCES, userId);
+    }
     boolean clear = false;
-    if (preferencesCache.containsKey(userId)) {
+    if (preferencesCache.asMap().remove(userId) != null) {
       logger.info("Invalidating preferences for userId: {} from cache.", userId);
-      preferencesCache.remove(userId);
       clear = true;
     } else {
       logger.warn("Nothing is in the cache for userId: {}.", userId);
@@ -87,4 +110,17 @@ public class UserPreferences {
 
     return clear;
   }
+
+  /** Drops preferences another replica has invalidated. */
+  @Override
+  public void invalidate(CacheInvalidationFeed.Scope scope, String key) {
+    if (scope == CacheInvalidationFeed.Scope.USER_PREFERENCES) {
+      preferencesCache.invalidate(key);
+    }
+  }
+
+  @Override
+  public void invalidateAll() {
+    preferencesCache.invalidateAll();
+  }
 }
@@ -0,0 +1,101 @@
+package com.example.garvik.runner;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.adk.events.Event;
+import com.google.adk.sessions.Session;
+import com.google.genai.types.Content;
+import com.google.genai.types.Part;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class ContextWindowPolicyTest {
+
+  private static final String USER_ID = "user-42";
+
+  private static Event event(String id, String author, Part part) {
+    return Event.builder()
+        .id(id)
+        .invocationId("invocation-1")
+        .author(author)
+        .content(Content.fromParts(part))
+        .build();
+  }
+
+  /** A question, then a turn in which the agent calls a tool and answers with its result. */
+  private static List<Event> conversation() {
+    return List.of(
+        event("question-1", "user", Part.fromText("Hello")),
+        event("answer-1", "billing_agent", Part.fromText("Hello, how can I help?")),
+        event("question-2", "user", Part.fromText("Why was my May invoice higher?")),
+        event(
+            "call",
+            "billing_agent",
+            Part.fromFunctionCall("getInvoice", Map.of("month", "2024-05"))),
+        event(
+            "response",
+            "billing_agent",
+            Part.fromFunctionResponse("getInvoice", Map.of("total", 42))),
+        event("answer-2", "billing_agent", Part.fromText("A one-off fee was added in May.")));
+  }
+
+  private static Session session(List<Event> events) {
+    return Session.builder("session-1")
+        .appName("app")
+        .userId(USER_ID)
+        .events(new ArrayList<>(events))
+        .build();
+  }
+
+  private static ContextWindowPolicy policy(Integer maxTurns, Integer maxTokens) {
+    return new ContextWindowPolicy(
+        new ContextWindowPolicy.Limits(null, maxTurns, maxTokens), Map.of(), Map.of());
+  }
+
+  /** The estimate the policy makes for an event's size. */
+  private static int tokens(Event event) {
+    return event.content().get().toJson().length() / 4 + 1;
+  }
+
+  private static List<String> ids(Session session) {
+    List<String> ids = new ArrayList<>();
+    for (Event event : session.events()) {
+      ids.add(event.id());
+    }
+    return ids;
+  }
+
+  @Test
+  void tokenLimitDoesNotSeparateAFunctionResponseFromItsCall() {
+    List<Event> events = conversation();
+    // Room for the answer and the function response, but not for the call.
+    int maxTokens = tokens(events.get(5)) + tokens(events.get(4));
+
+    Session session = policy(null, maxTokens).apply(session(events));
+
+    assertThat(ids(session)).containsExactly("call", "response", "answer-2");
+  }
+
+  @Test
+  void windowCutByTheLoaderDropsALeadingFunctionResponse() {
+    Session session = policy(null, null).apply(session(conversation().subList(4, 6)));
+
+    assertThat(ids(session)).containsExactly("answer-2");
+  }
+
+  @Test
+  void turnLimitKeepsWholeTurns() {
+    Session session = policy(1, null).apply(session(conversation()));
+
+    assertThat(ids(session)).containsExactly("question-2", "call", "response", "answer-2");
+  }
+
+  @Test
+  void newestEventIsKeptWhateverItsSize() {
+    Session session = policy(null, 1).apply(session(conversation()));
+
+    assertThat(ids(session)).containsExactly("answer-2");
+  }
+}
@@ -0,0 +1,132 @@
+package com.example.garvik.runner;
+
+import com.google.adk.events.Event;
+import com.google.adk.events.EventActions;
+import com.google.adk.sessions.Session;
+import com.google.genai.types.Content;
+import com.google.genai.types.Part;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares writing and reading event documents with the binary {@link EventCodec} payload against
+ * the nested maps written before it existed. Run with the gc profiler to see allocation too:
+ *
+ * <pre>
+ * mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *     -Dexec.args="-cp %classpath org.openjdk.jmh.Main EventCodecBenchmark -prof gc"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventCodecBenchmark {
+
+  private static final Session SESSION =
+      Session.builder("session-1").appName("app").userId("user-42").build();
+
+  /** A user's text turn, or a model turn with a tool call and a state change. */
+  @Param({"userText", "modelToolCall"})
+  public String shape;
+
+  private final EventCodec binary = new EventCodec(EventCodec.Encoding.BINARY);
+  private final EventCodec map = new EventCodec(EventCodec.Encoding.MAP);
+  private Event event;
+  private Map<String, Object> binaryDocument;
+  private Map<String, Object> mapDocument;
+
+  @Setup
+  public void setUp() {
+    event = shape.equals("userText") ? userText() : modelToolCall();
+    binaryDocument = document(binary);
+    mapDocument = document(map);
+  }
+
+  private Map<String, Object> document(EventCodec codec) {
+    Map<String, Object> data = FirestoreSessionService.eventToMap(codec, SESSION, event);
+    data.put("id", event.id());
+    data.put("invocationId", event.invocationId());
+    return data;
+  }
+
+  private static Event userText() {
+    return Event.builder()
+        .id("event-1")
+        .invocationId("invocation-1")
+        .author("user")
+        .timestamp(1_700_000_000_000L)
+        .content(
+            Content.fromParts(
+                Part.fromText(
+                    "Please find the invoice for May attached, and tell me why the total is higher"
+                        + " than in April. I expected the same amount, as nothing changed.")))
+        .build();
+  }
+
+  private static Event modelToolCall() {
+    ConcurrentHashMap<String, Object> stateDelta = new ConcurrentHashMap<>();
+    stateDelta.put("lastTopic", "billing");
+    return Event.builder()
+        .id("event-1")
+        .invocationId("invocation-1")
+        .author("billing_agent")
+        .timestamp(1_700_000_000_000L)
+        .content(
+            Content.builder()
+                .role("model")
+                .parts(
+                    List.of(
+                        Part.fromText("Let me look up both invoices."),
+                        Part.fromFunctionCall(
+                            "getInvoices", Map.of("from", "2024-04", "to", "2024-05"))))
+                .build())
+        .actions(EventActions.builder().stateDelta(stateDelta).build())
+        .build();
+  }
+
+  @Benchmark
+  public Map<String, Object> encodeBinary() {
+    return FirestoreSessionService.eventToMap(binary, SESSION, event);
+  }
+
+  @Benchmark
+  public Map<String, Object> encodeMap() {
+    return FirestoreSessionService.eventToMap(map, SESSION, event);
+  }
+
+  /** Leaves the parts encoded, as a read that only needs the event's metadata does. */
+  @Benchmark
+  public Event decodeBinary() {
+    return FirestoreSessionService.eventFromStored(binaryDocument, null, "user-42");
+  }
+
+  @Benchmark
+  public void decodeBinaryAndReadParts(Blackhole blackhole) {
+    Event decoded = FirestoreSessionService.eventFromStored(binaryDocument, null, "user-42");
+    for (Part part : decoded.content().flatMap(Content::parts).orElse(List.of())) {
+      blackhole.consume(part);
+    }
+  }
+
+  @Benchmark
+  public Event decodeMap() {
+    return FirestoreSessionService.eventFromStored(mapDocument, null, "user-42");
+  }
+}
@@ -0,0 +1,136 @@
+package com.example.garvik.runner;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.adk.events.Event;
+import com.google.adk.events.EventActions;
+import com.google.adk.sessions.Session;
+import com.google.cloud.firestore.Blob;
+import com.google.genai.types.Content;
+import com.google.genai.types.FinishReason;
+import com.google.genai.types.Part;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.jupiter.api.Test;
+
+class EventCodecTest {
+
+  private static final Session SESSION =
+      Session.builder("session-1").appName("app").userId("user-42").build();
+
+  private static Event modelEvent() {
+    ConcurrentHashMap<String, Object> stateDelta = new ConcurrentHashMap<>();
+    stateDelta.put("lastTopic", "billing");
+    return Event.builder()
+        .id("event-1")
+        .invocationId("invocation-1")
+        .author("billing_agent")
+        .timestamp(1_700_000_000_123L)
+        .branch("root.billing_agent")
+        .turnComplete(true)
+        .errorCode(new FinishReason("MAX_TOKENS"))
+        .errorMessage("truncated")
+        .content(
+            Content.builder()
+                .role("model")
+                .parts(
+                    List.of(
+                        Part.fromText("Your last invoice is attached."),
+                        Part.fromFunctionCall("getInvoice", Map.of("month", "2024-05")),
+                        Part.fromText("Anything else?")))
+                .build())
+        .actions(EventActions.builder().stateDelta(stateDelta).transferToAgent("root").build())
+        .longRunningToolIds(Set.of("tool-1"))
+        .build();
+  }
+
+  private static Event userEvent() {
+    return Event.builder()
+        .id("event-2")
+        .invocationId("invocation-2")
+        .author("user")
+        .timestamp(1_700_000_000_456L)
+        .content(Content.fromParts(Part.fromText("Show me my last invoice")))
+        .build();
+  }
+
+  /** The event document as {@link FirestoreSessionService#appendEvent} stores it. */
+  private static Map<String, Object> document(EventCodec codec, Event event) {
+    Map<String, Object> data = FirestoreSessionService.eventToMap(codec, SESSION, event);
+    data.put("id", event.id());
+    data.put("invocationId", event.invocationId());
+    return data;
+  }
+
+  @Test
+  void decodeRestoresTheWholeEvent() {
+    Event event = modelEvent();
+
+    Event decoded = EventCodec.decode(new EventCodec(EventCodec.Encoding.BINARY).encode(event));
+
+    assertThat(decoded).isEqualTo(event);
+    assertThat(decoded.id()).isEqualTo("event-1");
+    assertThat(decoded.invocationId()).isEqualTo("invocation-1");
+    assertThat(decoded.actions()).isEqualTo(event.actions());
+  }
+
+  @Test
+  void decodedPartsMatchWhenReadLazily() {
+    Event event = modelEvent();
+    Blob payload = new EventCodec(EventCodec.Encoding.BINARY).encode(event);
+
+    List<Part> parts = EventCodec.decode(payload).content().get().parts().get();
+
+    assertThat(parts).hasSize(3);
+    assertThat(parts.get(1).functionCall().get().name()).hasValue("getInvoice");
+    assertThat(parts).isEqualTo(event.content().get().parts().get());
+  }
+
+  @Test
+  void storedBinaryEventCarriesTheUserIdAsAuthor() {
+    EventCodec codec = new EventCodec(EventCodec.Encoding.BINARY);
+    Event event = userEvent();
+
+    Map<String, Object> data = document(codec, event);
+    Event stored = FirestoreSessionService.eventFromStored(data, "event-2", "user-42");
+
+    assertThat(data).containsEntry("author", "user-42");
+    assertThat(EventCodec.decode((Blob) data.get(EventCodec.PAYLOAD_FIELD)).author())
+        .isEqualTo("user-42");
+    assertThat(stored.author()).isEqualTo("user-42");
+    assertThat(stored.id()).isEqualTo("event-2");
+    assertThat(stored.invocationId()).isEqualTo("invocation-2");
+    assertThat(stored.content()).isEqualTo(event.content());
+  }
+
+  @Test
+  void topLevelAuthorOverridesAnOlderPayload() {
+    Event event = userEvent();
+    Map<String, Object> data = document(new EventCodec(EventCodec.Encoding.BINARY), event);
+    data.put(EventCodec.PAYLOAD_FIELD, new EventCodec(EventCodec.Encoding.BINARY).encode(event));
+
+    Event stored = FirestoreSessionService.eventFromStored(data, "event-2", "user-42");
+
+    assertThat(stored.author()).isEqualTo("user-42");
+  }
+
+  @Test
+  void storedBinaryAndMapEventsAgree() {
+    Event event = userEvent();
+
+    Event binary =
+        FirestoreSessionService.eventFromStored(
+            document(new EventCodec(EventCodec.Encoding.BINARY), event), null, "user-42");
+    Event map =
+        FirestoreSessionService.eventFromStored(
+            document(new EventCodec(EventCodec.Encoding.MAP), event), null, "user-42");
+
+    assertThat(map.id()).isEqualTo(binary.id());
+    assertThat(map.invocationId()).isEqualTo(binary.invocationId());
+    assertThat(map.author()).isEqualTo(binary.author());
+    assertThat(map.timestamp()).isEqualTo(binary.timestamp());
+    assertThat(map.content().get().parts()).isEqualTo(binary.content().get().parts());
+  }
+}
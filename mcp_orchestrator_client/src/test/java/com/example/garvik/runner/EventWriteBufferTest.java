@@ -0,0 +1,337 @@
+package com.example.garvik.runner;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.when;
+
+import com.google.api.core.ApiFutures;
+import com.google.cloud.NoCredentials;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldMask;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.firestore.Transaction;
+import com.google.cloud.firestore.UpdateBuilder;
+import com.google.cloud.firestore.WriteBatch;
+import io.reactivex.rxjava3.observers.TestObserver;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.invocation.Invocation;
+
+class EventWriteBufferTest {
+
+  private static final String SESSION_KEY = "user-1/session-1";
+
+  /** Builds document references only; it never connects. */
+  private static final Firestore REFS =
+      FirestoreOptions.newBuilder()
+          .setProjectId("test-project")
+          .setCredentials(NoCredentials.getInstance())
+          .build()
+          .getService();
+
+  private final DocumentReference sessionRef = REFS.document("users/user-1/sessions/session-1");
+
+  /** One committed batch or transaction and the writes it applied. */
+  private static final class Commit {
+    private final boolean transaction;
+    private final UpdateBuilder<?> writes;
+
+    private Commit(boolean transaction, UpdateBuilder<?> writes) {
+      this.transaction = transaction;
+      this.writes = writes;
+    }
+
+    private List<Invocation> calls(String method, DocumentReference ref) {
+      List<Invocation> calls = new ArrayList<>();
+      for (Invocation call : mockingDetails(writes).getInvocations()) {
+        if (call.getMethod().getName().equals(method) && ref.equals(call.getArgument(0))) {
+          calls.add(call);
+        }
+      }
+      return calls;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> set(DocumentReference ref) {
+      List<Invocation> sets = calls("set", ref);
+      assertThat(sets).hasSize(1);
+      return (Map<String, Object>) sets.get(0).getArgument(1);
+    }
+
+    /** The fields of the single update of {@code ref}, by field path. */
+    private Map<FieldPath, Object> update(DocumentReference ref) {
+      List<Invocation> updates = calls("update", ref);
+      assertThat(updates).hasSize(1);
+      Object[] arguments = updates.get(0).getRawArguments();
+      List<Object> fieldsAndValues = new ArrayList<>(List.of(arguments[1], arguments[2]));
+      for (int i = 3; i < arguments.length; i++) {
+        fieldsAndValues.addAll(Arrays.asList((Object[]) arguments[i]));
+      }
+      Map<FieldPath, Object> fields = new LinkedHashMap<>();
+      for (int i = 0; i < fieldsAndValues.size(); i += 2) {
+        fields.put((FieldPath) fieldsAndValues.get(i), fieldsAndValues.get(i + 1));
+      }
+      return fields;
+    }
+  }
+
+  private final List<Commit> commits = new CopyOnWriteArrayList<>();
+  private final List<String> dropped = new CopyOnWriteArrayList<>();
+  private Firestore db;
+  private EventWriteBuffer buffer;
+  private boolean failCommits;
+  /** The session document as the fake transactions read it. */
+  private Boolean sequenced = true;
+  private long lastSeq;
+
+  @BeforeEach
+  @SuppressWarnings("unchecked")
+  void setUp() {
+    db = mock(Firestore.class);
+    when(db.batch())
+        .thenAnswer(
+            invocation -> {
+              WriteBatch batch = mock(WriteBatch.class);
+              when(batch.commit())
+                  .thenAnswer(
+                      commit -> {
+                        if (failCommits) {
+                          return ApiFutures.immediateFailedFuture(
+                              new IllegalStateException("unavailable"));
+                        }
+                        commits.add(new Commit(false, batch));
+                        return ApiFutures.immediateFuture(List.of());
+                      });
+              return batch;
+            });
+    when(db.runTransaction(any(Transaction.Function.class)))
+        .thenAnswer(
+            invocation -> {
+              if (failCommits) {
+                return ApiFutures.immediateFailedFuture(new IllegalStateException("unavailable"));
+              }
+              Transaction tx = mock(Transaction.class);
+              when(tx.getAll(any(DocumentReference[].class), any(FieldMask.class)))
+                  .thenAnswer(getAll -> ApiFutures.immediateFuture(read(getAll.getArgument(0))));
+              Object result =
+                  ((Transaction.Function<Object>) invocation.getArgument(0)).updateCallback(tx);
+              Commit commit = new Commit(true, tx);
+              commits.add(commit);
+              if (!commit.calls("update", sessionRef).isEmpty()) {
+                Object reserved =
+                    commit.update(sessionRef).get(FieldPath.of(EventSequencer.LAST_SEQ_FIELD));
+                lastSeq = reserved == null ? lastSeq : (Long) reserved;
+              }
+              return ApiFutures.immediateFuture(result);
+            });
+    buffer = newBuffer(EventWriteBuffer.AckMode.COMMIT);
+  }
+
+  @AfterEach
+  void tearDown() {
+    buffer.close();
+  }
+
+  private EventWriteBuffer newBuffer(EventWriteBuffer.AckMode ackMode) {
+    EventWriteBuffer buffer = new EventWriteBuffer(db, ackMode, 60_000, 60_000);
+    buffer.addDropListener(dropped::add);
+    return buffer;
+  }
+
+  private List<DocumentSnapshot> read(DocumentReference[] refs) {
+    List<DocumentSnapshot> snapshots = new ArrayList<>();
+    for (DocumentReference ref : refs) {
+      DocumentSnapshot snapshot = mock(DocumentSnapshot.class);
+      when(snapshot.getReference()).thenReturn(ref);
+      if (ref.equals(sessionRef)) {
+        when(snapshot.exists()).thenReturn(true);
+        when(snapshot.getBoolean(EventSequencer.SEQUENCED_FIELD)).thenReturn(sequenced);
+        when(snapshot.getLong(EventSequencer.LAST_SEQ_FIELD)).thenReturn(lastSeq);
+      }
+      snapshots.add(snapshot);
+    }
+    return snapshots;
+  }
+
+  private DocumentReference eventRef(String eventId) {
+    return sessionRef.collection("events").document(eventId);
+  }
+
+  /** Stages an event document and the session's deferred update, as appendEvent does. */
+  private EventWriteBuffer.Writes event(String invocationId, String eventId) {
+    return buffer
+        .begin(SESSION_KEY, invocationId)
+        .setNumbered(eventRef(eventId), Map.of("id", eventId), sessionRef)
+        .deferUpdate(sessionRef, Map.of(FieldPath.of("updateTime"), eventId));
+  }
+
+  @Test
+  void writesOfOneInvocationAreCommittedTogether() {
+    buffer = newBuffer(EventWriteBuffer.AckMode.ENQUEUE);
+    sequenced = false;
+
+    buffer.stage(event("inv-1", "e1"), false).blockingAwait();
+    buffer.stage(event("inv-1", "e2"), true).blockingAwait();
+    buffer.flush(SESSION_KEY).blockingAwait();
+
+    assertThat(commits).hasSize(1);
+    Commit commit = commits.get(0);
+    assertThat(commit.set(eventRef("e1"))).containsEntry("id", "e1");
+    assertThat(commit.set(eventRef("e2"))).containsEntry("id", "e2");
+    // Both events' session updates coalesced into one write of the last value.
+    assertThat(commit.update(sessionRef)).containsEntry(FieldPath.of("updateTime"), "e2");
+  }
+
+  @Test
+  void newInvocationCommitsThePreviousOne() {
+    buffer = newBuffer(EventWriteBuffer.AckMode.ENQUEUE);
+    sequenced = false;
+
+    buffer.stage(event("inv-1", "e1"), false).blockingAwait();
+    buffer.stage(event("inv-2", "e2"), false).blockingAwait();
+    buffer.flush(SESSION_KEY).blockingAwait();
+
+    assertThat(commits).hasSize(2);
+    assertThat(commits.get(0).calls("set", eventRef("e1"))).hasSize(1);
+    assertThat(commits.get(0).calls("set", eventRef("e2"))).isEmpty();
+    assertThat(commits.get(1).calls("set", eventRef("e2"))).hasSize(1);
+  }
+
+  @Test
+  void eventsWithoutInvocationIdAreBatchedTogether() {
+    buffer = newBuffer(EventWriteBuffer.AckMode.ENQUEUE);
+    sequenced = false;
+
+    buffer.stage(event(null, "e1"), false).blockingAwait();
+    buffer.stage(event(null, "e2"), false).blockingAwait();
+    buffer.stage(event("inv-1", "e3"), false).blockingAwait();
+    buffer.flush(SESSION_KEY).blockingAwait();
+
+    assertThat(commits).hasSize(2);
+    assertThat(commits.get(0).calls("set", eventRef("e1"))).hasSize(1);
+    assertThat(commits.get(0).calls("set", eventRef("e2"))).hasSize(1);
+    assertThat(commits.get(1).calls("set", eventRef("e3"))).hasSize(1);
+  }
+
+  @Test
+  void failedBatchIsDroppedAndReported() {
+    buffer = newBuffer(EventWriteBuffer.AckMode.ENQUEUE);
+    sequenced = false;
+    failCommits = true;
+    EventWriteBuffer.Writes writes = event("inv-1", "e1");
+
+    buffer.stage(writes, true).blockingAwait();
+    buffer.flush(SESSION_KEY).blockingAwait();
+
+    writes.committed().test().assertError(IllegalStateException.class);
+    assertThat(commits).isEmpty();
+    assertThat(dropped).containsExactly(SESSION_KEY);
+    assertThat(buffer.stats()).containsEntry("droppedBatches", 1L);
+  }
+
+  @Test
+  void failedBatchFailsTheAppendUnderCommitAck() {
+    failCommits = true;
+    sequenced = false;
+
+    assertThatThrownBy(() -> buffer.stage(event("inv-1", "e1"), true).blockingAwait())
+        .hasMessage("unavailable");
+  }
+
+  @Test
+  void firstCommitOfAnInvocationReservesNumbers() {
+    lastSeq = 40;
+
+    buffer.stage(event("inv-1", "e1"), false).blockingAwait();
+    buffer.stage(event("inv-1", "e2"), false).blockingAwait();
+    buffer.stage(event("inv-1", "e3"), true).blockingAwait();
+
+    assertThat(commits).hasSize(3);
+    Commit first = commits.get(0);
+    assertThat(first.transaction).isTrue();
+    assertThat(first.set(eventRef("e1"))).containsEntry(EventSequencer.SEQ_FIELD, 41L);
+    assertThat(first.update(sessionRef))
+        .containsEntry(
+            FieldPath.of(EventSequencer.LAST_SEQ_FIELD), 41L + EventWriteBuffer.RESERVED_SEQS);
+    // Later commits of the invocation number from the block, without touching the session.
+    assertThat(commits.get(1).transaction).isFalse();
+    assertThat(commits.get(1).set(eventRef("e2"))).containsEntry(EventSequencer.SEQ_FIELD, 42L);
+    assertThat(commits.get(1).calls("update", sessionRef)).isEmpty();
+    assertThat(commits.get(2).transaction).isFalse();
+    assertThat(commits.get(2).set(eventRef("e3"))).containsEntry(EventSequencer.SEQ_FIELD, 43L);
+    // The end of the invocation writes the session's deferred update, without a number.
+    assertThat(commits.get(2).update(sessionRef))
+        .containsOnlyKeys(FieldPath.of("updateTime"));
+  }
+
+  @Test
+  void nextInvocationNumbersAfterTheReservedBlock() {
+    buffer.stage(event("inv-1", "e1"), true).blockingAwait();
+    buffer.stage(event("inv-2", "e2"), true).blockingAwait();
+
+    assertThat(commits).hasSize(2);
+    assertThat(commits.get(0).set(eventRef("e1"))).containsEntry(EventSequencer.SEQ_FIELD, 1L);
+    assertThat(commits.get(1).transaction).isTrue();
+    assertThat(commits.get(1).set(eventRef("e2")))
+        .containsEntry(EventSequencer.SEQ_FIELD, 1L + EventWriteBuffer.RESERVED_SEQS + 1);
+  }
+
+  @Test
+  void reservationIsFoldedIntoTheDeferredSessionUpdate() {
+    buffer = newBuffer(EventWriteBuffer.AckMode.ENQUEUE);
+
+    buffer.stage(event("inv-1", "e1"), false).blockingAwait();
+    buffer.stage(event("inv-1", "e2"), true).blockingAwait();
+    buffer.flush(SESSION_KEY).blockingAwait();
+
+    assertThat(commits).hasSize(1);
+    Commit commit = commits.get(0);
+    assertThat(commit.transaction).isTrue();
+    assertThat(commit.set(eventRef("e1"))).containsEntry(EventSequencer.SEQ_FIELD, 1L);
+    assertThat(commit.set(eventRef("e2"))).containsEntry(EventSequencer.SEQ_FIELD, 2L);
+    assertThat(commit.update(sessionRef))
+        .containsOnly(
+            Map.entry(FieldPath.of("updateTime"), "e2"),
+            Map.entry(
+                FieldPath.of(EventSequencer.LAST_SEQ_FIELD), 2L + EventWriteBuffer.RESERVED_SEQS));
+  }
+
+  @Test
+  void enqueuedWritesReportWhenTheyAreCommitted() {
+    buffer = newBuffer(EventWriteBuffer.AckMode.ENQUEUE);
+    EventWriteBuffer.Writes writes = event("inv-1", "e1");
+
+    buffer.stage(writes, false).blockingAwait();
+    TestObserver<Void> committed = writes.committed().test();
+
+    committed.assertNotComplete();
+    assertThat(commits).isEmpty();
+    buffer.flush(SESSION_KEY).blockingAwait();
+    committed.assertComplete();
+  }
+
+  @Test
+  void eventsOfAnUnsequencedSessionAreNotNumbered() {
+    sequenced = null;
+
+    buffer.stage(event("inv-1", "e1"), false).blockingAwait();
+    buffer.stage(event("inv-1", "e2"), true).blockingAwait();
+
+    assertThat(commits.get(0).set(eventRef("e1"))).doesNotContainKey(EventSequencer.SEQ_FIELD);
+    assertThat(commits.get(1).transaction).isFalse();
+    assertThat(commits.get(1).set(eventRef("e2"))).doesNotContainKey(EventSequencer.SEQ_FIELD);
+  }
+}
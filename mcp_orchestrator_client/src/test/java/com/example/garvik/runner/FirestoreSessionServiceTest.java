@@ -0,0 +1,80 @@
+package com.example.garvik.runner;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.adk.sessions.State;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.FieldValue;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class FirestoreSessionServiceTest {
+
+  private final Map<String, Object> sessionState = new HashMap<>();
+  private final Map<FieldPath, Object> stateUpdates = new LinkedHashMap<>();
+  private final Map<String, Object> appStateUpdates = new HashMap<>();
+  private final Map<String, Object> userStateUpdates = new HashMap<>();
+
+  private void apply(Map<String, Object> stateDelta) {
+    FirestoreSessionService.applyStateDelta(
+        stateDelta, sessionState, stateUpdates, appStateUpdates, userStateUpdates);
+  }
+
+  @Test
+  void removedSessionKeyIsDeletedFieldByField() {
+    sessionState.put("topic", "billing");
+    sessionState.put("kept", "yes");
+    Map<String, Object> delta = new HashMap<>();
+    delta.put("topic", State.REMOVED);
+    delta.put("step", 2);
+
+    apply(delta);
+
+    assertThat(sessionState).containsOnly(Map.entry("kept", "yes"), Map.entry("step", 2));
+    assertThat(stateUpdates)
+        .containsOnly(
+            Map.entry(FieldPath.of("state", "topic"), FieldValue.delete()),
+            Map.entry(FieldPath.of("state", "step"), 2));
+    assertThat(appStateUpdates).isEmpty();
+    assertThat(userStateUpdates).isEmpty();
+  }
+
+  @Test
+  void removedAppAndUserKeysAreDeleted() {
+    Map<String, Object> delta = new HashMap<>();
+    delta.put("_app_motd", State.REMOVED);
+    delta.put("_user_language", State.REMOVED);
+    delta.put("_user_plan", "pro");
+
+    apply(delta);
+
+    assertThat(appStateUpdates).containsOnly(Map.entry("motd", FieldValue.delete()));
+    assertThat(userStateUpdates)
+        .containsOnly(Map.entry("language", FieldValue.delete()), Map.entry("plan", "pro"));
+    assertThat(stateUpdates).isEmpty();
+    assertThat(sessionState).isEmpty();
+  }
+
+  @Test
+  void nullValueIsDeletedLikeRemoved() {
+    sessionState.put("topic", "billing");
+    Map<String, Object> delta = new HashMap<>();
+    delta.put("topic", null);
+
+    apply(delta);
+
+    assertThat(sessionState).isEmpty();
+    assertThat(stateUpdates)
+        .containsOnly(Map.entry(FieldPath.of("state", "topic"), FieldValue.delete()));
+  }
+
+  @Test
+  void keyWithDotsIsOneField() {
+    apply(Map.of("a.b", "c"));
+
+    assertThat(stateUpdates).containsOnlyKeys(FieldPath.of("state", "a.b"));
+    assertThat(sessionState).containsOnly(Map.entry("a.b", "c"));
+  }
+}
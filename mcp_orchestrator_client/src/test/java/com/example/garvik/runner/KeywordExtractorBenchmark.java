@@ -0,0 +1,101 @@
+package com.example.garvik.runner;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link KeywordExtractor} with the regular expression extractor it replaced, on one KB
+ * of text, 1024 characters, per operation: the throughput is in KB per second, and the gc
+ * profiler's {@code gc.alloc.rate.norm} is the bytes allocated per KB.
+ *
+ * <pre>
+ * mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *     -Dexec.args="-cp %classpath org.openjdk.jmh.Main KeywordExtractorBenchmark -prof gc"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeywordExtractorBenchmark {
+
+  private static final int TEXT_LENGTH = 1024;
+
+  /** Plain English chat text, or text with accented words, which the old extractor split. */
+  @Param({"english", "accented"})
+  public String text;
+
+  private final KeywordExtractor extractor = new KeywordExtractor(false);
+  private final KeywordExtractor stemmingExtractor = new KeywordExtractor(true);
+  private String input;
+
+  @Setup
+  public void setUp() {
+    String sentence =
+        text.equals("english")
+            ? "Why was my invoice for May higher than the one for April? The plan did not change. "
+            : "Le café près de la gare a-t-il reçu ma réclamation? Müller schrieb: Grüße. ";
+    StringBuilder builder = new StringBuilder(TEXT_LENGTH);
+    while (builder.length() < TEXT_LENGTH) {
+      builder.append(sentence);
+    }
+    input = builder.substring(0, TEXT_LENGTH);
+  }
+
+  @Benchmark
+  public Set<String> keywordExtractor() {
+    return extractor.keywords(input);
+  }
+
+  @Benchmark
+  public Set<String> keywordExtractorStemming() {
+    return stemmingExtractor.keywords(input);
+  }
+
+  @Benchmark
+  public Set<String> regexExtractor() {
+    return RegexExtractor.keywords(input);
+  }
+
+  /** The extractor as it was before {@link KeywordExtractor}, for comparison. */
+  private static final class RegexExtractor {
+    private static final Pattern WORD_PATTERN = Pattern.compile("[A-Za-z]+");
+    private static final Set<String> STOP_WORDS =
+        Set.of(
+            "a", "an", "and", "are", "as", "at", "be", "but", "by", "for", "if", "in", "into", "is",
+            "it", "i", "no", "not", "of", "on", "or", "such", "that", "the", "their", "then",
+            "there", "these", "they", "this", "to", "was", "will", "with", "what", "where", "when",
+            "why", "how", "help", "need", "like", "make", "got", "would", "could", "should");
+
+    private static Set<String> keywords(String text) {
+      Set<String> keywords = new HashSet<>();
+      if (text != null && !text.isEmpty()) {
+        Matcher matcher = WORD_PATTERN.matcher(text.toLowerCase(Locale.ROOT));
+        while (matcher.find()) {
+          String word = matcher.group();
+          if (!STOP_WORDS.contains(word)) {
+            keywords.add(word);
+          }
+        }
+      }
+      return keywords;
+    }
+  }
+}
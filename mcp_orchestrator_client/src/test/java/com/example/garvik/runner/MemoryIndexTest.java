@@ -0,0 +1,101 @@
+package com.example.garvik.runner;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.adk.memory.MemoryEntry;
+import com.google.genai.types.Content;
+import com.google.genai.types.Part;
+import io.reactivex.rxjava3.core.Flowable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+class MemoryIndexTest {
+
+  private static final long NOW = 1_700_000_000_000L;
+  private static final Duration HALF_LIFE = Duration.ofDays(30);
+
+  private static MemoryIndex.Document document(
+      String eventId, String text, long timestampMillis, String... keywords) {
+    MemoryEntry entry =
+        MemoryEntry.builder()
+            .author("user-42")
+            .content(Content.fromParts(Part.fromText(text)))
+            .timestamp(Instant.ofEpochMilli(timestampMillis).toString())
+            .build();
+    return new MemoryIndex.Document(eventId, entry, timestampMillis, List.of(keywords));
+  }
+
+  private static MemoryIndex.UserIndex index(MemoryIndex.Document... documents) {
+    return new MemoryIndex(
+            (appName, userId) -> Flowable.fromArray(documents), 10, Duration.ofHours(1))
+        .index("app", "user-42")
+        .blockingGet();
+  }
+
+  private static List<String> search(MemoryIndex.UserIndex index, int limit, String... keywords) {
+    List<String> ids = new ArrayList<>();
+    for (MemoryIndex.Document document : index.search(Set.of(keywords), limit, HALF_LIFE, NOW)) {
+      ids.add(document.eventId());
+    }
+    return ids;
+  }
+
+  @Test
+  void documentMatchingMoreKeywordsRanksFirst() {
+    MemoryIndex.UserIndex index =
+        index(
+            document("invoice", "my invoice", NOW, "invoice", "may"),
+            document("both", "invoice refund", NOW, "invoice", "refund"),
+            document("refund", "a refund", NOW, "refund", "bank"));
+
+    assertThat(search(index, 10, "invoice", "refund")).first().isEqualTo("both");
+  }
+
+  @Test
+  void rareKeywordOutweighsCommonOne() {
+    MemoryIndex.UserIndex index =
+        index(
+            document("common-1", "invoice one", NOW, "invoice", "one"),
+            document("common-2", "invoice two", NOW, "invoice", "two"),
+            document("common-3", "invoice three", NOW, "invoice", "three"),
+            document("rare", "a chargeback", NOW, "chargeback", "four"));
+
+    assertThat(search(index, 10, "invoice", "chargeback")).first().isEqualTo("rare");
+  }
+
+  @Test
+  void shorterDocumentRanksAboveLongerOneWithTheSameMatch() {
+    MemoryIndex.UserIndex index =
+        index(
+            document("long", "invoice and more", NOW, "invoice", "plan", "fee", "tax", "card"),
+            document("short", "invoice", NOW, "invoice"));
+
+    assertThat(search(index, 10, "invoice")).containsExactly("short", "long");
+  }
+
+  @Test
+  void newerDocumentRanksAboveAnOlderEqualMatch() {
+    MemoryIndex.UserIndex index =
+        index(
+            document("old", "old invoice", NOW - Duration.ofDays(90).toMillis(), "invoice"),
+            document("new", "new invoice", NOW - Duration.ofDays(1).toMillis(), "invoice"));
+
+    assertThat(search(index, 10, "invoice")).containsExactly("new", "old");
+  }
+
+  @Test
+  void sameContentIsReturnedOnceAndLimitIsKept() {
+    MemoryIndex.UserIndex index =
+        index(
+            document("first", "invoice", NOW - 1000, "invoice"),
+            document("repeated", "invoice", NOW, "invoice"),
+            document("other", "invoice total", NOW, "invoice", "total"));
+
+    assertThat(search(index, 10, "invoice")).containsExactlyInAnyOrder("repeated", "other");
+    assertThat(search(index, 1, "invoice")).containsExactly("repeated");
+  }
+}
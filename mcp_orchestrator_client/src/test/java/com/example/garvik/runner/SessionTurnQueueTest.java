@@ -0,0 +1,43 @@
+package com.example.garvik.runner;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.Test;
+
+class SessionTurnQueueTest {
+
+  @Test
+  void hungTurnTimesOutAndReleasesTheSession() throws Exception {
+    SessionTurnQueue queue = new SessionTurnQueue(8, Duration.ofMillis(50));
+
+    CompletableFuture<String> hung = queue.submit("user-1/session-1", CompletableFuture::new);
+    CompletableFuture<String> next =
+        queue.submit("user-1/session-1", () -> CompletableFuture.completedFuture("done"));
+
+    assertThat(next.get(5, TimeUnit.SECONDS)).isEqualTo("done");
+    assertThatThrownBy(() -> hung.get(5, TimeUnit.SECONDS))
+        .isInstanceOf(ExecutionException.class)
+        .hasCauseInstanceOf(TimeoutException.class);
+    assertThat(queue.stats()).containsEntry("timedOutCount", 1L).containsEntry("activeSessions", 0);
+  }
+
+  @Test
+  void turnsOfOneSessionRunInOrder() throws Exception {
+    SessionTurnQueue queue = new SessionTurnQueue(8, Duration.ZERO);
+    CompletableFuture<String> first = new CompletableFuture<>();
+
+    queue.submit("user-1/session-1", () -> first);
+    CompletableFuture<String> second =
+        queue.submit("user-1/session-1", () -> CompletableFuture.completedFuture("second"));
+
+    assertThat(second).isNotDone();
+    first.complete("first");
+    assertThat(second.get(5, TimeUnit.SECONDS)).isEqualTo("second");
+  }
+}